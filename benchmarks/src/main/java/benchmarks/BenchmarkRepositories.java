@@ -0,0 +1,97 @@
+package benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import repository.DocumentRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Creates the repositories the benchmarks run against. Large populated repositories take a
+ * long time to build, so they are kept under target/bench-repos and reused by later runs.
+ */
+public class BenchmarkRepositories {
+
+    private static final File HOME = new File("target/bench-repos");
+
+    /**
+     * @param name
+     * @return a new, empty folder for a throw-away repository
+     * @throws IOException
+     */
+    public static File emptyFolder(String name) throws IOException {
+        File folder = new File(HOME, name + "-" + System.nanoTime());
+        FileUtils.forceMkdir(folder);
+        return folder;
+    }
+
+    public static void delete(File folder) throws IOException {
+        FileUtils.deleteDirectory(folder);
+    }
+
+    /**
+     * Returns the folder of a repository with the given number of documents, building it
+     * the first time. A quarter of the documents are 200 (with a small page), a quarter 404
+     * and the rest MISSING.
+     * @param documents
+     * @return
+     * @throws Exception
+     */
+    public static File populated(int documents) throws Exception {
+        File folder = new File(HOME, "documents-" + documents);
+        File done = new File(folder, "populated");
+        if (done.exists()) {
+            return folder;
+        }
+        if (folder.exists()) {
+            FileUtils.deleteDirectory(folder);
+        }
+        DocumentRepository repo = new DocumentRepository(folder);
+        repo.startSession();
+        repo.beginBatch(1000, 0);
+        for (int i = 0; i < documents; i++) {
+            URL url = url(i);
+            switch (i % 4) {
+                case 0:
+                    repo.setOriginalStatus(url, DocumentRepository.STATUS_OK);
+                    repo.setOriginalContent(url, html(1024, i));
+                    break;
+                case 1:
+                    repo.setOriginalStatus(url, DocumentRepository.STATUS_404);
+                    break;
+                default:
+                    repo.setOriginalStatus(url, DocumentRepository.STATUS_MISSING);
+            }
+        }
+        repo.endSession();
+        repo.shutdown();
+        FileUtils.touch(done);
+        return folder;
+    }
+
+    /**
+     * @param i
+     * @return the i-th url of a populated repository (spread over 1000 hosts)
+     */
+    public static URL url(int i) throws Exception {
+        return new URL("http://host" + (i % 1000) + ".example.org/page/" + i);
+    }
+
+    /**
+     * @param size
+     * @param seed
+     * @return an html page of about size characters
+     */
+    public static String html(int size, int seed) {
+        StringBuilder page = new StringBuilder(size + 128);
+        page.append("<html><head><title>Page ").append(seed).append("</title></head><body>");
+        int paragraph = 0;
+        while (page.length() < size) {
+            page.append("<div class=\"item\"><p>Paragraph ").append(paragraph++)
+                    .append(" of page ").append(seed).append("</p></div>");
+        }
+        page.append("</body></html>");
+        return page.toString();
+    }
+}
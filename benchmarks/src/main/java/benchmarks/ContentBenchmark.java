@@ -0,0 +1,73 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import repository.DocumentRepository;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing and reading original content of several sizes, one document per call
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentBenchmark {
+
+    @Param({"1024", "102400", "1048576"})
+    int size;
+
+    File folder;
+    DocumentRepository repo;
+    String content;
+    URL url;
+    URL[] urls;
+    int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        folder = BenchmarkRepositories.emptyFolder("content");
+        repo = new DocumentRepository(folder);
+        repo.startSession();
+        content = BenchmarkRepositories.html(size, 0);
+        url = BenchmarkRepositories.url(0);
+        repo.setOriginalContent(url, content);
+        urls = new URL[1000];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = BenchmarkRepositories.url(i + 1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        repo.endSession();
+        repo.shutdown();
+        BenchmarkRepositories.delete(folder);
+    }
+
+    @Benchmark
+    public void setOriginalContent() throws Exception {
+        repo.setOriginalContent(urls[next++ % urls.length], content);
+    }
+
+    @Benchmark
+    public String getOriginalContent() throws Exception {
+        return repo.getOriginalContent(url);
+    }
+}
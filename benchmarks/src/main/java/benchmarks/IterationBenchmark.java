@@ -0,0 +1,72 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import repository.DocumentRepository;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full passes over the documents of populated repositories. The 1M repository takes a long
+ * time to build the first time; it is kept for later runs (see BenchmarkRepositories).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class IterationBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int documents;
+
+    DocumentRepository repo;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        repo = new DocumentRepository(BenchmarkRepositories.populated(documents));
+        repo.startSession();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        repo.endSession();
+        repo.shutdown();
+    }
+
+    @Benchmark
+    public void documentsIterator(Blackhole blackhole) throws Exception {
+        consume(repo.documentsIterator(), blackhole);
+    }
+
+    @Benchmark
+    public void documentsByStatusIteratorMissing(Blackhole blackhole) throws Exception {
+        consume(repo.documentsByStatusIterator(DocumentRepository.STATUS_MISSING), blackhole);
+    }
+
+    @Benchmark
+    public void documentsByStatusIterator404(Blackhole blackhole) throws Exception {
+        consume(repo.documentsByStatusIterator(DocumentRepository.STATUS_404), blackhole);
+    }
+
+    private void consume(Iterator<URL> iterator, Blackhole blackhole) {
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+}
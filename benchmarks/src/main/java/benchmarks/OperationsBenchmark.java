@@ -0,0 +1,150 @@
+package benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import repository.DocumentRepository;
+import utilities.DownloadOriginalsOperation;
+import utilities.RegisterURLsOperation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole register and download operations. Downloads go to a stub http server on localhost
+ * that answers every request with a small page (or a 404 for one url in ten) after a delay
+ * that stands for network latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OperationsBenchmark {
+
+    @Param({"500"})
+    int urls;
+
+    @Param({"1", "8", "32"})
+    int threads;
+
+    @Param({"20"})
+    int latency;
+
+    HttpServer server;
+    File urlList;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        final byte[] page = BenchmarkRepositories.html(16 * 1024, 0).getBytes("UTF-8");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                boolean missing = exchange.getRequestURI().getPath().endsWith("0");
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+                exchange.sendResponseHeaders(missing ? 404 : 200, missing ? -1 : page.length);
+                OutputStream body = exchange.getResponseBody();
+                if (!missing) {
+                    body.write(page);
+                }
+                body.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(64));
+        server.start();
+
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < urls; i++) {
+            list.append("http://127.0.0.1:").append(server.getAddress().getPort())
+                    .append("/page/").append(i).append('\n');
+        }
+        urlList = File.createTempFile("urls", ".txt");
+        FileUtils.writeStringToFile(urlList, list.toString(), "UTF-8");
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.stop(0);
+        urlList.delete();
+    }
+
+    @Benchmark
+    public void registerUrls(EmptyRepository repository) throws Exception {
+        new RegisterURLsOperation(repository.folder, urlList).run();
+    }
+
+    @Benchmark
+    public void registerUrlsAgain(RegisteredRepository repository) throws Exception {
+        new RegisterURLsOperation(repository.folder, urlList).run();
+    }
+
+    @Benchmark
+    public void downloadOriginals(RegisteredRepository repository) {
+        DownloadOriginalsOperation operation =
+                new DownloadOriginalsOperation(repository.folder, DocumentRepository.STATUS_MISSING, 0, 0, threads);
+        operation.setHostLimits(threads, 0, urls);
+        operation.run();
+    }
+
+    /**
+     * A new repository for every invocation
+     */
+    @State(Scope.Thread)
+    public static class EmptyRepository {
+        File folder;
+
+        @Setup(Level.Invocation)
+        public void create() throws IOException {
+            folder = BenchmarkRepositories.emptyFolder("operations");
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete() throws IOException {
+            BenchmarkRepositories.delete(folder);
+        }
+    }
+
+    /**
+     * A new repository for every invocation, with all the urls registered (status MISSING)
+     */
+    @State(Scope.Thread)
+    public static class RegisteredRepository {
+        File folder;
+
+        @Setup(Level.Invocation)
+        public void create(OperationsBenchmark benchmark) throws Exception {
+            folder = BenchmarkRepositories.emptyFolder("operations");
+            new RegisterURLsOperation(folder, benchmark.urlList).run();
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete() throws IOException {
+            BenchmarkRepositories.delete(folder);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import repository.DocumentRepository;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status reads and writes and existence checks against a populated repository
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatusBenchmark {
+
+    @Param({"10000"})
+    int documents;
+
+    DocumentRepository repo;
+    URL[] urls;
+    URL[] unknown;
+    int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File folder = BenchmarkRepositories.populated(documents);
+        repo = new DocumentRepository(folder);
+        repo.startSession();
+        urls = new URL[documents];
+        unknown = new URL[documents];
+        for (int i = 0; i < documents; i++) {
+            urls[i] = BenchmarkRepositories.url(i);
+            unknown[i] = BenchmarkRepositories.url(documents + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        repo.endSession();
+        repo.shutdown();
+    }
+
+    @Benchmark
+    public String getOriginalStatus() throws Exception {
+        return repo.getOriginalStatus(urls[next++ % urls.length]);
+    }
+
+    @Benchmark
+    public void setOriginalStatus() throws Exception {
+        // keeps the status each document had, so the repository is reusable
+        int i = next++ % urls.length;
+        repo.setOriginalStatus(urls[i], i % 4 == 0 ? DocumentRepository.STATUS_OK :
+                i % 4 == 1 ? DocumentRepository.STATUS_404 : DocumentRepository.STATUS_MISSING);
+    }
+
+    @Benchmark
+    public boolean hasOriginalContentKnown() throws Exception {
+        return repo.hasOriginalContent(urls[next++ % urls.length]);
+    }
+
+    @Benchmark
+    public boolean hasOriginalContentUnknown() throws Exception {
+        return repo.hasOriginalContent(unknown[next++ % unknown.length]);
+    }
+}
@@ -0,0 +1,11 @@
+package metrics;
+
+/**
+ * A value that is read when metrics are reported (queue depths...). Implementations are
+ * called from the reporting threads, so they must be thread safe (or at least not mind
+ * returning a slightly stale value).
+ */
+public interface Gauge {
+
+    long getValue();
+}
@@ -0,0 +1,202 @@
+package metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named counters, histograms and gauges, shared by the operations and the repository.
+ * Metrics are created on first use, so code that records them just asks for them by name
+ * (e.g. registry.counter("fetch.bytes").add(length)). Names are dotted, most general part first.
+ * The default registry is registered in the platform MBean server (as
+ * jackrabbit-collector:type=Metrics), where every metric is a read-only attribute; see
+ * MetricsReporter for periodic dumps to a file.
+ * Thread safe.
+ */
+public class MetricsRegistry {
+
+    public static final String OBJECT_NAME = "jackrabbit-collector:type=Metrics";
+
+    private static MetricsRegistry defaultRegistry;
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    /**
+     * @return the registry used by the operations and the repository (registered in JMX)
+     */
+    public static synchronized MetricsRegistry getDefault() {
+        if (defaultRegistry == null) {
+            defaultRegistry = new MetricsRegistry();
+            try {
+                defaultRegistry.register(new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        return defaultRegistry;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return true if there is a histogram with that name
+     */
+    public boolean hasHistogram(String name) {
+        return histograms.containsKey(name);
+    }
+
+    /**
+     * Adds (or replaces) a gauge
+     * @param name
+     * @param gauge
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Removes a gauge (e.g. when the queue it measures goes away)
+     * @param name
+     */
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Reads every metric. Histograms give [name].count, .mean, .p50, .p90, .p99 and .max.
+     * @return metric values by name, sorted by name
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<String, Number>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getCount());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getValue());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean", histogram.getMean());
+            values.put(name + ".p50", histogram.getPercentile(0.5));
+            values.put(name + ".p90", histogram.getPercentile(0.9));
+            values.put(name + ".p99", histogram.getPercentile(0.99));
+            values.put(name + ".max", histogram.getMax());
+        }
+        return values;
+    }
+
+    /**
+     * @return true if name is a counter (its rate is worth reporting)
+     */
+    boolean isCounter(String name) {
+        return counters.containsKey(name);
+    }
+
+    /**
+     * Registers the registry in the platform MBean server
+     * @param name
+     * @throws JMException
+     */
+    public void register(ObjectName name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(new MetricsMBean(), name);
+    }
+
+    /**
+     * Exposes every metric of the registry as a read-only attribute. The list of attributes
+     * grows as metrics are created.
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            SortedMap<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            SortedMap<String, Number> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> entry : values.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false);
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Crawl and repository metrics", attributes,
+                    null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
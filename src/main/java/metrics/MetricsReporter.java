@@ -0,0 +1,124 @@
+package metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends a snapshot of a registry to a file every period, and once more when stopped.
+ * Counters also get a [name].rate metric: their increase per second since the previous snapshot.
+ * Two formats:
+ *  - CSV: one timestamp,metric,value row per metric and snapshot (easy to load in R)
+ *  - JSON: one line per snapshot, {"timestamp": ..., "metrics": {"name": value, ...}}
+ */
+public class MetricsReporter {
+
+    public enum Format { CSV, JSON }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MetricsRegistry registry;
+    private final File file;
+    private final Format format;
+    private final ScheduledExecutorService executor;
+    private final Map<String, Long> previousCounts = new HashMap<String, Long>();
+    private long previousTime;
+
+    /**
+     * Starts reporting
+     * @param registry
+     * @param file where to append the snapshots
+     * @param format
+     * @param period milliseconds between two snapshots
+     */
+    public MetricsReporter(MetricsRegistry registry, File file, Format format, long period) {
+        this.registry = registry;
+        this.file = file;
+        this.format = format;
+        this.previousTime = System.currentTimeMillis();
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops reporting, after a last snapshot
+     */
+    public void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report();
+    }
+
+    /**
+     * Appends a snapshot now
+     */
+    public synchronized void report() {
+        long now = System.currentTimeMillis();
+        SortedMap<String, Number> values = registry.snapshot();
+        double seconds = Math.max(1, now - previousTime) / 1000.0;
+        for (String name : values.keySet().toArray(new String[values.size()])) {
+            if (registry.isCounter(name)) {
+                long count = values.get(name).longValue();
+                Long previous = previousCounts.put(name, count);
+                values.put(name + ".rate", (count - (previous != null ? previous : 0)) / seconds);
+            }
+        }
+        previousTime = now;
+        boolean empty = !file.exists() || file.length() == 0;
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+            try {
+                if (format == Format.CSV) {
+                    if (empty) {
+                        writer.write("timestamp,metric,value\n");
+                    }
+                    for (Map.Entry<String, Number> entry : values.entrySet()) {
+                        writer.write(now + "," + entry.getKey() + "," + entry.getValue() + "\n");
+                    }
+                } else {
+                    StringBuilder line = new StringBuilder("{\"timestamp\":").append(now).append(",\"metrics\":{");
+                    boolean first = true;
+                    for (Map.Entry<String, Number> entry : values.entrySet()) {
+                        if (!first) {
+                            line.append(',');
+                        }
+                        line.append('"').append(entry.getKey().replace("\\", "\\\\").replace("\"", "\\\""))
+                                .append("\":").append(entry.getValue());
+                        first = false;
+                    }
+                    writer.write(line.append("}}\n").toString());
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package repository;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of records, each one
+ *   [type: 1 byte][payload length: 4 bytes][payload][crc32 of the payload: 4 bytes]
+ * Records are appended through a write buffer, and payloads can be streamed in (the length is
+ * written when the record ends), so large records are never held in memory.
+ * Records are never changed once written; the last record is only undone with rewind().
+ * A crash can leave a torn record at the end of the file: replay() stops at the first record
+ * that is incomplete or fails its checksum and cuts the file there.
+ * The file is locked while it is open, so only one process can write it. Not thread safe.
+ */
+class AppendLog implements Closeable {
+
+    static final int HEADER = 5;
+    private static final int TRAILER = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int INCOMPLETE = -1;
+
+    /**
+     * Gets the records found by replay(), in order
+     */
+    interface RecordHandler {
+        /**
+         * @param type
+         * @param offset where the payload starts in the file
+         * @param length of the payload
+         * @param payload the payload, or null if the handler did not want it (see wantsPayload())
+         * @throws IOException
+         */
+        void record(byte type, long offset, int length, byte[] payload) throws IOException;
+
+        /**
+         * @param type
+         * @return true to get the payload of records of this type (and have it checked), false
+         * to skip over them without reading them
+         */
+        boolean wantsPayload(byte type);
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long flushed;
+    private long recordStart = -1;
+    private long recordLength;
+
+    /**
+     * Opens (or creates) the log, locking it
+     * @param path
+     * @throws IOException if it is locked by someone else
+     */
+    AppendLog(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            file.close();
+            throw new IOException(path + " is in use by another store");
+        }
+        lock = fileLock;
+        flushed = channel.size();
+    }
+
+    /**
+     * Reads the whole log, from the start, handing each record to handler. Cuts the log at the
+     * first torn record, if there is one.
+     * @param handler
+     * @return the number of bytes cut
+     * @throws IOException
+     */
+    long replay(RecordHandler handler) throws IOException {
+        flush();
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (position + HEADER + TRAILER <= size) {
+            header.clear();
+            readFully(header, position);
+            byte type = header.get(0);
+            int length = header.getInt(1);
+            if (length < 0 || position + HEADER + length + TRAILER > size) {
+                break;
+            }
+            byte[] payload = null;
+            if (handler.wantsPayload(type)) {
+                ByteBuffer record = ByteBuffer.allocate(length + TRAILER);
+                readFully(record, position + HEADER);
+                payload = new byte[length];
+                record.position(0);
+                record.get(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != record.getInt(length)) {
+                    break;
+                }
+            }
+            handler.record(type, position + HEADER, length, payload);
+            position += HEADER + length + TRAILER;
+        }
+        if (position < size) {
+            channel.truncate(position);
+            flushed = position;
+        }
+        return size - position;
+    }
+
+    /**
+     * Starts a record. Its payload is given with write(), and it ends with end().
+     * @param type
+     * @return where the record starts, for rewind()
+     * @throws IOException
+     */
+    long begin(byte type) throws IOException {
+        if (recordStart >= 0) {
+            throw new IllegalStateException("A record is already open");
+        }
+        recordStart = size();
+        recordLength = 0;
+        crc.reset();
+        ensureRoom(HEADER);
+        buffer.put(type);
+        buffer.putInt(INCOMPLETE);
+        return recordStart;
+    }
+
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        crc.update(bytes, offset, length);
+        recordLength += length;
+        if (recordLength > Integer.MAX_VALUE) {
+            throw new IOException("Record too large");
+        }
+        while (length > 0) {
+            ensureRoom(1);
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Ends the record started with begin()
+     * @return the length of its payload
+     * @throws IOException
+     */
+    int end() throws IOException {
+        ensureRoom(TRAILER);
+        buffer.putInt((int) crc.getValue());
+        long lengthPosition = recordStart + 1;
+        if (lengthPosition >= flushed) {
+            buffer.putInt((int) (lengthPosition - flushed), (int) recordLength);
+        } else {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            length.putInt(0, (int) recordLength);
+            writeFully(length, lengthPosition);
+        }
+        recordStart = -1;
+        return (int) recordLength;
+    }
+
+    /**
+     * Appends a whole record
+     * @param type
+     * @param payload
+     * @return where the payload starts
+     * @throws IOException
+     */
+    long append(byte type, byte[] payload) throws IOException {
+        long start = begin(type);
+        write(payload, 0, payload.length);
+        end();
+        return start + HEADER;
+    }
+
+    /**
+     * Drops everything written from position on (the start of the last record, as returned by begin())
+     * @param position
+     * @throws IOException
+     */
+    void rewind(long position) throws IOException {
+        recordStart = -1;
+        if (position >= flushed) {
+            buffer.position((int) (position - flushed));
+        } else {
+            buffer.clear();
+            channel.truncate(position);
+            flushed = position;
+        }
+    }
+
+    /**
+     * @param offset where the payload starts
+     * @param length of the payload
+     * @return a stream over the payload of a record
+     * @throws IOException
+     */
+    InputStream read(final long offset, final long length) throws IOException {
+        if (offset + length > flushed) {
+            flush();
+        }
+        return new InputStream() {
+            long position = offset;
+            final long end = offset + length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int off, int len) throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+                int read = channel.read(ByteBuffer.wrap(bytes, off, (int) Math.min(len, end - position)), position);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, end - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, end - position);
+            }
+        };
+    }
+
+    /**
+     * @return the size of the log, including what is still in the write buffer
+     */
+    long size() {
+        return flushed + buffer.position();
+    }
+
+    /**
+     * Hands the write buffer to the operating system
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        if (buffer.position() > 0) {
+            // the length of an open record goes out as a placeholder, end() patches it on disk
+            int end = buffer.position();
+            buffer.flip();
+            writeFully(buffer, flushed);
+            flushed += end;
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Flushes and waits until everything written is on disk
+     * @throws IOException
+     */
+    void force() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            force();
+            lock.release();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void readFully(ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of log");
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+}
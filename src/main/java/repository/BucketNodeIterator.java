@@ -0,0 +1,123 @@
+package repository;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the nodes found a number of bucket levels below a parent node, walking
+ * the intermediate bucket nodes one at a time (only one child list per level is loaded).
+ * With zero levels it is the same as iterating over parent.getNodes().
+ * It can also start right after a given bucket, without loading the nodes of the buckets
+ * before it, which is how interrupted crawls resume.
+ */
+class BucketNodeIterator implements Iterator<Node> {
+
+    private final int levels;
+    private final Deque<NodeIterator> stack = new ArrayDeque<NodeIterator>();
+    private final Deque<String> path = new ArrayDeque<String>();
+    private String[] after;
+    private Node next;
+    private String nextBucket;
+    private String bucket;
+
+    /**
+     * @param parent
+     * @param levels number of bucket levels between parent and the nodes we are interested in
+     * @throws RepositoryException
+     */
+    BucketNodeIterator(Node parent, int levels) throws RepositoryException {
+        this(parent, levels, null);
+    }
+
+    /**
+     * @param parent
+     * @param levels number of bucket levels between parent and the nodes we are interested in
+     * @param after relative path (from parent) of a bucket at the last level: the nodes in that
+     *              bucket and in all buckets before it are skipped. Null to start from the beginning.
+     * @throws RepositoryException
+     */
+    BucketNodeIterator(Node parent, int levels, String after) throws RepositoryException {
+        this.levels = levels;
+        this.after = after != null && levels > 0 ? after.split("/") : null;
+        stack.push(parent.getNodes());
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        try {
+            while (!stack.isEmpty()) {
+                NodeIterator top = stack.peek();
+                if (!top.hasNext()) {
+                    stack.pop();
+                    if (!path.isEmpty()) {
+                        path.removeLast();
+                    }
+                    continue;
+                }
+                Node node = top.nextNode();
+                if (stack.size() > levels) {
+                    next = node;
+                    nextBucket = bucketPath();
+                    return true;
+                }
+                if (after != null) {
+                    int level = stack.size() - 1;
+                    if (!node.getName().equals(after[level])) {
+                        continue;
+                    }
+                    if (level == levels - 1) {
+                        after = null;
+                        continue;
+                    }
+                }
+                stack.push(node.getNodes());
+                path.addLast(node.getName());
+            }
+        } catch (RepositoryException e) {
+            throw new IllegalStateException(e);
+        }
+        return false;
+    }
+
+    @Override
+    public Node next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Node node = next;
+        bucket = nextBucket;
+        next = null;
+        return node;
+    }
+
+    /**
+     * @return the relative path (from parent) of the bucket of the last node returned by next()
+     */
+    String getBucketPath() {
+        return bucket;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private String bucketPath() {
+        StringBuilder builder = new StringBuilder();
+        for (String name : path) {
+            if (builder.length() > 0) {
+                builder.append('/');
+            }
+            builder.append(name);
+        }
+        return builder.toString();
+    }
+}
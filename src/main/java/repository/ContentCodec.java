@@ -0,0 +1,256 @@
+package repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * How the repository encodes the content it stores. Every codec works on streams, both
+ * ways, so content is compressed while it is written and decompressed while it is read,
+ * without ever being held in memory as a whole.
+ * The codec used is recorded next to each content property, so content written with one
+ * codec stays readable after the repository switches to another.
+ */
+public enum ContentCodec {
+
+    /**
+     * Content is stored as it comes
+     */
+    IDENTITY("identity") {
+        @Override
+        public InputStream encode(InputStream raw) {
+            return raw;
+        }
+
+        @Override
+        public InputStream decode(InputStream encoded) {
+            return encoded;
+        }
+    },
+
+    /**
+     * Standard gzip format (the stored bytes can be read by any gunzip)
+     */
+    GZIP("gzip") {
+        @Override
+        public InputStream encode(InputStream raw) {
+            final CRC32 crc = new CRC32();
+            final CountingInputStream counting = new CountingInputStream(new CheckedInputStream(raw, crc));
+            byte[] header = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+            InputStream trailer = new InputStream() {
+                byte[] bytes;
+                int position = 0;
+
+                @Override
+                public int read() throws IOException {
+                    if (bytes == null) {
+                        // only asked for once the deflater consumed all of raw
+                        bytes = littleEndian(crc.getValue(), counting.count);
+                    }
+                    return position < bytes.length ? bytes[position++] & 0xff : -1;
+                }
+            };
+            return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                    new ByteArrayInputStream(header), deflate(counting, null), trailer)));
+        }
+
+        @Override
+        public InputStream decode(InputStream encoded) throws IOException {
+            return new GZIPInputStream(encoded, BUFFER_SIZE);
+        }
+    },
+
+    /**
+     * Raw deflate, without gzip's header and checksum
+     */
+    DEFLATE("deflate") {
+        @Override
+        public InputStream encode(InputStream raw) {
+            return deflate(raw, null);
+        }
+
+        @Override
+        public InputStream decode(InputStream encoded) {
+            return inflate(encoded, null);
+        }
+    },
+
+    /**
+     * Raw deflate primed with a dictionary of common html fragments. Helps most with small
+     * and medium pages, where plain deflate has not seen enough text to find repetitions.
+     */
+    DEFLATE_HTML("deflate-html") {
+        @Override
+        public InputStream encode(InputStream raw) {
+            return deflate(raw, HTML_DICTIONARY);
+        }
+
+        @Override
+        public InputStream decode(InputStream encoded) {
+            return inflate(encoded, HTML_DICTIONARY);
+        }
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Fragments that appear in most html pages. Deflate finds matches faster near the end of
+     * the dictionary, so the most common fragments go last. Never change it: content already
+     * stored with DEFLATE_HTML can only be read with the exact same dictionary.
+     */
+    private static final byte[] HTML_DICTIONARY = (
+            "<meta name=\"description\" content=\"<meta name=\"keywords\" content=\"" +
+            "<meta property=\"og:<meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">" +
+            "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\"><meta charset=\"utf-8\">" +
+            "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" " +
+            "\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">" +
+            "<html xmlns=\"http://www.w3.org/1999/xhtml\"><!DOCTYPE html><html lang=\"en\">" +
+            "itemscope itemtype=\"http://schema.org/itemprop=\"name\"itemprop=\"description\"" +
+            "<link rel=\"stylesheet\" type=\"text/css\" href=\"<link rel=\"canonical\" href=\"" +
+            "<script type=\"text/javascript\" src=\"<script type=\"text/javascript\">" +
+            "</script><noscript></noscript><form action=\"<input type=\"hidden\" name=\"" +
+            "<select name=\"<option value=\"</option></select><button type=\"submit\"" +
+            "<table cellpadding=\"0\" cellspacing=\"0\" border=\"0\"><tbody><tr><td></td></tr></tbody></table>" +
+            "<h1></h1><h2></h2><h3></h3><strong></strong><br /><br><p></p><ul><li></li></ul>" +
+            "<img src=\"\" alt=\"\" width=\"\" height=\"\" /><a href=\"http://www.\" title=\"\" target=\"_blank\">" +
+            "</a></span><span class=\"</div><div id=\"</div><div class=\"").getBytes(Charset.forName("UTF-8"));
+
+    private final String id;
+
+    ContentCodec(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the name recorded in the repository for content encoded with this codec
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns a stream that reads raw and gives its content encoded
+     * @param raw
+     * @return
+     * @throws IOException
+     */
+    public abstract InputStream encode(InputStream raw) throws IOException;
+
+    /**
+     * Returns a stream that reads encoded content and gives it back as it was before encoding
+     * @param encoded
+     * @return
+     * @throws IOException
+     */
+    public abstract InputStream decode(InputStream encoded) throws IOException;
+
+    /**
+     * Reads encoded content through, to count the bytes it had before encoding. The stream is closed.
+     * @param encoded
+     * @return the length of the raw content
+     * @throws IOException
+     */
+    public long decodedLength(InputStream encoded) throws IOException {
+        CountingInputStream counting = new CountingInputStream(decode(encoded));
+        try {
+            byte[] buffer = new byte[8192];
+            while (counting.read(buffer) != -1) {
+                // counted on the way
+            }
+            return counting.count;
+        } finally {
+            counting.close();
+        }
+    }
+
+    /**
+     * @param id as returned by getId()
+     * @return the codec with the given id
+     * @throws IllegalArgumentException if there is none
+     */
+    public static ContentCodec forId(String id) {
+        for (ContentCodec codec : values()) {
+            if (codec.id.equals(id)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown content codec " + id);
+    }
+
+    private static InputStream deflate(InputStream raw, byte[] dictionary) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        return new DeflaterInputStream(raw, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                deflater.end();
+            }
+        };
+    }
+
+    private static InputStream inflate(InputStream encoded, byte[] dictionary) {
+        final Inflater inflater = new Inflater(true);
+        if (dictionary != null) {
+            inflater.setDictionary(dictionary);
+        }
+        return new InflaterInputStream(encoded, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    private static byte[] littleEndian(long crc, long size) {
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = (byte) (crc >>> (8 * i));
+            bytes[4 + i] = (byte) (size >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * Counts the bytes read through it (the stores use it to record the raw length of content)
+     */
+    static class CountingInputStream extends java.io.FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package repository;
+
+import javax.jcr.RepositoryException;
+import java.net.URL;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Where a crawl over the documents with a given status is up to, kept in the store so that an
+ * interrupted crawl can resume where it stopped:
+ *  - a cursor: how far the documents with the status were read
+ *  - the pending urls: read, but not done yet (queued or being fetched)
+ * Journal changes are saved with the documents (by the next flush() or save of the store),
+ * so after a crash the journal always agrees with the documents that were saved.
+ * Get one with DocumentStore.openCrawlJournal(); iterate with
+ * DocumentStore.documentsByStatusIterator(status, journal) on the same store.
+ */
+public interface CrawlJournal {
+
+    /**
+     * @return true if the journal was left by an earlier crawl that did not finish
+     */
+    boolean isResumed();
+
+    /**
+     * @return when the crawl (the first run of it, if it was resumed) started
+     * @throws RepositoryException
+     */
+    Calendar getStartedOn() throws RepositoryException;
+
+    /**
+     * @return the urls that were read but not done when the journal was last saved
+     * @throws RepositoryException
+     */
+    List<URL> getPending() throws RepositoryException;
+
+    boolean isPending(URL url) throws RepositoryException;
+
+    void addPending(URL url) throws RepositoryException;
+
+    /**
+     * Records that the url is being fetched. Urls that are still pending and started when a
+     * crawl resumes were in flight when it stopped (they may be what stopped it).
+     * @param url
+     * @throws RepositoryException
+     */
+    void markStarted(URL url) throws RepositoryException;
+
+    boolean wasStarted(URL url) throws RepositoryException;
+
+    /**
+     * Records that the url is done
+     * @param url
+     * @throws RepositoryException
+     */
+    void removePending(URL url) throws RepositoryException;
+
+    /**
+     * Removes the journal, once the crawl went through every document. The next crawl with the
+     * same name starts from the beginning.
+     * @throws RepositoryException
+     */
+    void finish() throws RepositoryException;
+}
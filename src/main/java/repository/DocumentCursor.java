@@ -0,0 +1,177 @@
+package repository;
+
+import metrics.MetricsRegistry;
+
+import javax.jcr.RepositoryException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over the urls of a set of documents, reading (and decoding) them from the store in
+ * batches of a given size. Entries that cannot be decoded are skipped, never returned as null:
+ * they are logged, counted (repository.cursor.skipped) and kept in getSkipped().
+ * It is also a source of streams: stream(true) hands whole batches to the workers of a
+ * parallel stream, and the store is only read by the worker splitting off the next batch,
+ * one at a time. Whether the workers may call the store themselves depends on the store:
+ * KeyValueDocumentStore can be called from any thread, DocumentRepository should only be
+ * called by the thread of its session (collect what the workers produce and store it there).
+ */
+public class DocumentCursor implements Iterator<URL> {
+
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    /**
+     * Turns the keys of a store into urls
+     */
+    interface Decoder {
+        URL decode(String key) throws RepositoryException;
+    }
+
+    private final Iterator<String> keys;
+    private final Decoder decoder;
+    private final int batchSize;
+    private final Deque<URL> batch = new ArrayDeque<URL>();
+    private final List<String> skipped = new ArrayList<String>();
+
+    /**
+     * @param keys of the documents (reading them may throw IllegalStateException if the store fails)
+     * @param decoder
+     * @param batchSize number of keys read at a time (1 to read them as they are needed)
+     */
+    DocumentCursor(Iterator<String> keys, Decoder decoder, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.keys = keys;
+        this.decoder = decoder;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !batch.isEmpty() || fetch();
+    }
+
+    @Override
+    public URL next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.poll();
+    }
+
+    /**
+     * @return the urls left in the current batch, reading a new one if it is empty; an empty
+     * list at the end
+     */
+    public List<URL> nextBatch() {
+        if (!hasNext()) {
+            return Collections.emptyList();
+        }
+        List<URL> urls = new ArrayList<URL>(batch);
+        batch.clear();
+        return urls;
+    }
+
+    /**
+     * @return the keys skipped so far because they could not be decoded
+     */
+    public List<String> getSkipped() {
+        return Collections.unmodifiableList(skipped);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return a spliterator over what is left; the cursor should not be used after asking for it
+     */
+    public Spliterator<URL> spliterator() {
+        return new BatchSpliterator();
+    }
+
+    /**
+     * @param parallel
+     * @return a stream over what is left; the cursor should not be used after asking for it
+     */
+    public Stream<URL> stream(boolean parallel) {
+        return StreamSupport.stream(spliterator(), parallel);
+    }
+
+    /**
+     * Reads the next batch
+     * @return false if there are no more documents
+     */
+    private boolean fetch() {
+        while (batch.isEmpty() && keys.hasNext()) {
+            for (int i = 0; i < batchSize && keys.hasNext(); i++) {
+                String key = keys.next();
+                try {
+                    batch.add(decoder.decode(key));
+                } catch (RepositoryException e) {
+                    skipped.add(key);
+                    MetricsRegistry.getDefault().counter("repository.cursor.skipped").increment();
+                    Logger.getLogger(DocumentCursor.class.toString()).log(Level.WARNING, "Skipping " + key, e);
+                }
+            }
+        }
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Splits off one batch at a time (as an array, so it splits further among workers)
+     */
+    private class BatchSpliterator implements Spliterator<URL> {
+        private static final int CHARACTERISTICS = ORDERED | DISTINCT | NONNULL;
+
+        @Override
+        public boolean tryAdvance(Consumer<? super URL> action) {
+            if (!hasNext()) {
+                return false;
+            }
+            action.accept(batch.poll());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super URL> action) {
+            while (hasNext()) {
+                action.accept(batch.poll());
+            }
+        }
+
+        @Override
+        public Spliterator<URL> trySplit() {
+            List<URL> urls = nextBatch();
+            if (urls.isEmpty()) {
+                return null;
+            }
+            return Spliterators.spliterator(urls.toArray(), CHARACTERISTICS);
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return CHARACTERISTICS;
+        }
+    }
+}
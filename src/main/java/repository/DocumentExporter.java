@@ -0,0 +1,151 @@
+package repository;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes one row per document (url, original status, extracted status, modification date,
+ * size and stored size, see DocumentRecord) to flat files, for analysis outside the repository (e.g. in R).
+ * Pass it to DocumentStore.visitDocuments() and close it when the walk is done.
+ *  - CSV: one file with a header; gzipped if its name ends with .gz. Dates are ISO 8601 (UTC).
+ *  - COLUMNAR: a folder with one gzipped file per column (url.gz, status.gz, extracted-status.gz,
+ *    updated-on.gz, size.gz, stored-size.gz), one value per line and all in the same order. Dates are milliseconds
+ *    since the epoch. Each column compresses much better on its own, and reading a single column
+ *    (e.g. scan(gzfile("status.gz"), what="")) does not go through the others.
+ * Missing values are empty (-1 for missing dates and sizes in COLUMNAR).
+ */
+public class DocumentExporter implements DocumentVisitor, Closeable {
+
+    public enum Format { CSV, COLUMNAR }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String[] COLUMNS = {"url", "status", "extracted-status", "updated-on", "size",
+            "stored-size"};
+
+    private final Format format;
+    private final Writer[] writers;
+    private final SimpleDateFormat dateFormat;
+    private long rows = 0;
+
+    /**
+     * @param target the file (CSV) or folder (COLUMNAR, created if needed) to write to
+     * @param format
+     * @throws IOException
+     */
+    public DocumentExporter(File target, Format format) throws IOException {
+        this.format = format;
+        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        if (format == Format.CSV) {
+            writers = new Writer[] {open(target, target.getName().endsWith(".gz"))};
+            writers[0].write(join(COLUMNS));
+        } else {
+            if (!target.isDirectory() && !target.mkdirs()) {
+                throw new IOException("Cannot create " + target);
+            }
+            writers = new Writer[COLUMNS.length];
+            for (int i = 0; i < COLUMNS.length; i++) {
+                writers[i] = open(new File(target, COLUMNS[i] + ".gz"), true);
+            }
+        }
+    }
+
+    @Override
+    public void visit(DocumentRecord record) throws IOException {
+        rows++;
+        if (format == Format.CSV) {
+            String[] fields = {
+                    csvField(record.getUrl().toString()),
+                    csvField(record.getOriginalStatus()),
+                    csvField(record.getExtractedStatus()),
+                    record.getUpdatedOn() >= 0 ? dateFormat.format(new Date(record.getUpdatedOn())) : "",
+                    record.getSize() >= 0 ? Long.toString(record.getSize()) : "",
+                    record.getStoredSize() >= 0 ? Long.toString(record.getStoredSize()) : ""};
+            writers[0].write(join(fields));
+        } else {
+            writeLine(writers[0], record.getUrl().toString());
+            writeLine(writers[1], record.getOriginalStatus());
+            writeLine(writers[2], record.getExtractedStatus());
+            writeLine(writers[3], Long.toString(record.getUpdatedOn()));
+            writeLine(writers[4], Long.toString(record.getSize()));
+            writeLine(writers[5], Long.toString(record.getStoredSize()));
+        }
+    }
+
+    /**
+     * @return the number of documents written
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Writer writer : writers) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Quotes value if it has commas, quotes or line breaks; null is the empty field
+     */
+    static String csvField(String value) {
+        if (value == null) {
+            return "";
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return '"' + value.replace("\"", "\"\"") + '"';
+            }
+        }
+        return value;
+    }
+
+    private static String join(String[] fields) {
+        StringBuilder row = new StringBuilder();
+        for (String field : fields) {
+            if (row.length() > 0) {
+                row.append(',');
+            }
+            row.append(field);
+        }
+        return row.append('\n').toString();
+    }
+
+    private static void writeLine(Writer writer, String value) throws IOException {
+        if (value != null) {
+            // urls are encoded and statuses are constants, so there are no line breaks to escape
+            writer.write(value);
+        }
+        writer.write('\n');
+    }
+
+    private static Writer open(File file, boolean gzip) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (gzip) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, UTF_8), BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,70 @@
+package repository;
+
+import java.net.URL;
+
+/**
+ * What the store knows about one document, without its content: read straight from the
+ * document (node or index entry) while DocumentStore.visitDocuments() walks the store, so that
+ * analysing all documents does not need one lookup per url and property.
+ */
+public class DocumentRecord {
+
+    private final URL url;
+    private final String originalStatus;
+    private final String extractedStatus;
+    private final long updatedOn;
+    private final long size;
+    private final long storedSize;
+
+    DocumentRecord(URL url, String originalStatus, String extractedStatus, long updatedOn, long size,
+                   long storedSize) {
+        this.url = url;
+        this.originalStatus = originalStatus;
+        this.extractedStatus = extractedStatus;
+        this.updatedOn = updatedOn;
+        this.size = size;
+        this.storedSize = storedSize;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the original status, STATUS_MISSING if there is none
+     */
+    public String getOriginalStatus() {
+        return originalStatus;
+    }
+
+    /**
+     * @return the extracted status, or null if there is none
+     */
+    public String getExtractedStatus() {
+        return extractedStatus;
+    }
+
+    /**
+     * @return the modification date (see DocumentStore.getModificationDate()), in milliseconds
+     * since the epoch, or -1 if there is none
+     */
+    public long getUpdatedOn() {
+        return updatedOn;
+    }
+
+    /**
+     * @return the length in bytes of the original content as it was fetched, whatever codec it
+     * is stored with, or -1 if there is no original content
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes stored for the original content (after compression, if the
+     * content was stored with a codec), or -1 if there is no original content
+     */
+    public long getStoredSize() {
+        return storedSize;
+    }
+}
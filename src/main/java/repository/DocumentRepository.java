@@ -1,92 +1,493 @@
 package repository;
 
+import metrics.MetricsRegistry;
+import org.apache.jackrabbit.api.management.DataStoreGarbageCollector;
+import org.apache.jackrabbit.commons.iterator.NodeIteratorAdapter;
+import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.TransientRepository;
 
 import javax.jcr.*;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryResult;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * Created by alejandrofernandez on 5/28/14.
+ *
+ * Besides the documents, the repo keeps a status index under /status_index: one node per
+ * original (and extracted) status, with a count and one child per document that has it.
+ * The index is updated by the same calls that set statuses, so counting documents by status
+ * takes constant time and iterating them does not need a query over every document node.
+ * Repositories created before the index existed keep working through queries until
+ * rebuildStatusIndex() is called on them.
+ *
+ * Documents are not direct children of /documents_home: they are spread over two levels
+ * of buckets, /documents_home/[host bucket]/[url bucket]/[encoded url]. Documents of the same
+ * host share the first level bucket (one of 256), and are spread over its 4096 url buckets,
+ * so a url bucket gets a few thousand documents for hosts with up to ten million urls or so.
+ * Repos sharded when url buckets had 2 hex digits keep their 256 url buckets (the width is
+ * recorded on /documents_home). The status index uses the same buckets.
+ * Repositories created with the old flat layout keep working (flat) until
+ * migrateToShardedLayout() is called on them. A repo whose migration was interrupted is
+ * half flat, half sharded: nothing but migrateToShardedLayout() works on it until it is done.
+ *
+ * Original and extracted content can be compressed (see setContentCodec()). The codec is
+ * recorded next to the content, in a [property]-codec property, and content is decompressed
+ * while it is read.
+ *
+ * Within a session, resolved document nodes and small properties (statuses, extractor and
+ * modification date) are kept in a bounded LRU cache, so that reading several properties
+ * of the same url does not walk the node tree every time. Writes go through the cache.
+ * Saves are timed in the default MetricsRegistry (repository.* metrics).
+ *
+ * For re-crawling, the repo also keeps a hash of the original content (computed while it is
+ * stored) and the http validators (ETag and Last-Modified) the server sent with it. Storing
+ * original content identical to the one already stored is a no-op.
+ *
+ * Crawls over the documents with a status can keep a CrawlJournal (under /crawl_journals) to
+ * resume where they stopped, and count failed attempts per document (see recordFailedAttempt()),
+ * with the time before which the document should not be tried again.
+ *
+ * For analysis over the whole repo, visitDocuments() walks every document once and hands its
+ * statuses, date and size to DocumentVisitors (DocumentStatistics, DocumentExporter).
+ *
+ * New repos get the repository.xml and indexing_configuration.xml shipped next to this class:
+ * the search index only keeps the statuses, the hash extractions were made from and the dates,
+ * which is all the queries use, so page bodies never go through Lucene. Full text indexing of the original and
+ * extracted content is opt-in (repository.fulltext system property, or setFullTextIndexing()).
  */
-public  class DocumentRepository {
+public  class DocumentRepository implements DocumentStore {
     private static final String EXTRACTED_CONTENT = "extracted-content";
     private static final String EXTRACTOR = "extractor";
+    private static final String EXTRACTED_FROM = "extracted-from";
     private static final String UPDATED_ON = "updated-on";
     private static final String ORIGINAL_CONTENT = "content";
+    private static final String CONTENT_HASH = "content-hash";
+    private static final String CONTENT_LENGTH = "content-length";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private static final String ATTEMPTS = "attempts";
+    private static final String NEXT_ATTEMPT = "next-attempt";
     private static final String UTF_8 = "UTF-8";
     private static final String DOCUMENTS_HOME = "documents_home";
     private static final String ORIGINAL_STATUS = "ORIGINAL_STATUS";
     private static final String EXTRACTED_STATUS = "EXTRACTED_STATUS";
-
-    public static final String STATUS_404 = "404";
-    public static final String STATUS_OK = "200";
-    public static final String STATUS_TIMED_OUT = "408";
-    public static final String STATUS_MISSING = "MISSING";
+    private static final String STATUS_INDEX = "status_index";
+    private static final String OLD_STATUS_INDEX = "status_index_old";
+    private static final String COUNT = "count";
+    private static final String DOCUMENTS_COUNT = "documents";
+    private static final int REINDEX_BATCH = 1000;
+    private static final String LAYOUT = "layout";
+    private static final String LAYOUT_SHARDED = "sharded";
+    private static final String LAYOUT_MIGRATING = "migrating";
+    /** Number of hex digits of the url buckets, recorded on the documents home (2 if it is not) */
+    private static final String URL_BUCKET_WIDTH = "url-bucket-width";
+    private static final int HOST_BUCKET_DIGITS = 2;
+    private static final int URL_BUCKET_DIGITS = 3;
+    private static final int BUCKET_LEVELS = 2;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String CODEC_SUFFIX = "-codec";
+    private static final String TEXT_SUFFIX = "-text";
+    private static final String FULL_TEXT = "fulltext";
+    private static final int DEFAULT_CACHE_ENTRIES = 100000;
+    private static final long DEFAULT_CACHE_BYTES = 64 * 1024 * 1024;
+    private static final int NODE_WEIGHT = 512;
+    private static final Object NO_VALUE = new Object();
+    private static final String CONFIGURATION = "repository.xml";
+    private static final String INDEXING_CONFIGURATION = "indexing_configuration.xml";
+    private static final String FULL_TEXT_INDEXING_CONFIGURATION = "indexing_configuration_fulltext.xml";
+    public static final String FULL_TEXT_PROPERTY = "repository.fulltext";
 
     TransientRepository repository;
+    File repoFolder;
+    boolean fullTextIndexing = Boolean.getBoolean(FULL_TEXT_PROPERTY);
     Session session;
     boolean sessionAvailable;
+    boolean sharded;
+    boolean migrating;
+    int urlBucketDigits = URL_BUCKET_DIGITS;
+    boolean textIndexed;
+    ContentCodec contentCodec = ContentCodec.IDENTITY;
+
+    Node documentsHomeNode;
+    Node statusIndexNode;
+    LruCache<Object> cache = new LruCache<Object>(DEFAULT_CACHE_ENTRIES, DEFAULT_CACHE_BYTES);
+    /** Documents with an extraction, by the hash it was made from, as this session sets them */
+    LruCache<Node> extractionsByHash = new LruCache<Node>(DEFAULT_CACHE_ENTRIES, DEFAULT_CACHE_BYTES);
+
+    boolean batching;
+    int batchSize;
+    long batchInterval;
+    long lastSave;
+    Set<String> pendingDocuments = new HashSet<String>();
+    MetricsRegistry metrics = MetricsRegistry.getDefault();
+    DocumentCursor.Decoder decoder = new DocumentCursor.Decoder() {
+        @Override
+        public URL decode(String name) throws RepositoryException {
+            return DocumentRepository.this.decode(name);
+        }
+    };
 
     /**
      * Sets up a repository based on the configuration available in
-     * repository.xml in the working directory
+     * repository.xml in repoFolder (installed on the first session if there is none)
      */
     public DocumentRepository(File repoFolder) {
+        this.repoFolder = repoFolder;
         repository = new TransientRepository(repoFolder);
         sessionAvailable = false;
     }
 
+    /**
+     * Whether new repos index the original and extracted content for full text search. Such
+     * repos keep a text copy of both next to the binaries (Jackrabbit does not get text out of
+     * them), as content-text and extracted-content-text. Repos that exist already keep the indexing
+     * configuration they were created with.
+     * @param fullTextIndexing
+     */
+    public void setFullTextIndexing(boolean fullTextIndexing) {
+        this.fullTextIndexing = fullTextIndexing;
+    }
+
     /**
      * Starts a repository session. All calls to set or get methods
      * should happen within sessions. Only one session is needed / possible.
      * @throws RepositoryException
      */
+    @Override
     public void startSession() throws RepositoryException {
         if (sessionAvailable) {
             throw new RepositoryException("Session already started");
         }
+        if (!new File(repoFolder, CONFIGURATION).exists()) {
+            installConfiguration();
+        }
         session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
         sessionAvailable = true;
+        clearCache();
+        migrating = false;
+        if (!session.getRootNode().hasNode(DOCUMENTS_HOME)) {
+            getDocumentsHomeNode();
+            session.save();
+        }
+        Node documentsHomeNode = session.getRootNode().getNode(DOCUMENTS_HOME);
+        String layout = documentsHomeNode.hasProperty(LAYOUT) ? documentsHomeNode.getProperty(LAYOUT).getString() : null;
+        sharded = LAYOUT_SHARDED.equals(layout);
+        migrating = LAYOUT_MIGRATING.equals(layout);
+        urlBucketDigits = documentsHomeNode.hasProperty(URL_BUCKET_WIDTH) ?
+                (int) documentsHomeNode.getProperty(URL_BUCKET_WIDTH).getLong() : 2;
+        textIndexed = documentsHomeNode.hasProperty(FULL_TEXT) && documentsHomeNode.getProperty(FULL_TEXT).getBoolean();
+    }
+
+    /**
+     * Copies the configuration of new repos into the repo folder, where Jackrabbit reads it.
+     * Each file is written aside and moved into place, repository.xml last, so a repo is only
+     * taken as configured once all of it is there; an install that died half way is done again.
+     * @throws RepositoryException
+     */
+    private void installConfiguration() throws RepositoryException {
+        try {
+            Files.createDirectories(repoFolder.toPath());
+            copyResource(fullTextIndexing ? FULL_TEXT_INDEXING_CONFIGURATION : INDEXING_CONFIGURATION,
+                    new File(repoFolder, INDEXING_CONFIGURATION));
+            copyResource(CONFIGURATION, new File(repoFolder, CONFIGURATION));
+        } catch (IOException e) {
+            throw new RepositoryException("Cannot install the configuration in " + repoFolder, e);
+        }
+    }
+
+    private static void copyResource(String name, File target) throws IOException {
+        InputStream in = DocumentRepository.class.getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Missing resource " + name);
+        }
+        Path temporary = Files.createTempFile(target.getParentFile().toPath(), target.getName(), ".tmp");
+        try {
+            Files.copy(in, temporary, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporary, target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            in.close();
+            Files.deleteIfExists(temporary);
+        }
     }
 
     /**
      * Ends the current session - only one session is needed / possible
      * @throws RepositoryException
      */
+    @Override
     public void endSession() throws RepositoryException {
         if (!sessionAvailable) {
              throw new RepositoryException("There is no session to end");
         }
+        if (batching) {
+            commitBatch();
+        }
         session.logout();
         sessionAvailable = false;
+        clearCache();
+    }
+
+    /**
+     * Sets the bounds of the cache of document nodes and small properties (and empties it)
+     * @param maxEntries maximum number of cached nodes and properties - 0 disables the cache
+     * @param maxBytes approximate maximum memory used by the cache
+     */
+    public void setCacheLimits(int maxEntries, long maxBytes) {
+        cache.resize(maxEntries, maxBytes);
+    }
+
+    /**
+     * @return how many lookups were answered by the cache since the repo was created
+     */
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * @return how many lookups had to go to the repo since the repo was created
+     */
+    public long getCacheMisses() {
+        return cache.getMisses();
     }
 
     /**
      * Closes all open session - not really necessary if you remember
-     * to end the session you opened.
+     * to end the session you opened. Changes still pending in a batch are saved first.
      */
+    @Override
     public void shutdown() {
+        if (sessionAvailable && batching) {
+            try {
+                commitBatch();
+            } catch (RepositoryException e) {
+                e.printStackTrace();
+            }
+        }
         repository.shutdown();
     }
 
+    /**
+     * Starts a batch. Until commitBatch() is called, set methods do not save every change
+     * they make; changes are saved together once maxDocuments different documents were
+     * changed or maxMillis milliseconds passed since the last save, whatever happens first.
+     * Changes not saved yet are visible to the get methods but not to queries (used by
+     * documentsByStatusIterator() only in repositories without a status index).
+     * Ending the session commits the batch.
+     * @param maxDocuments save after this many documents were changed - 0 means no limit
+     * @param maxMillis save after this many milliseconds - 0 means no limit
+     * @throws RepositoryException
+     */
+    @Override
+    public void beginBatch(int maxDocuments, long maxMillis) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        if (batching) {
+            throw new RepositoryException("Batch already started");
+        }
+        batching = true;
+        batchSize = maxDocuments;
+        batchInterval = maxMillis;
+        lastSave = System.currentTimeMillis();
+    }
+
+    /**
+     * Saves all pending changes and ends the current batch. From now on, every change is
+     * saved as it is made.
+     * @throws RepositoryException
+     */
+    @Override
+    public void commitBatch() throws RepositoryException {
+        if (!batching) {
+            throw new RepositoryException("There is no batch to commit");
+        }
+        flush();
+        batching = false;
+    }
+
+    /**
+     * Saves the changes pending in the current batch, if any
+     * @throws RepositoryException
+     */
+    @Override
+    public void flush() throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        if (session.hasPendingChanges()) {
+            save(pendingDocuments.size());
+        }
+        pendingDocuments.clear();
+        lastSave = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the number of documents changed but not saved yet
+     */
+    @Override
+    public int getPendingDocuments() {
+        return pendingDocuments.size();
+    }
+
+    /**
+     * Removes from the data store the binaries no document points to any more (replaced
+     * original or extracted content). Jackrabbit does not do it on its own. Every document
+     * node is visited, so it takes a while on large repos. Pending changes are saved first.
+     * Binaries this JVM still holds on to (written or read in the session, say) are left for
+     * a later run.
+     * @return the number of binaries removed
+     * @throws RepositoryException
+     */
+    public int collectGarbage() throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        flush();
+        DataStoreGarbageCollector collector = ((SessionImpl) session).createDataStoreGarbageCollector();
+        try {
+            collector.mark();
+            int removed = collector.sweep();
+            metrics.counter("repository.binaries.collected").add(removed);
+            return removed;
+        } finally {
+            collector.close();
+        }
+    }
+
+    /**
+     * Sets the codec used to store original and extracted content from now on. Content
+     * already stored keeps the codec it was written with, and can still be read.
+     * @param contentCodec IDENTITY (the default) stores content as it comes
+     */
+    @Override
+    public void setContentCodec(ContentCodec contentCodec) {
+        this.contentCodec = contentCodec;
+    }
+
+    @Override
+    public ContentCodec getContentCodec() {
+        return contentCodec;
+    }
+
     /**
      * Stores the string content for the URL. Sets the modification date to "now"
+     * If the original document exists with the very same content (same hash), nothing is
+     * written and the modification date is left as it was.
+     * An extraction made from other content (extracted content, extractor and extracted
+     * status) is dropped, so that the document is extracted again.
      * @param url The urls thar was used to retrieveAndStore "content"
      * @param content The string content of the document (html)
+     * @return true if the content changed (or is new), false if it was already stored
+     * @throws RepositoryException
+     */
+    @Override
+    public boolean setOriginalContent(URL url, String content) throws RepositoryException {
+        return setBinaryProperty(url, ORIGINAL_CONTENT, toStream(content));
+    }
+
+    /**
+     * Stores the content for the URL, reading it from a stream. The content goes straight
+     * to the data store (compressed on the way if there is a codec), it is never held in
+     * memory as a whole. The stream is closed.
+     * The data store keeps binaries by their hash, so content that is already stored for
+     * another url takes no more space. Replaced content stays in the data store until
+     * collectGarbage() removes it.
+     * Sets the modification date to "now", unless the content is the same that was stored.
+     * @param url The urls thar was used to retrieveAndStore "content"
+     * @param content The content of the document (html), encoded in UTF-8
+     * @return true if the content changed (or is new), false if it was already stored
+     * @throws RepositoryException
+     */
+    @Override
+    public boolean setOriginalContent(URL url, InputStream content) throws RepositoryException {
+        return setBinaryProperty(url, ORIGINAL_CONTENT, content);
+    }
+
+    /**
+     * Returns the hash (SHA-1, in hex) of the original content for the url, as it was
+     * before any codec was applied
+     * @param url
+     * @return the hash, or null if there is no original content (or it was stored by a version
+     * that did not record hashes)
+     * @throws RepositoryException
+     */
+    @Override
+    public String getContentHash(URL url) throws RepositoryException {
+        return getStringProperty(url, CONTENT_HASH);
+    }
+
+    /**
+     * Stores the http validators that came with the original content, to be sent back as
+     * If-None-Match / If-Modified-Since when the url is fetched again. Nothing is written if
+     * they did not change.
+     * @param url
+     * @param etag the ETag header, or null if there was none
+     * @param lastModified the Last-Modified header (as it came), or null if there was none
+     * @throws RepositoryException
+     */
+    @Override
+    public void setValidators(URL url, String etag, String lastModified) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node docNode = getOrCreateDocumentNode(url);
+        String oldEtag = docNode.hasProperty(ETAG) ? docNode.getProperty(ETAG).getString() : null;
+        String oldLastModified = docNode.hasProperty(LAST_MODIFIED) ? docNode.getProperty(LAST_MODIFIED).getString() : null;
+        if (equal(etag, oldEtag) && equal(lastModified, oldLastModified)) {
+            return;
+        }
+        docNode.setProperty(ETAG, etag);
+        docNode.setProperty(LAST_MODIFIED, lastModified);
+        cache.put(propertyKey(url, ETAG), etag != null ? etag : NO_VALUE, weight(etag));
+        cache.put(propertyKey(url, LAST_MODIFIED), lastModified != null ? lastModified : NO_VALUE, weight(lastModified));
+        touch(url, docNode);
+    }
+
+    /**
+     * @param url
+     * @return the ETag stored with setValidators(), or null
+     * @throws RepositoryException
+     */
+    @Override
+    public String getETag(URL url) throws RepositoryException {
+        return getStringProperty(url, ETAG);
+    }
+
+    /**
+     * @param url
+     * @return the Last-Modified header stored with setValidators(), or null
      * @throws RepositoryException
      */
-    public void setOriginalContent(URL url, String content) throws RepositoryException {
-        //TODO: what happens if original document exists?
-        setStringProperty(url, ORIGINAL_CONTENT, content);
+    @Override
+    public String getLastModified(URL url) throws RepositoryException {
+        return getStringProperty(url, LAST_MODIFIED);
     }
 
 
@@ -103,9 +504,126 @@ public  class DocumentRepository {
      * @param extractor  URL as a String for the extractor / or any other id
      * @throws RepositoryException
      */
+    @Override
     public void setExtractedContent(URL url, String extractedContent, String extractor) throws RepositoryException {
-        setStringProperty(url, EXTRACTED_CONTENT, extractedContent);
-        setStringProperty(url, EXTRACTOR, extractedContent);
+        setExtractedContent(url, toStream(extractedContent), extractor);
+    }
+
+    /**
+     * Same as above, but reading the extracted content from a stream (encoded in UTF-8).
+     * The stream is closed. The hash of the original content the extraction was made from is
+     * recorded with it.
+     * @param url
+     * @param extractedContent
+     * @param extractor  URL as a String for the extractor / or any other id
+     * @throws RepositoryException
+     */
+    @Override
+    public void setExtractedContent(URL url, InputStream extractedContent, String extractor) throws RepositoryException {
+        setBinaryProperty(url, EXTRACTED_CONTENT, extractedContent);
+        Node docNode = getOrCreateDocumentNode(url);
+        docNode.setProperty(EXTRACTED_FROM, docNode.hasProperty(CONTENT_HASH) ? docNode.getProperty(CONTENT_HASH).getString() : null);
+        setStringProperty(url, EXTRACTOR, extractor);
+        rememberExtraction(docNode);
+    }
+
+    /**
+     * Keeps docNode at hand for reuseExtraction(), which otherwise only finds saved documents
+     */
+    private void rememberExtraction(Node docNode) throws RepositoryException {
+        if (docNode.hasProperty(EXTRACTED_FROM)) {
+            extractionsByHash.put(docNode.getProperty(EXTRACTED_FROM).getString(), docNode, NODE_WEIGHT);
+        }
+    }
+
+    /**
+     * @return true if docNode still has a successful extraction made from contentHash
+     */
+    private boolean isExtractionOf(Node docNode, String contentHash) throws RepositoryException {
+        try {
+            return docNode.hasProperty(EXTRACTED_CONTENT) && docNode.hasProperty(EXTRACTED_FROM) &&
+                    docNode.getProperty(EXTRACTED_FROM).getString().equals(contentHash) &&
+                    docNode.hasProperty(EXTRACTED_STATUS) &&
+                    docNode.getProperty(EXTRACTED_STATUS).getString().equals(STATUS_OK);
+        } catch (InvalidItemStateException e) {
+            // removed since
+            return false;
+        }
+    }
+
+    /**
+     * @param url
+     * @return the id of the extractor that gave us the extracted content for the url, or null
+     * @throws RepositoryException
+     */
+    @Override
+    public String getExtractor(URL url) throws RepositoryException {
+        return getStringProperty(url, EXTRACTOR);
+    }
+
+    /**
+     * Looks for a document whose extraction was made from the same original content (the hash
+     * recorded with the extracted content, not the current content hash, which may have changed
+     * since) and was successful, and gives url its extracted content, extractor and extracted status.
+     * The extracted content is not copied: both documents point to the same binary of the
+     * data store. Documents extracted in this session are found first (saved or not, see
+     * rememberExtraction()), then through the search index, which only has saved ones.
+     * @param url
+     * @param contentHash
+     * @return false if there was no such document
+     * @throws RepositoryException
+     */
+    @Override
+    public boolean reuseExtraction(URL url, String contentHash) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        if (contentHash == null) {
+            return false;
+        }
+        Node source = extractionsByHash.get(contentHash);
+        if (source != null && !isExtractionOf(source, contentHash)) {
+            extractionsByHash.remove(contentHash);
+            source = null;
+        }
+        if (source == null) {
+            javax.jcr.query.QueryManager queryManager = session.getWorkspace().getQueryManager();
+            String expression = "SELECT * FROM [nt:unstructured] AS d WHERE ISDESCENDANTNODE(d, '/" +
+                    DOCUMENTS_HOME + "') AND d.[" + EXTRACTED_FROM + "] = $hash AND d.[" + EXTRACTED_STATUS +
+                    "] = '" + STATUS_OK + "'";
+            Query query = queryManager.createQuery(expression, Query.JCR_SQL2);
+            query.bindValue("hash", session.getValueFactory().createValue(contentHash));
+            query.setLimit(1);
+            NodeIterator nodes = query.execute().getNodes();
+            if (!nodes.hasNext()) {
+                return false;
+            }
+            source = nodes.nextNode();
+            if (!isExtractionOf(source, contentHash)) {
+                return false;
+            }
+            rememberExtraction(source);
+        }
+        Node docNode = getOrCreateDocumentNode(url);
+        if (source.isSame(docNode)) {
+            return true;
+        }
+        docNode.setProperty(EXTRACTED_CONTENT, source.getProperty(EXTRACTED_CONTENT).getBinary());
+        if (source.hasProperty(EXTRACTED_CONTENT + CODEC_SUFFIX)) {
+            docNode.setProperty(EXTRACTED_CONTENT + CODEC_SUFFIX, source.getProperty(EXTRACTED_CONTENT + CODEC_SUFFIX).getString());
+        } else if (docNode.hasProperty(EXTRACTED_CONTENT + CODEC_SUFFIX)) {
+            docNode.getProperty(EXTRACTED_CONTENT + CODEC_SUFFIX).remove();
+        }
+        if (source.hasProperty(EXTRACTED_CONTENT + TEXT_SUFFIX)) {
+            docNode.setProperty(EXTRACTED_CONTENT + TEXT_SUFFIX, source.getProperty(EXTRACTED_CONTENT + TEXT_SUFFIX).getString());
+        } else if (docNode.hasProperty(EXTRACTED_CONTENT + TEXT_SUFFIX)) {
+            docNode.getProperty(EXTRACTED_CONTENT + TEXT_SUFFIX).remove();
+        }
+        docNode.setProperty(EXTRACTED_FROM, contentHash);
+        setStringProperty(url, EXTRACTOR, source.hasProperty(EXTRACTOR) ? source.getProperty(EXTRACTOR).getString() : null);
+        setStringProperty(url, EXTRACTED_STATUS, STATUS_OK);
+        metrics.counter("repository.extractions.reused").increment();
+        return true;
     }
 
     /**
@@ -114,11 +632,38 @@ public  class DocumentRepository {
      * @return
      * @throws RepositoryException
      */
+    @Override
     public boolean hasOriginalContent(URL url) throws RepositoryException {
-        String encodedUrl = encode(url);
+        if (cache.contains(url.toString())) {
+            return true;
+        }
+        String documentPath = documentPath(url);
 
         Node root = getDocumentsHomeNode();
-        return root.hasNode(encodedUrl);
+        return root.hasNode(documentPath);
+    }
+
+    /**
+     * Checks a whole batch of urls at once and returns those that the repo knows nothing
+     * about (no content, no status, nothing). Cheaper than calling hasOriginalContent() for
+     * each of them.
+     * @param urls
+     * @return the urls without a document in the repo, in the same order
+     * @throws RepositoryException
+     */
+    @Override
+    public List<URL> missingDocuments(Collection<URL> urls) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node documentsHomeNode = getDocumentsHomeNode();
+        List<URL> missing = new ArrayList<URL>();
+        for (URL url : urls) {
+            if (!cache.contains(url.toString()) && !documentsHomeNode.hasNode(documentPath(url))) {
+                missing.add(url);
+            }
+        }
+        return missing;
     }
 
     /**
@@ -127,8 +672,21 @@ public  class DocumentRepository {
      * @return the string content for the URL (HTML)
      * @throws RepositoryException
      */
+    @Override
     public String getOriginalContent(URL url) throws RepositoryException {
-        return getStringProperty(url, ORIGINAL_CONTENT);
+        return getContentProperty(url, ORIGINAL_CONTENT);
+    }
+
+    /**
+     * Opens a stream over the content for the URL (HTML, encoded in UTF-8).
+     * The caller must close it.
+     * @param url
+     * @return a stream over the content for the URL, or null if there is none
+     * @throws RepositoryException
+     */
+    @Override
+    public InputStream getOriginalContentStream(URL url) throws RepositoryException {
+        return getStreamProperty(url, ORIGINAL_CONTENT);
     }
 
     /**
@@ -137,8 +695,21 @@ public  class DocumentRepository {
      * @return The string content that an extractor gave us for the url
      * @throws RepositoryException
      */
+    @Override
     public String getExtractedContent(URL url) throws RepositoryException {
-        return getStringProperty(url, EXTRACTED_CONTENT);
+        return getContentProperty(url, EXTRACTED_CONTENT);
+    }
+
+    /**
+     * Opens a stream over the content that an extractor gave us for the url (encoded in UTF-8).
+     * The caller must close it.
+     * @param url
+     * @return a stream over the extracted content, or null if there is none
+     * @throws RepositoryException
+     */
+    @Override
+    public InputStream getExtractedContentStream(URL url) throws RepositoryException {
+        return getStreamProperty(url, EXTRACTED_CONTENT);
     }
 
     /**
@@ -148,12 +719,18 @@ public  class DocumentRepository {
      * @return
      * @throws RepositoryException
      */
+    @Override
     public Calendar getModificationDate(URL url) throws RepositoryException {
         if (! sessionAvailable) {
             throw new RepositoryException("No session available");
         }
-        Node node = getDocumentNode(url);
-        return node.getProperty(UPDATED_ON).getDate();
+        String key = propertyKey(url, UPDATED_ON);
+        Calendar date = (Calendar) cache.get(key);
+        if (date == null) {
+            date = getDocumentNode(url).getProperty(UPDATED_ON).getDate();
+            cache.put(key, date, NODE_WEIGHT);
+        }
+        return (Calendar) date.clone();
 
     }
 
@@ -164,6 +741,7 @@ public  class DocumentRepository {
      * @param status a String (one of the constants)
      * @throws RepositoryException
      */
+    @Override
     public void setOriginalStatus(URL url, String status) throws RepositoryException {
         setStringProperty(url, ORIGINAL_STATUS, status );
    }
@@ -174,6 +752,7 @@ public  class DocumentRepository {
      * @return
      * @throws RepositoryException
      */
+    @Override
     public String getOriginalStatus(URL url) throws RepositoryException {
 
         String stringProperty = getStringProperty(url, ORIGINAL_STATUS);
@@ -187,8 +766,12 @@ public  class DocumentRepository {
      * @param status a String (one of the constants)
      * @throws RepositoryException
      */
+    @Override
     public void setExtractedStatus(URL url, String status) throws RepositoryException {
         setStringProperty(url, EXTRACTED_STATUS, status );
+        if (STATUS_OK.equals(status)) {
+            rememberExtraction(getDocumentNode(url));
+        }
    }
 
     /**
@@ -197,6 +780,7 @@ public  class DocumentRepository {
      * @return
      * @throws RepositoryException
      */
+    @Override
     public String getExtractedStatus(URL url) throws RepositoryException {
         return getStringProperty(url, EXTRACTED_STATUS);
     }
@@ -208,134 +792,1101 @@ public  class DocumentRepository {
      * status, etc.)
      * @throws RepositoryException
      */
+    @Override
     public Iterator<URL> documentsIterator() throws RepositoryException {
         if (! sessionAvailable) {
             throw new RepositoryException("No session available");
         }
         Node documentsHomeNode = getDocumentsHomeNode();
-        final NodeIterator nodeIterator = documentsHomeNode.getNodes();
+        final NodeIterator nodeIterator = getLeafNodes(documentsHomeNode);
 
         Iterator<URL> urlIterator = getIteratorWrapper(nodeIterator);
         return urlIterator;
     }
 
-
     /**
-     * An iterator only for documents with a given status
-     * @param status (original document)
-     * @return
+     * Same as documentsIterator(), reading batchSize document nodes at a time
+     * @param batchSize
+     * @return a cursor over the URLs of all documents
      * @throws RepositoryException
      */
-    public Iterator<URL> documentsByStatusIterator(String status) throws RepositoryException {
+    @Override
+    public DocumentCursor documentsCursor(int batchSize) throws RepositoryException {
         if (! sessionAvailable) {
             throw new RepositoryException("No session available");
         }
-
-        javax.jcr.query.QueryManager queryManager = session.getWorkspace().getQueryManager();
-        String selector = "(ORIGINAL_STATUS  ='" + status + "')";
-        if (status.equals(STATUS_MISSING)) {
-            selector = "((ORIGINAL_STATUS IS NULL) OR (ORIGINAL_STATUS = '" + STATUS_MISSING + "'))";
-        }
-
-       String expression = "SELECT * from nt:unstructured\n" +
-                "where (jcr:path LIKE '/documents_home/%') AND " + selector ;
-
-        javax.jcr.query.Query query = queryManager.createQuery(expression, Query.SQL);
-        QueryResult result = query.execute();
-
-        final NodeIterator nodeIterator = result.getNodes();
-
-        Iterator<URL> urlIterator = getIteratorWrapper(nodeIterator);
-        return urlIterator;
+        return new DocumentCursor(names(getLeafNodes(getDocumentsHomeNode())), decoder, batchSize);
     }
 
-    private Iterator<URL> getIteratorWrapper(final NodeIterator nodeIterator) {
-        return new Iterator<URL>() {
-            @Override
-            public boolean hasNext() {
-                return nodeIterator.hasNext();
-            }
-
-            @Override
-            public URL next() {
-                Node node = nodeIterator.nextNode();
-                try {
-                    return new URL(URLDecoder.decode(node.getName(), UTF_8));
-                } catch (MalformedURLException e) {
-                    e.printStackTrace();
-                } catch (RepositoryException e) {
-                    e.printStackTrace();
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-                return null;
-            }
-
-            @Override
-            public void remove() {
-                nodeIterator.remove();
+    /**
+     * Walks all documents once, reading their statuses, modification date and content size
+     * straight from each document node (no lookup per url, and the cache is left alone), and
+     * hands every document to each of the visitors. Use it for analysis over the whole repo.
+     * @param visitors e.g. a DocumentStatistics and a DocumentExporter, to do both in one walk
+     * @throws RepositoryException
+     * @throws IOException if a visitor fails
+     */
+    @Override
+    public void visitDocuments(DocumentVisitor... visitors) throws RepositoryException, IOException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        NodeIterator nodeIterator = getLeafNodes(getDocumentsHomeNode());
+        while (nodeIterator.hasNext()) {
+            Node node = nodeIterator.nextNode();
+            DocumentRecord record = new DocumentRecord(decode(node.getName()),
+                    node.hasProperty(ORIGINAL_STATUS) ? node.getProperty(ORIGINAL_STATUS).getString() : STATUS_MISSING,
+                    node.hasProperty(EXTRACTED_STATUS) ? node.getProperty(EXTRACTED_STATUS).getString() : null,
+                    node.hasProperty(UPDATED_ON) ? node.getProperty(UPDATED_ON).getDate().getTimeInMillis() : -1,
+                    contentLength(node),
+                    node.hasProperty(ORIGINAL_CONTENT) ? node.getProperty(ORIGINAL_CONTENT).getLength() : -1);
+            for (DocumentVisitor visitor : visitors) {
+                visitor.visit(record);
             }
-        };
+        }
     }
 
+    /**
+     * @return the length of the original content of node before any codec, -1 if there is none
+     */
+    private long contentLength(Node node) throws RepositoryException, IOException {
+        if (!node.hasProperty(ORIGINAL_CONTENT)) {
+            return -1;
+        }
+        if (node.hasProperty(CONTENT_LENGTH)) {
+            return node.getProperty(CONTENT_LENGTH).getLong();
+        }
+        if (!node.hasProperty(ORIGINAL_CONTENT + CODEC_SUFFIX)) {
+            return node.getProperty(ORIGINAL_CONTENT).getLength();
+        }
+        // compressed before lengths were recorded
+        return ContentCodec.forId(node.getProperty(ORIGINAL_CONTENT + CODEC_SUFFIX).getString())
+                .decodedLength(node.getProperty(ORIGINAL_CONTENT).getBinary().getStream());
+    }
 
-    private void setStringProperty(URL url, String property, String content) throws RepositoryException {
-        if (! sessionAvailable) {
-            throw new RepositoryException("No session available");
+    /**
+     * Counts all documents by status, host and date, in one walk (see visitDocuments())
+     * @return
+     * @throws RepositoryException
+     */
+    @Override
+    public DocumentStatistics computeStatistics() throws RepositoryException {
+        DocumentStatistics statistics = new DocumentStatistics();
+        try {
+            visitDocuments(statistics);
+        } catch (IOException e) {
+            throw new RepositoryException("Problems computing statistics", e);
         }
-        Node docNode = getOrCreateDocumentNode(url);
-        docNode.setProperty(property, content);
-        docNode.setProperty(UPDATED_ON, Calendar.getInstance());
-        session.save();
+        return statistics;
     }
 
 
-    private String getStringProperty(URL url, String property) throws RepositoryException {
+    /**
+     * An iterator only for documents with a given status
+     * @param status (original document)
+     * @return
+     * @throws RepositoryException
+     */
+    @Override
+    public Iterator<URL> documentsByStatusIterator(String status) throws RepositoryException {
         if (! sessionAvailable) {
             throw new RepositoryException("No session available");
         }
-        Node node = getDocumentNode(url);
-        if (node.hasProperty(property)) {
-            return node.getProperty(property).getString();
+        return getIteratorWrapper(nodesByStatus(status));
+    }
+
+    /**
+     * Same as documentsByStatusIterator(), reading batchSize document nodes at a time
+     * @param status (original document)
+     * @param batchSize
+     * @return
+     * @throws RepositoryException
+     */
+    @Override
+    public DocumentCursor documentsByStatusCursor(String status, int batchSize) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        return new DocumentCursor(names(nodesByStatus(status)), decoder, batchSize);
+    }
+
+    private NodeIterator nodesByStatus(String status) throws RepositoryException {
+        Node statusNode = getStatusNode(ORIGINAL_STATUS, status, false);
+        if (statusNode != null) {
+            return getLeafNodes(statusNode);
+        }
+        if (hasStatusIndex()) {
+            return NodeIteratorAdapter.EMPTY;
+        }
+        return queryByStatus(ORIGINAL_STATUS, status);
+    }
+
+    /**
+     * Same as above, but for a crawl that keeps a journal. The iterator starts after the cursor
+     * of the journal (the buckets before it were read by an earlier run) and skips the urls that
+     * are pending in the journal (the crawl gets those from journal.getPending()). Every url it
+     * returns is added to the pending urls of the journal, and the cursor is moved forward as
+     * buckets are read completely.
+     * Without buckets (old flat layout, or no status index) there is no cursor and the whole
+     * status is read again, skipping the pending urls.
+     * @param status (original document)
+     * @param journal
+     * @return
+     * @throws RepositoryException
+     */
+    @Override
+    public Iterator<URL> documentsByStatusIterator(String status, CrawlJournal crawlJournal)
+            throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        if (!(crawlJournal instanceof JcrCrawlJournal)) {
+            throw new RepositoryException("Not a journal of this repository");
+        }
+        final JcrCrawlJournal journal = (JcrCrawlJournal) crawlJournal;
+        Node statusNode = getStatusNode(ORIGINAL_STATUS, status, false);
+        final BucketNodeIterator buckets;
+        final Iterator<URL> urls;
+        if (statusNode != null && sharded) {
+            String cursor = journal.getCursor();
+            buckets = new BucketNodeIterator(statusNode, BUCKET_LEVELS,
+                    cursor != null && statusNode.hasNode(cursor) ? cursor : null);
+            urls = getIteratorWrapper(new NodeIteratorAdapter(buckets));
         } else {
+            buckets = null;
+            urls = documentsByStatusIterator(status);
+        }
+        return new Iterator<URL>() {
+            String bucket;
+            URL next;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (next == null && urls.hasNext()) {
+                        URL url = urls.next();
+                        if (buckets != null) {
+                            if (bucket != null && !bucket.equals(buckets.getBucketPath())) {
+                                journal.setCursor(bucket);
+                            }
+                            bucket = buckets.getBucketPath();
+                        }
+                        if (!journal.isPending(url)) {
+                            journal.addPending(url);
+                            next = url;
+                        }
+                    }
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException(e);
+                }
+                return next != null;
+            }
+
+            @Override
+            public URL next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                URL url = next;
+                next = null;
+                return url;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Opens the journal of the crawl with the given name, creating it if there is none (a new
+     * crawl) or picking up the one left by an earlier run (a resumed crawl).
+     * @param name e.g. the operation and the status it works on
+     * @return
+     * @throws RepositoryException
+     */
+    @Override
+    public CrawlJournal openCrawlJournal(String name) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node root = session.getRootNode();
+        Node journals = root.hasNode(JcrCrawlJournal.JOURNALS) ?
+                root.getNode(JcrCrawlJournal.JOURNALS) : root.addNode(JcrCrawlJournal.JOURNALS);
+        String journalName = encode(name);
+        if (journals.hasNode(journalName)) {
+            return new JcrCrawlJournal(this, journals.getNode(journalName), true);
+        }
+        return new JcrCrawlJournal(this, JcrCrawlJournal.create(journals, journalName), false);
+    }
+
+    /**
+     * Counts one more failed attempt (time out, server error...) to get the url
+     * @param url
+     * @return the number of failed attempts in a row, this one included
+     * @throws RepositoryException
+     */
+    @Override
+    public int recordFailedAttempt(URL url) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node docNode = getOrCreateDocumentNode(url);
+        long attempts = docNode.hasProperty(ATTEMPTS) ? docNode.getProperty(ATTEMPTS).getLong() + 1 : 1;
+        docNode.setProperty(ATTEMPTS, attempts);
+        touch(url, docNode);
+        return (int) attempts;
+    }
+
+    /**
+     * Forgets the failed attempts to get the url (after a successful one), and when to try
+     * again. Nothing is written if there were none.
+     * @param url
+     * @throws RepositoryException
+     */
+    @Override
+    public void clearAttempts(URL url) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node docNode = getDocumentNode(url);
+        if (docNode.hasProperty(ATTEMPTS) || docNode.hasProperty(NEXT_ATTEMPT)) {
+            if (docNode.hasProperty(ATTEMPTS)) {
+                docNode.getProperty(ATTEMPTS).remove();
+            }
+            if (docNode.hasProperty(NEXT_ATTEMPT)) {
+                docNode.getProperty(NEXT_ATTEMPT).remove();
+            }
+            touch(url, docNode);
+        }
+    }
+
+    /**
+     * Records when the url may be tried again, after a failed attempt
+     * @param url
+     * @param nextAttempt
+     * @throws RepositoryException
+     */
+    @Override
+    public void setNextAttempt(URL url, Calendar nextAttempt) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node docNode = getOrCreateDocumentNode(url);
+        docNode.setProperty(NEXT_ATTEMPT, nextAttempt);
+        touch(url, docNode);
+    }
+
+    /**
+     * @param url
+     * @return the time before which the url should not be tried again, or null if it can be
+     * tried any time
+     * @throws RepositoryException
+     */
+    @Override
+    public Calendar getNextAttempt(URL url) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node docNode = getDocumentNode(url);
+        return docNode.hasProperty(NEXT_ATTEMPT) ? docNode.getProperty(NEXT_ATTEMPT).getDate() : null;
+    }
+
+    /**
+     * @param url
+     * @return the number of failed attempts in a row to get the url
+     * @throws RepositoryException
+     */
+    @Override
+    public int getAttempts(URL url) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node docNode = getDocumentNode(url);
+        return docNode.hasProperty(ATTEMPTS) ? (int) docNode.getProperty(ATTEMPTS).getLong() : 0;
+    }
+
+    /**
+     * An iterator only for documents with a given extracted status.
+     * Documents without an extracted status are not in the status index, so iterating
+     * over STATUS_MISSING always needs a query.
+     * @param status (extracted document)
+     * @return
+     * @throws RepositoryException
+     */
+    @Override
+    public Iterator<URL> documentsByExtractedStatusIterator(String status) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        if (hasStatusIndex() && !status.equals(STATUS_MISSING)) {
+            Node statusNode = getStatusNode(EXTRACTED_STATUS, status, false);
+            return getIteratorWrapper(statusNode != null ? getLeafNodes(statusNode) : NodeIteratorAdapter.EMPTY);
+        }
+        return getIteratorWrapper(queryByStatus(EXTRACTED_STATUS, status));
+    }
+
+    /**
+     * Returns the number of documents with the given original status. Constant time if
+     * the repo has a status index.
+     * @param status
+     * @return
+     * @throws RepositoryException
+     */
+    @Override
+    public long countByOriginalStatus(String status) throws RepositoryException {
+        return countByStatus(ORIGINAL_STATUS, status);
+    }
+
+    /**
+     * Returns the number of documents with the given extracted status. Constant time if
+     * the repo has a status index.
+     * @param status
+     * @return
+     * @throws RepositoryException
+     */
+    @Override
+    public long countByExtractedStatus(String status) throws RepositoryException {
+        return countByStatus(EXTRACTED_STATUS, status);
+    }
+
+    /**
+     * Returns the number of documents in the repo. Constant time if the repo has a status index.
+     * @return
+     * @throws RepositoryException
+     */
+    @Override
+    public long countDocuments() throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        if (hasStatusIndex()) {
+            return getStatusIndexNode().getProperty(DOCUMENTS_COUNT).getLong();
+        }
+        return count(getLeafNodes(getDocumentsHomeNode()));
+    }
+
+    /**
+     * Returns true if the repo keeps a status index (all repos created with this version do)
+     * @return
+     * @throws RepositoryException
+     */
+    public boolean hasStatusIndex() throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        return getStatusIndexNode() != null;
+    }
+
+    /**
+     * Builds the status index from scratch, going once over all documents. Use it to
+     * migrate repositories created before the index existed. The old index is moved out of
+     * the way and deleted a REINDEX_BATCH nodes at a time, and the new one saved every
+     * REINDEX_BATCH documents, so memory does not grow with the size of the repo.
+     * @throws RepositoryException
+     */
+    public void rebuildStatusIndex() throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node root = session.getRootNode();
+        if (root.hasNode(STATUS_INDEX)) {
+            session.move(root.getNode(STATUS_INDEX).getPath(), "/" + OLD_STATUS_INDEX);
+            statusIndexNode = null;
+            session.save();
+        }
+        if (root.hasNode(OLD_STATUS_INDEX)) {
+            // also what an interrupted rebuild left
+            removeInBatches(root.getNode(OLD_STATUS_INDEX), 0);
+            session.save();
+        }
+        createStatusIndex(root);
+        session.save();
+        int pending = 0;
+        NodeIterator documents = getLeafNodes(getDocumentsHomeNode());
+        while (documents.hasNext()) {
+            Node docNode = documents.nextNode();
+            indexNewDocument(docNode);
+            for (String property : new String[] {ORIGINAL_STATUS, EXTRACTED_STATUS}) {
+                if (docNode.hasProperty(property)) {
+                    moveIndexEntry(property, docNode, STATUS_MISSING,
+                            docNode.getProperty(property).getString());
+                }
+            }
+            if (++pending >= REINDEX_BATCH) {
+                session.save();
+                pending = 0;
+            }
+        }
+        session.save();
+    }
+
+    /**
+     * Removes node and everything under it, children first, saving every REINDEX_BATCH nodes
+     * @return the nodes removed and not saved yet
+     */
+    private int removeInBatches(Node node, int pending) throws RepositoryException {
+        NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            pending = removeInBatches(children.nextNode(), pending);
+        }
+        node.remove();
+        if (++pending >= REINDEX_BATCH) {
+            session.save();
+            pending = 0;
+        }
+        return pending;
+    }
+
+    /**
+     * Returns true if documents are stored in buckets (all repos created with this version are)
+     * @return
+     * @throws RepositoryException
+     */
+    public boolean isSharded() throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        return sharded;
+    }
+
+    /**
+     * Moves every document of a repo created with the old flat layout into its bucket and
+     * rebuilds the status index. Saves every REINDEX_BATCH documents. The repo is marked as
+     * migrating before the first move, and as sharded once the index is rebuilt; in between,
+     * every other operation fails (see getDocumentsHomeNode()). If it is interrupted, calling
+     * it again picks up where it stopped.
+     * @throws RepositoryException
+     */
+    public void migrateToShardedLayout() throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        if (sharded) {
+            return;
+        }
+        migrating = false;
+        boolean done = false;
+        try {
+            Node documentsHomeNode = getDocumentsHomeNode();
+            if (!documentsHomeNode.hasProperty(URL_BUCKET_WIDTH)) {
+                documentsHomeNode.setProperty(URL_BUCKET_WIDTH, URL_BUCKET_DIGITS);
+            }
+            urlBucketDigits = (int) documentsHomeNode.getProperty(URL_BUCKET_WIDTH).getLong();
+            documentsHomeNode.setProperty(LAYOUT, LAYOUT_MIGRATING);
+            session.save();
+            NodeIterator documents = documentsHomeNode.getNodes();
+            sharded = true;
+            cache.clear();
+            int pending = 0;
+            while (documents.hasNext()) {
+                Node docNode = documents.nextNode();
+                if (docNode.getName().length() == HOST_BUCKET_DIGITS) {
+                    // a bucket left by an interrupted migration
+                    continue;
+                }
+                String documentPath = documentPath(decode(docNode.getName()));
+                Node bucket = getOrCreateBucket(documentsHomeNode, documentPath);
+                session.move(docNode.getPath(), bucket.getPath() + "/" + docNode.getName());
+                if (++pending >= REINDEX_BATCH) {
+                    session.save();
+                    pending = 0;
+                }
+            }
+            session.save();
+            rebuildStatusIndex();
+            documentsHomeNode.setProperty(LAYOUT, LAYOUT_SHARDED);
+            session.save();
+            done = true;
+        } finally {
+            if (!done) {
+                sharded = false;
+                migrating = true;
+                cache.clear();
+            }
+        }
+    }
+
+    private NodeIterator queryByStatus(String property, String status) throws RepositoryException {
+        javax.jcr.query.QueryManager queryManager = session.getWorkspace().getQueryManager();
+        String selector = "(" + property + "  ='" + status + "')";
+        if (status.equals(STATUS_MISSING)) {
+            selector = "((" + property + " IS NULL) OR (" + property + " = '" + STATUS_MISSING + "'))";
+        }
+
+       String expression = "SELECT * from nt:unstructured\n" +
+                "where (jcr:path LIKE '/documents_home/%') AND " + selector ;
+
+        javax.jcr.query.Query query = queryManager.createQuery(expression, Query.SQL);
+        QueryResult result = query.execute();
+
+        // bucket nodes match the query too, only nodes at the depth of documents are wanted
+        final NodeIterator nodes = result.getNodes();
+        final int documentDepth = getDocumentsHomeNode().getDepth() + 1 + (sharded ? BUCKET_LEVELS : 0);
+        return new NodeIteratorAdapter(new Iterator<Node>() {
+            Node next;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (next == null && nodes.hasNext()) {
+                        Node node = nodes.nextNode();
+                        if (node.getDepth() == documentDepth) {
+                            next = node;
+                        }
+                    }
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException(e);
+                }
+                return next != null;
+            }
+
+            @Override
+            public Node next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Node node = next;
+                next = null;
+                return node;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    private long countByStatus(String property, String status) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        if (!hasStatusIndex()) {
+            return count(queryByStatus(property, status));
+        }
+        if (!isIndexed(property, status)) {
+            long count = getStatusIndexNode().getProperty(DOCUMENTS_COUNT).getLong();
+            NodeIterator statuses = getStatusIndexNode().getNode(property).getNodes();
+            while (statuses.hasNext()) {
+                count -= statuses.nextNode().getProperty(COUNT).getLong();
+            }
+            return count;
+        }
+        Node statusNode = getStatusNode(property, status, false);
+        return statusNode != null ? statusNode.getProperty(COUNT).getLong() : 0;
+    }
+
+    private long count(NodeIterator nodeIterator) {
+        long count = 0;
+        while (nodeIterator.hasNext()) {
+            nodeIterator.nextNode();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Nodes are read one at a time, as they are asked for: callers that follow the position of the
+     * node iterator (as the journal iterator does with buckets) see it where they expect it.
+     * Nodes with names that are not urls are skipped (see DocumentCursor).
+     */
+    private Iterator<URL> getIteratorWrapper(final NodeIterator nodeIterator) {
+        return new DocumentCursor(names(nodeIterator), decoder, 1);
+    }
+
+    private Iterator<String> names(final NodeIterator nodeIterator) {
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return nodeIterator.hasNext();
+            }
+
+            @Override
+            public String next() {
+                try {
+                    return nodeIterator.nextNode().getName();
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+
+    private void setStringProperty(URL url, String property, String content) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node docNode = getOrCreateDocumentNode(url);
+        if (property.equals(ORIGINAL_STATUS) || property.equals(EXTRACTED_STATUS)) {
+            String old = docNode.hasProperty(property) ? docNode.getProperty(property).getString() : STATUS_MISSING;
+            moveIndexEntry(property, docNode, old, content);
+        }
+        docNode.setProperty(property, content);
+        if (isCached(property)) {
+            cache.put(propertyKey(url, property), content != null ? content : NO_VALUE, weight(content));
+        }
+        touch(url, docNode);
+    }
+
+    /**
+     * Sets the modification date of docNode to "now", and saves (or not, if batching)
+     */
+    private void touch(URL url, Node docNode) throws RepositoryException {
+        Calendar now = Calendar.getInstance();
+        docNode.setProperty(UPDATED_ON, now);
+        cache.put(propertyKey(url, UPDATED_ON), now, NODE_WEIGHT);
+        saveChanges(docNode.getName());
+    }
+
+    /**
+     * The original content is hashed on its way to the data store; if the hash is the one
+     * already recorded the new binary is dropped and nothing changes. If it is not the one the
+     * extraction was made from, the extraction is dropped.
+     * @return false if nothing changed
+     */
+    private boolean setBinaryProperty(URL url, String property, InputStream content) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node docNode = getOrCreateDocumentNode(url);
+        MessageDigest digest = null;
+        ContentCodec.CountingInputStream counting = null;
+        if (property.equals(ORIGINAL_CONTENT)) {
+            try {
+                digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RepositoryException("Problems hashing content", e);
+            }
+            counting = new ContentCodec.CountingInputStream(new DigestInputStream(content, digest));
+            content = counting;
+        }
+        Binary binary;
+        try {
+            binary = session.getValueFactory().createBinary(contentCodec.encode(content));
+        } catch (IOException e) {
+            throw new RepositoryException("Problems encoding content", e);
+        } finally {
+            try {
+                content.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (digest != null) {
+            String hash = toHex(digest.digest());
+            if (docNode.hasProperty(property) && docNode.hasProperty(CONTENT_HASH) &&
+                    docNode.getProperty(CONTENT_HASH).getString().equals(hash)) {
+                binary.dispose();
+                return false;
+            }
+            docNode.setProperty(CONTENT_HASH, hash);
+            docNode.setProperty(CONTENT_LENGTH, counting.count);
+            if (!hash.equals(docNode.hasProperty(EXTRACTED_FROM) ? docNode.getProperty(EXTRACTED_FROM).getString() : null)) {
+                dropExtraction(url, docNode);
+            }
+        }
+        docNode.setProperty(property, binary);
+        if (contentCodec != ContentCodec.IDENTITY) {
+            docNode.setProperty(property + CODEC_SUFFIX, contentCodec.getId());
+        } else if (docNode.hasProperty(property + CODEC_SUFFIX)) {
+            docNode.getProperty(property + CODEC_SUFFIX).remove();
+        }
+        if (textIndexed) {
+            docNode.setProperty(property + TEXT_SUFFIX, getContentProperty(url, property));
+        }
+        touch(url, docNode);
+        return true;
+    }
+
+    /**
+     * Forgets the extraction of a document, so that it is extracted again
+     */
+    private void dropExtraction(URL url, Node docNode) throws RepositoryException {
+        if (docNode.hasProperty(EXTRACTED_STATUS)) {
+            moveIndexEntry(EXTRACTED_STATUS, docNode, docNode.getProperty(EXTRACTED_STATUS).getString(), STATUS_MISSING);
+        } else if (!docNode.hasProperty(EXTRACTED_CONTENT)) {
+            return;
+        }
+        for (String property : new String[] {EXTRACTED_STATUS, EXTRACTED_CONTENT, EXTRACTED_CONTENT + CODEC_SUFFIX,
+                EXTRACTED_CONTENT + TEXT_SUFFIX, EXTRACTOR, EXTRACTED_FROM}) {
+            if (docNode.hasProperty(property)) {
+                docNode.getProperty(property).remove();
+            }
+        }
+        cache.put(propertyKey(url, EXTRACTED_STATUS), NO_VALUE, weight(null));
+        cache.put(propertyKey(url, EXTRACTOR), NO_VALUE, weight(null));
+        metrics.counter("repository.extractions.dropped").increment();
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private InputStream toStream(String content) throws RepositoryException {
+        try {
+            return new ByteArrayInputStream(content.getBytes(UTF_8));
+        } catch (UnsupportedEncodingException e) {
+            throw new RepositoryException("Problems encoding...", e);
+        }
+    }
+
+    /**
+     * Saves the session, timing it (repository.save.latency, in milliseconds)
+     */
+    private void save(int documents) throws RepositoryException {
+        long start = System.currentTimeMillis();
+        session.save();
+        metrics.histogram("repository.save.latency").record(System.currentTimeMillis() - start);
+        metrics.counter("repository.saves").increment();
+        metrics.counter("repository.documents.saved").add(documents);
+    }
+
+    private void saveChanges(String documentName) throws RepositoryException {
+        if (!batching) {
+            save(1);
+            return;
+        }
+        pendingDocuments.add(documentName);
+        if ((batchSize > 0 && pendingDocuments.size() >= batchSize) ||
+                (batchInterval > 0 && System.currentTimeMillis() - lastSave >= batchInterval)) {
+            flush();
+        }
+    }
+
+
+    private String getStringProperty(URL url, String property) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        String key = propertyKey(url, property);
+        Object cached = isCached(property) ? cache.get(key) : null;
+        if (cached != null) {
+            return cached == NO_VALUE ? null : (String) cached;
+        }
+        Node node = getDocumentNode(url);
+        String value = node.hasProperty(property) ? node.getProperty(property).getString() : null;
+        if (isCached(property)) {
+            cache.put(key, value != null ? value : NO_VALUE, weight(value));
+        }
+        return value;
+
+    }
+
+    /**
+     * Only small properties are worth caching, never content
+     */
+    private boolean isCached(String property) {
+        return property.equals(ORIGINAL_STATUS) || property.equals(EXTRACTED_STATUS) ||
+                property.equals(EXTRACTOR) || property.equals(ETAG) || property.equals(LAST_MODIFIED);
+    }
+
+    private String propertyKey(URL url, String property) {
+        return url.toString() + '\n' + property;
+    }
+
+    private int weight(String value) {
+        return 2 * (value != null ? value.length() : 0) + NODE_WEIGHT;
+    }
+
+    private void clearCache() {
+        cache.clear();
+        extractionsByHash.clear();
+        documentsHomeNode = null;
+        statusIndexNode = null;
+    }
+
+    /**
+     * Works for both binary properties and the string properties written by older versions.
+     * The stream is decoded with the codec recorded for the property.
+     */
+    private InputStream getStreamProperty(URL url, String property) throws RepositoryException {
+        if (! sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+        Node node = getDocumentNode(url);
+        if (!node.hasProperty(property)) {
             return null;
         }
+        InputStream stream = node.getProperty(property).getBinary().getStream();
+        if (!node.hasProperty(property + CODEC_SUFFIX)) {
+            return stream;
+        }
+        try {
+            return ContentCodec.forId(node.getProperty(property + CODEC_SUFFIX).getString()).decode(stream);
+        } catch (IOException e) {
+            throw new RepositoryException("Problems decoding content", e);
+        }
+    }
 
+    private String getContentProperty(URL url, String property) throws RepositoryException {
+        InputStream stream = getStreamProperty(url, property);
+        if (stream == null) {
+            return null;
+        }
+        try {
+            Reader reader = new InputStreamReader(stream, UTF_8);
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+            return content.toString();
+        } catch (IOException e) {
+            throw new RepositoryException("Problems reading content", e);
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     private Node getDocumentNode(URL url) throws RepositoryException {
-        String encodedUrl = encode(url);
-        Node documentsHomeNode = getDocumentsHomeNode();
-        return documentsHomeNode.getNode(encodedUrl);
+        Node docNode = (Node) cache.get(url.toString());
+        if (docNode == null) {
+            String documentPath = documentPath(url);
+            Node documentsHomeNode = getDocumentsHomeNode();
+            docNode = documentsHomeNode.getNode(documentPath);
+            cache.put(url.toString(), docNode, NODE_WEIGHT);
+        }
+        return docNode;
     }
 
     private Node getOrCreateDocumentNode(URL url) throws RepositoryException {
-        String encodedUrl = encode(url);
+        Node docNode = (Node) cache.get(url.toString());
+        if (docNode != null) {
+            return docNode;
+        }
+        String documentPath = documentPath(url);
         Node documentsHomeNode = getDocumentsHomeNode();
-        Node docNode = null;
-        if (documentsHomeNode.hasNode(encodedUrl)) {
-            docNode = documentsHomeNode.getNode(encodedUrl);
+        if (documentsHomeNode.hasNode(documentPath)) {
+            docNode = documentsHomeNode.getNode(documentPath);
         }  else {
-            docNode = documentsHomeNode.addNode(encodedUrl);
+            docNode = getOrCreateBucket(documentsHomeNode, documentPath).addNode(encode(url));
+            indexNewDocument(docNode);
         }
+        cache.put(url.toString(), docNode, NODE_WEIGHT);
         return docNode;
     }
 
+    /**
+     * Returns the path of the document for url, relative to the documents home:
+     * the encoded url, preceded by its buckets if the repo is sharded
+     */
+    private String documentPath(URL url) throws RepositoryException {
+        String encodedUrl = encode(url);
+        if (!sharded) {
+            return encodedUrl;
+        }
+        return bucket(url.getHost().toLowerCase(), HOST_BUCKET_DIGITS) + "/" +
+                bucket(url.toString(), urlBucketDigits) + "/" + encodedUrl;
+    }
+
+    /**
+     * Returns the path of docNode relative to the documents home (see documentPath())
+     */
+    private String documentPath(Node docNode) throws RepositoryException {
+        if (!sharded) {
+            return docNode.getName();
+        }
+        Node urlBucket = docNode.getParent();
+        return urlBucket.getParent().getName() + "/" + urlBucket.getName() + "/" + docNode.getName();
+    }
+
+    /**
+     * @return the given number of hex digits, taken from a mix of the hash of value
+     */
+    private static String bucket(String value, int digits) {
+        int hash = value.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        char[] chars = new char[digits];
+        for (int i = digits - 1; i >= 0; i--) {
+            chars[i] = HEX[hash & 0xf];
+            hash >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the node that should be the parent of relativePath under parent, creating the
+     * missing buckets on the way
+     */
+    private Node getOrCreateBucket(Node parent, String relativePath) throws RepositoryException {
+        String[] names = relativePath.split("/");
+        Node node = parent;
+        for (int i = 0; i < names.length - 1; i++) {
+            node = node.hasNode(names[i]) ? node.getNode(names[i]) : node.addNode(names[i]);
+        }
+        return node;
+    }
+
+    /**
+     * Returns an iterator over the documents (or index entries) under parent, skipping the buckets
+     */
+    private NodeIterator getLeafNodes(Node parent) throws RepositoryException {
+        if (!sharded) {
+            return parent.getNodes();
+        }
+        return new NodeIteratorAdapter(new BucketNodeIterator(parent, BUCKET_LEVELS));
+    }
+
+    /**
+     * Every operation on documents gets to them (or to the status index) through here or
+     * getStatusIndexNode(), so this is where a repo left half migrated refuses them
+     */
+    private void checkNotMigrating() throws RepositoryException {
+        if (migrating) {
+            throw new RepositoryException("The migration of " + repoFolder +
+                    " to the sharded layout was interrupted, run migrateToShardedLayout() again");
+        }
+    }
+
     private Node getDocumentsHomeNode() throws RepositoryException {
+        checkNotMigrating();
+        if (documentsHomeNode != null) {
+            return documentsHomeNode;
+        }
         Node root = session.getRootNode();
         if (!root.hasNode(DOCUMENTS_HOME))    {
-            root.addNode(DOCUMENTS_HOME);
+            Node home = root.addNode(DOCUMENTS_HOME);
+            home.setProperty(LAYOUT, LAYOUT_SHARDED);
+            home.setProperty(URL_BUCKET_WIDTH, URL_BUCKET_DIGITS);
+            sharded = true;
+            urlBucketDigits = URL_BUCKET_DIGITS;
+            if (fullTextIndexing) {
+                home.setProperty(FULL_TEXT, true);
+                textIndexed = true;
+            }
+            if (!root.hasNode(STATUS_INDEX)) {
+                createStatusIndex(root);
+            }
         }
-        return root.getNode(DOCUMENTS_HOME);
+        documentsHomeNode = root.getNode(DOCUMENTS_HOME);
+        return documentsHomeNode;
     }
 
+    private Node getStatusIndexNode() throws RepositoryException {
+        checkNotMigrating();
+        if (statusIndexNode == null) {
+            Node root = session.getRootNode();
+            statusIndexNode = root.hasNode(STATUS_INDEX) ? root.getNode(STATUS_INDEX) : null;
+        }
+        return statusIndexNode;
+    }
 
+    private void createStatusIndex(Node root) throws RepositoryException {
+        Node index = root.addNode(STATUS_INDEX);
+        statusIndexNode = index;
+        index.setProperty(DOCUMENTS_COUNT, 0L);
+        index.addNode(ORIGINAL_STATUS);
+        index.addNode(EXTRACTED_STATUS);
+    }
 
+    /**
+     * Returns the index node for the given status, or null if it does not exist and create is false
+     * (or the repo has no status index)
+     */
+    private Node getStatusNode(String property, String status, boolean create) throws RepositoryException {
+        Node index = getStatusIndexNode();
+        if (index == null) {
+            return null;
+        }
+        Node statuses = index.getNode(property);
+        String name = encode(status);
+        if (statuses.hasNode(name)) {
+            return statuses.getNode(name);
+        }
+        if (!create) {
+            return null;
+        }
+        Node statusNode = statuses.addNode(name);
+        statusNode.setProperty(COUNT, 0L);
+        return statusNode;
+    }
+
+    /**
+     * Documents without original status are indexed as STATUS_MISSING. Documents without
+     * extracted status are not indexed at all (they are counted as the difference).
+     */
+    private boolean isIndexed(String property, String status) {
+        return !(property.equals(EXTRACTED_STATUS) && status.equals(STATUS_MISSING));
+    }
+
+    private void indexNewDocument(Node docNode) throws RepositoryException {
+        Node index = getStatusIndexNode();
+        if (index == null) {
+            return;
+        }
+        index.setProperty(DOCUMENTS_COUNT, index.getProperty(DOCUMENTS_COUNT).getLong() + 1);
+        Node statusNode = getStatusNode(ORIGINAL_STATUS, STATUS_MISSING, true);
+        getOrCreateBucket(statusNode, documentPath(docNode)).addNode(docNode.getName());
+        statusNode.setProperty(COUNT, statusNode.getProperty(COUNT).getLong() + 1);
+    }
+
+    private void moveIndexEntry(String property, Node docNode, String oldStatus, String newStatus)
+            throws RepositoryException {
+        if (getStatusIndexNode() == null || oldStatus.equals(newStatus)) {
+            return;
+        }
+        String entryPath = documentPath(docNode);
+        if (isIndexed(property, oldStatus)) {
+            Node statusNode = getStatusNode(property, oldStatus, false);
+            if (statusNode != null && statusNode.hasNode(entryPath)) {
+                statusNode.getNode(entryPath).remove();
+                statusNode.setProperty(COUNT, statusNode.getProperty(COUNT).getLong() - 1);
+            }
+        }
+        if (isIndexed(property, newStatus)) {
+            Node statusNode = getStatusNode(property, newStatus, true);
+            if (!statusNode.hasNode(entryPath)) {
+                getOrCreateBucket(statusNode, entryPath).addNode(docNode.getName());
+                statusNode.setProperty(COUNT, statusNode.getProperty(COUNT).getLong() + 1);
+            }
+        }
+    }
+
+
+
+
+    URL decode(String name) throws RepositoryException {
+        try {
+            return new URL(URLDecoder.decode(name, UTF_8));
+        } catch (MalformedURLException e) {
+            throw new RepositoryException("Not a document: " + name, e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RepositoryException("Problems decoding...", e);
+        }
+    }
+
+    String encode(URL url) throws RepositoryException {
+        return encode(url.toString());
+    }
 
-    private String encode(URL url) throws RepositoryException {
+    private String encode(String value) throws RepositoryException {
         String encodedUrl = null;
         try {
-            encodedUrl = URLEncoder.encode(url.toString(), UTF_8);
+            encodedUrl = URLEncoder.encode(value, UTF_8);
         } catch (UnsupportedEncodingException e) {
             throw new RepositoryException("Problems encoding...");
         }
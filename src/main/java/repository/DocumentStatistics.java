@@ -0,0 +1,152 @@
+package repository;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Counts the documents of the repository by original status, by extracted status, by host
+ * and by day of their last modification (UTC), and adds up the size of their original content.
+ * Everything is computed in the same walk: pass it to DocumentStore.visitDocuments(), or
+ * use DocumentStore.computeStatistics().
+ */
+public class DocumentStatistics implements DocumentVisitor {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final String NO_STATUS = "NONE";
+    private static final String NO_DATE = "NONE";
+
+    // long[1] as mutable counters, so that counting does not box a Long per document
+    private final Map<String, long[]> byStatus = new HashMap<String, long[]>();
+    private final Map<String, long[]> byExtractedStatus = new HashMap<String, long[]>();
+    private final Map<String, long[]> byHost = new HashMap<String, long[]>();
+    private final Map<Long, long[]> byDay = new HashMap<Long, long[]>();
+    private long documents = 0;
+    private long withContent = 0;
+    private long totalSize = 0;
+    private long totalStoredSize = 0;
+
+    @Override
+    public void visit(DocumentRecord record) {
+        documents++;
+        increment(byStatus, record.getOriginalStatus());
+        increment(byExtractedStatus, record.getExtractedStatus() != null ? record.getExtractedStatus() : NO_STATUS);
+        increment(byHost, record.getUrl().getHost().toLowerCase());
+        Long day = record.getUpdatedOn() >= 0 ? record.getUpdatedOn() / DAY : -1L;
+        long[] count = byDay.get(day);
+        if (count == null) {
+            byDay.put(day, new long[] {1});
+        } else {
+            count[0]++;
+        }
+        if (record.getSize() >= 0) {
+            withContent++;
+            totalSize += record.getSize();
+            totalStoredSize += record.getStoredSize();
+        }
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    /**
+     * @return the number of documents with original content
+     */
+    public long getDocumentsWithContent() {
+        return withContent;
+    }
+
+    /**
+     * @return the bytes of all original content, as it was fetched (see DocumentRecord.getSize())
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return the bytes stored for all original content (see DocumentRecord.getStoredSize())
+     */
+    public long getTotalStoredSize() {
+        return totalStoredSize;
+    }
+
+    public SortedMap<String, Long> getCountsByStatus() {
+        return sorted(byStatus);
+    }
+
+    /**
+     * @return the counts by extracted status, NONE for documents without one
+     */
+    public SortedMap<String, Long> getCountsByExtractedStatus() {
+        return sorted(byExtractedStatus);
+    }
+
+    public SortedMap<String, Long> getCountsByHost() {
+        return sorted(byHost);
+    }
+
+    /**
+     * @return the counts by day of the modification date, as yyyy-MM-dd (UTC), NONE for
+     * documents without one
+     */
+    public SortedMap<String, Long> getCountsByDate() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        SortedMap<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<Long, long[]> entry : byDay.entrySet()) {
+            String day = entry.getKey() >= 0 ? format.format(new Date(entry.getKey() * DAY)) : NO_DATE;
+            counts.put(day, entry.getValue()[0]);
+        }
+        return counts;
+    }
+
+    /**
+     * Writes all counts as csv, with a header and one "dimension,key,count" row per count.
+     * Dimensions are status, extracted-status, host and date.
+     * @param writer
+     * @throws IOException
+     */
+    public void writeCsv(Writer writer) throws IOException {
+        writer.write("dimension,key,count\n");
+        writeCsv(writer, "status", getCountsByStatus());
+        writeCsv(writer, "extracted-status", getCountsByExtractedStatus());
+        writeCsv(writer, "host", getCountsByHost());
+        writeCsv(writer, "date", getCountsByDate());
+        writer.flush();
+    }
+
+    private void writeCsv(Writer writer, String dimension, SortedMap<String, Long> counts) throws IOException {
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            writer.write(dimension);
+            writer.write(',');
+            writer.write(DocumentExporter.csvField(entry.getKey()));
+            writer.write(',');
+            writer.write(Long.toString(entry.getValue()));
+            writer.write('\n');
+        }
+    }
+
+    private static void increment(Map<String, long[]> counts, String key) {
+        long[] count = counts.get(key);
+        if (count == null) {
+            counts.put(key, new long[] {1});
+        } else {
+            count[0]++;
+        }
+    }
+
+    private static SortedMap<String, Long> sorted(Map<String, long[]> counts) {
+        SortedMap<String, Long> sorted = new TreeMap<String, Long>();
+        for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+            sorted.put(entry.getKey(), entry.getValue()[0]);
+        }
+        return sorted;
+    }
+}
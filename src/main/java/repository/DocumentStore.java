@@ -0,0 +1,248 @@
+package repository;
+
+import javax.jcr.RepositoryException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Where the collector keeps its documents: for every url, the original and extracted content,
+ * their statuses and a few timestamps. There are two implementations (see StorageBackend):
+ *  - DocumentRepository, on Jackrabbit (queryable, the original one)
+ *  - KeyValueDocumentStore, an append-only log with an in-memory index, for bulk crawling
+ * Both work the same way: calls happen within a session, from one thread, and changes are
+ * saved one by one or in batches (see beginBatch()). Errors are RepositoryExceptions in both,
+ * and asking for a property of a url that is not in the store throws PathNotFoundException.
+ * DocumentRepository documents every method in detail.
+ */
+public interface DocumentStore {
+
+    String STATUS_404 = "404";
+    String STATUS_OK = "200";
+    String STATUS_TIMED_OUT = "408";
+    String STATUS_MISSING = "MISSING";
+    String STATUS_FAILED = "FAILED";
+    String STATUS_PARKED = "PARKED";
+    String STATUS_TRUNCATED = "TRUNCATED";
+    String STATUS_ABORTED = "ABORTED";
+    String STATUS_UNSUPPORTED_TYPE = "UNSUPPORTED_TYPE";
+
+    /**
+     * Starts the session. All calls to set or get methods should happen within it.
+     * @throws RepositoryException if there is one already
+     */
+    void startSession() throws RepositoryException;
+
+    /**
+     * Ends the session, committing the batch if there is one
+     * @throws RepositoryException if there is no session
+     */
+    void endSession() throws RepositoryException;
+
+    /**
+     * Releases the store (files, locks...). Commits the batch if there is one.
+     */
+    void shutdown();
+
+    /**
+     * Starts a batch: changes are saved together once maxDocuments documents were changed or
+     * maxMillis milliseconds passed since the last save (0 means no limit)
+     * @param maxDocuments
+     * @param maxMillis
+     * @throws RepositoryException
+     */
+    void beginBatch(int maxDocuments, long maxMillis) throws RepositoryException;
+
+    /**
+     * Saves all pending changes and ends the batch
+     * @throws RepositoryException
+     */
+    void commitBatch() throws RepositoryException;
+
+    /**
+     * Saves the changes pending in the current batch, if any
+     * @throws RepositoryException
+     */
+    void flush() throws RepositoryException;
+
+    /**
+     * @return the number of documents changed but not saved yet
+     */
+    int getPendingDocuments();
+
+    /**
+     * Sets the codec used to store content from now on. Content already stored stays readable.
+     * @param contentCodec
+     */
+    void setContentCodec(ContentCodec contentCodec);
+
+    ContentCodec getContentCodec();
+
+    /**
+     * Drops the extraction of the document (extracted content, extractor and extracted status)
+     * unless it was made from this very content, so that it is extracted again
+     * @return true if the content changed (or is new), false if the same content was stored
+     */
+    boolean setOriginalContent(URL url, String content) throws RepositoryException;
+
+    /**
+     * Same as above, streaming the content (encoded in UTF-8). The stream is closed.
+     */
+    boolean setOriginalContent(URL url, InputStream content) throws RepositoryException;
+
+    /**
+     * @return the SHA-1 (hex) of the original content, or null
+     */
+    String getContentHash(URL url) throws RepositoryException;
+
+    /**
+     * Stores the ETag and Last-Modified headers that came with the original content
+     */
+    void setValidators(URL url, String etag, String lastModified) throws RepositoryException;
+
+    String getETag(URL url) throws RepositoryException;
+
+    String getLastModified(URL url) throws RepositoryException;
+
+    void setExtractedContent(URL url, String extractedContent, String extractor) throws RepositoryException;
+
+    /**
+     * Same as above, streaming the content (encoded in UTF-8). The stream is closed.
+     */
+    void setExtractedContent(URL url, InputStream extractedContent, String extractor) throws RepositoryException;
+
+    String getExtractor(URL url) throws RepositoryException;
+
+    /**
+     * Gives url the extracted content, extractor and extracted status (STATUS_OK) of another
+     * document whose original content has the given hash and was extracted successfully, so
+     * that the same content is not extracted twice
+     * @param url
+     * @param contentHash as in getContentHash()
+     * @return false if no document with that content was extracted
+     */
+    boolean reuseExtraction(URL url, String contentHash) throws RepositoryException;
+
+    /**
+     * @return true if the store has a document for the url
+     */
+    boolean hasOriginalContent(URL url) throws RepositoryException;
+
+    /**
+     * @return the urls the store knows nothing about, in the same order
+     */
+    List<URL> missingDocuments(Collection<URL> urls) throws RepositoryException;
+
+    String getOriginalContent(URL url) throws RepositoryException;
+
+    /**
+     * @return a stream over the original content (the caller closes it), or null if there is none
+     */
+    InputStream getOriginalContentStream(URL url) throws RepositoryException;
+
+    String getExtractedContent(URL url) throws RepositoryException;
+
+    /**
+     * @return a stream over the extracted content (the caller closes it), or null if there is none
+     */
+    InputStream getExtractedContentStream(URL url) throws RepositoryException;
+
+    /**
+     * @return when anything about the url last changed
+     */
+    Calendar getModificationDate(URL url) throws RepositoryException;
+
+    void setOriginalStatus(URL url, String status) throws RepositoryException;
+
+    /**
+     * @return the original status, STATUS_MISSING if there is none
+     */
+    String getOriginalStatus(URL url) throws RepositoryException;
+
+    void setExtractedStatus(URL url, String status) throws RepositoryException;
+
+    /**
+     * @return the extracted status, or null if there is none
+     */
+    String getExtractedStatus(URL url) throws RepositoryException;
+
+    Iterator<URL> documentsIterator() throws RepositoryException;
+
+    /**
+     * Walks all documents once, handing each of them to every visitor
+     */
+    void visitDocuments(DocumentVisitor... visitors) throws RepositoryException, IOException;
+
+    /**
+     * Counts all documents by status, host and date, in one walk
+     */
+    DocumentStatistics computeStatistics() throws RepositoryException;
+
+    /**
+     * @param status original status
+     */
+    Iterator<URL> documentsByStatusIterator(String status) throws RepositoryException;
+
+    /**
+     * Same as above, for a crawl that keeps a journal (opened with openCrawlJournal() on this
+     * same store): starts where the journal says and adds every url it returns to the pending
+     * urls of the journal
+     */
+    Iterator<URL> documentsByStatusIterator(String status, CrawlJournal journal) throws RepositoryException;
+
+    /**
+     * @param batchSize number of documents read from the store at a time
+     * @return a cursor over all documents (see DocumentCursor)
+     */
+    DocumentCursor documentsCursor(int batchSize) throws RepositoryException;
+
+    /**
+     * @param status original status
+     * @param batchSize number of documents read from the store at a time
+     * @return a cursor over the documents with the status (see DocumentCursor)
+     */
+    DocumentCursor documentsByStatusCursor(String status, int batchSize) throws RepositoryException;
+
+    /**
+     * Opens the journal of the crawl with the given name: a new one, or the one left by an
+     * earlier run that did not finish
+     */
+    CrawlJournal openCrawlJournal(String name) throws RepositoryException;
+
+    /**
+     * @return the number of failed attempts in a row, this one included
+     */
+    int recordFailedAttempt(URL url) throws RepositoryException;
+
+    /**
+     * Forgets the failed attempts and the next attempt time
+     */
+    void clearAttempts(URL url) throws RepositoryException;
+
+    void setNextAttempt(URL url, Calendar nextAttempt) throws RepositoryException;
+
+    /**
+     * @return the time before which the url should not be tried again, or null
+     */
+    Calendar getNextAttempt(URL url) throws RepositoryException;
+
+    int getAttempts(URL url) throws RepositoryException;
+
+    /**
+     * @param status extracted status - STATUS_MISSING includes the documents without one
+     */
+    Iterator<URL> documentsByExtractedStatusIterator(String status) throws RepositoryException;
+
+    long countByOriginalStatus(String status) throws RepositoryException;
+
+    /**
+     * @param status extracted status - STATUS_MISSING includes the documents without one
+     */
+    long countByExtractedStatus(String status) throws RepositoryException;
+
+    long countDocuments() throws RepositoryException;
+}
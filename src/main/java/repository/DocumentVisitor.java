@@ -0,0 +1,16 @@
+package repository;
+
+import java.io.IOException;
+
+/**
+ * Gets every document of the repository, once, from DocumentStore.visitDocuments().
+ * Several visitors can share the same walk over the repository.
+ */
+public interface DocumentVisitor {
+
+    /**
+     * @param record the document
+     * @throws IOException if the visitor writes somewhere and that fails (the walk stops)
+     */
+    void visit(DocumentRecord record) throws IOException;
+}
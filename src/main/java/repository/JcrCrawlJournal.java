@@ -0,0 +1,111 @@
+package repository;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * The CrawlJournal of a DocumentRepository, kept in the repository under /crawl_journals/[name]:
+ *  - a cursor: the last bucket of the status index that was read completely
+ *  - the pending urls, one child node each under [name]/pending
+ * Journal changes are saved with the documents (by the next flush() or save of the repo).
+ */
+class JcrCrawlJournal implements CrawlJournal {
+
+    static final String JOURNALS = "crawl_journals";
+    private static final String STARTED_ON = "started-on";
+    private static final String CURSOR = "cursor";
+    private static final String PENDING = "pending";
+    private static final String STARTED = "started";
+
+    private final DocumentRepository repo;
+    private final Node node;
+    private final Node pending;
+    private final boolean resumed;
+
+    JcrCrawlJournal(DocumentRepository repo, Node node, boolean resumed) throws RepositoryException {
+        this.repo = repo;
+        this.node = node;
+        this.pending = node.getNode(PENDING);
+        this.resumed = resumed;
+    }
+
+    static Node create(Node journals, String name) throws RepositoryException {
+        Node node = journals.addNode(name);
+        node.setProperty(STARTED_ON, Calendar.getInstance());
+        node.addNode(PENDING);
+        return node;
+    }
+
+    @Override
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    @Override
+    public Calendar getStartedOn() throws RepositoryException {
+        return node.getProperty(STARTED_ON).getDate();
+    }
+
+    @Override
+    public List<URL> getPending() throws RepositoryException {
+        List<URL> urls = new ArrayList<URL>();
+        NodeIterator entries = pending.getNodes();
+        while (entries.hasNext()) {
+            urls.add(repo.decode(entries.nextNode().getName()));
+        }
+        return urls;
+    }
+
+    @Override
+    public boolean isPending(URL url) throws RepositoryException {
+        return pending.hasNode(repo.encode(url));
+    }
+
+    @Override
+    public void addPending(URL url) throws RepositoryException {
+        String name = repo.encode(url);
+        if (!pending.hasNode(name)) {
+            pending.addNode(name);
+        }
+    }
+
+    @Override
+    public void markStarted(URL url) throws RepositoryException {
+        String name = repo.encode(url);
+        if (pending.hasNode(name)) {
+            pending.getNode(name).setProperty(STARTED, true);
+        }
+    }
+
+    @Override
+    public boolean wasStarted(URL url) throws RepositoryException {
+        String name = repo.encode(url);
+        return pending.hasNode(name) && pending.getNode(name).hasProperty(STARTED);
+    }
+
+    @Override
+    public void removePending(URL url) throws RepositoryException {
+        String name = repo.encode(url);
+        if (pending.hasNode(name)) {
+            pending.getNode(name).remove();
+        }
+    }
+
+    @Override
+    public void finish() throws RepositoryException {
+        node.remove();
+    }
+
+    String getCursor() throws RepositoryException {
+        return node.hasProperty(CURSOR) ? node.getProperty(CURSOR).getString() : null;
+    }
+
+    void setCursor(String cursor) throws RepositoryException {
+        node.setProperty(CURSOR, cursor);
+    }
+}
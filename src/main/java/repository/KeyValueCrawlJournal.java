@@ -0,0 +1,200 @@
+package repository;
+
+import javax.jcr.RepositoryException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The CrawlJournal of a KeyValueDocumentStore: a small file per journal, next to the log,
+ * rewritten as a whole (through a temporary file and a rename) every time the store saves.
+ * The cursor is the number of documents, in the order of the store, that were read.
+ */
+class KeyValueCrawlJournal implements CrawlJournal {
+
+    private final File file;
+    private final boolean resumed;
+    private long startedOn;
+    private int cursor = 0;
+    private final Map<String, Boolean> pending = new LinkedHashMap<String, Boolean>();
+    private boolean finished = false;
+    private boolean changed = true;
+
+    private KeyValueCrawlJournal(File file, boolean resumed) {
+        this.file = file;
+        this.resumed = resumed;
+    }
+
+    /**
+     * @param file
+     * @return the journal kept in file, or a new one (saved to file later) if there is none
+     * @throws RepositoryException
+     */
+    static KeyValueCrawlJournal open(File file) throws RepositoryException {
+        if (!file.exists()) {
+            KeyValueCrawlJournal journal = new KeyValueCrawlJournal(file, false);
+            journal.startedOn = System.currentTimeMillis();
+            return journal;
+        }
+        KeyValueCrawlJournal journal = new KeyValueCrawlJournal(file, true);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            journal.startedOn = in.readLong();
+            journal.cursor = in.readInt();
+            int entries = in.readInt();
+            for (int i = 0; i < entries; i++) {
+                journal.pending.put(in.readUTF(), in.readBoolean());
+            }
+        } catch (IOException e) {
+            throw new RepositoryException("Problems reading journal " + file, e);
+        } finally {
+            close(in);
+        }
+        journal.changed = false;
+        return journal;
+    }
+
+    /**
+     * Writes the journal, if it changed since it was last saved (or removes it, if it finished)
+     * @throws RepositoryException
+     */
+    void save() throws RepositoryException {
+        if (!changed) {
+            return;
+        }
+        if (finished) {
+            if (file.exists() && !file.delete()) {
+                throw new RepositoryException("Cannot remove journal " + file);
+            }
+            changed = false;
+            return;
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            out.writeLong(startedOn);
+            out.writeInt(cursor);
+            out.writeInt(pending.size());
+            for (Map.Entry<String, Boolean> entry : pending.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(entry.getValue());
+            }
+            out.close();
+            out = null;
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RepositoryException("Problems writing journal " + file, e);
+        } finally {
+            close(out);
+        }
+        changed = false;
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    @Override
+    public Calendar getStartedOn() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(startedOn);
+        return calendar;
+    }
+
+    @Override
+    public List<URL> getPending() throws RepositoryException {
+        List<URL> urls = new ArrayList<URL>(pending.size());
+        for (String url : pending.keySet()) {
+            try {
+                urls.add(new URL(url));
+            } catch (MalformedURLException e) {
+                throw new RepositoryException("Not a document: " + url, e);
+            }
+        }
+        return urls;
+    }
+
+    @Override
+    public boolean isPending(URL url) {
+        return pending.containsKey(url.toString());
+    }
+
+    @Override
+    public void addPending(URL url) {
+        if (!pending.containsKey(url.toString())) {
+            pending.put(url.toString(), false);
+            changed = true;
+        }
+    }
+
+    @Override
+    public void markStarted(URL url) {
+        if (pending.containsKey(url.toString())) {
+            pending.put(url.toString(), true);
+            changed = true;
+        }
+    }
+
+    @Override
+    public boolean wasStarted(URL url) {
+        Boolean started = pending.get(url.toString());
+        return started != null && started;
+    }
+
+    @Override
+    public void removePending(URL url) {
+        if (pending.remove(url.toString()) != null) {
+            changed = true;
+        }
+    }
+
+    @Override
+    public void finish() {
+        finished = true;
+        changed = true;
+    }
+
+    int getCursor() {
+        return cursor;
+    }
+
+    void setCursor(int cursor) {
+        if (cursor != this.cursor) {
+            this.cursor = cursor;
+            changed = true;
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,1448 @@
+package repository;
+
+import metrics.MetricsRegistry;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A DocumentStore for bulk crawling, without Jackrabbit: everything is appended to files in the
+ * store folder, and an in-memory index maps every url to what the store knows about it, as in Bitcask.
+ *  - content (original and extracted) is streamed as it comes into the active segment under
+ *    segments/ (see SegmentStore), and the index keeps where it is (segment, offset and length).
+ *    Full segments are sealed and memory mapped, so scanning content reads straight from the page cache.
+ *  - the small properties of a document (statuses, dates, hash, validators, attempts) live in the
+ *    index, and a record with all of them is appended to documents.log (see AppendLog) every time
+ *    the document is saved (once per batch, however many properties changed). The last record
+ *    of a url wins.
+ * Opening the store replays documents.log to rebuild the index, and counts by status are kept as
+ * documents change, so they take constant time.
+ * The index takes a few hundred bytes per document: size the heap for the number of documents.
+ * Documents are iterated in the order they were first stored, which is what crawl journals use
+ * as their cursor (journals are small files under journals/, see KeyValueCrawlJournal).
+ * Content is kept once per hash (SHA-1): a document whose content is already stored points to the
+ * same piece of content, which is counted (in memory) by the documents using it. Extractions are
+ * indexed by the hash of the original content they were made from, so they can be reused (see
+ * reuseExtraction()). Records written before that hash was kept are not reused.
+ * Content that is replaced stays in its segment until compact() moves what is still in use out of
+ * segments that are mostly garbage and removes them (startCompaction() does it in the background).
+ * Stores written before segments existed keep their content in documents.log until compacted.
+ * Like DocumentRepository, it is meant for a single session used from one thread; only
+ * compaction may run from another one.
+ */
+public class KeyValueDocumentStore implements DocumentStore {
+
+    static final String LOG = "documents.log";
+    static final String SEGMENTS = "segments";
+    static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+    private static final String JOURNALS = "journals";
+    private static final byte DOCUMENT = 'D';
+    // records of format 1 have content in documents.log, where segment 0 points, those of format 2
+    // have no hash of the extracted content, those of format 3 no hash of the content it was
+    // extracted from, those of format 4 no raw length of the content
+    private static final byte FORMAT = 5;
+    private static final byte FORMAT_WITHOUT_SEGMENTS = 1;
+    private static final byte FORMAT_WITHOUT_EXTRACTED_HASH = 2;
+    private static final byte FORMAT_WITHOUT_EXTRACTED_FROM = 3;
+    private static final byte FORMAT_WITHOUT_CONTENT_LENGTH = 4;
+    private static final int LOG_SEGMENT = 0;
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private static final String UTF_8 = "UTF-8";
+    private static final int BUFFER_SIZE = 8192;
+    private static final DocumentCursor.Decoder DECODER = new DocumentCursor.Decoder() {
+        @Override
+        public URL decode(String url) throws RepositoryException {
+            try {
+                return new URL(url);
+            } catch (MalformedURLException e) {
+                throw new RepositoryException("Not a document: " + url, e);
+            }
+        }
+    };
+
+    private final File folder;
+    private final long segmentSize;
+    private AppendLog log;
+    private SegmentStore segments;
+    private long logRecords;
+    // bytes of content in use, by segment
+    private final Map<Integer, long[]> liveBytes = new HashMap<Integer, long[]>();
+    private final Map<String, Blob> blobsByHash = new HashMap<String, Blob>();
+    // a document extracted successfully for each hash of original content
+    private final Map<String, Entry> extractedByHash = new HashMap<String, Entry>();
+    private ScheduledExecutorService compactor;
+    private final Map<String, Entry> index = new HashMap<String, Entry>();
+    private final List<Entry> order = new ArrayList<Entry>();
+    private final Map<String, long[]> originalCounts = new HashMap<String, long[]>();
+    private final Map<String, long[]> extractedCounts = new HashMap<String, long[]>();
+    private final Map<String, KeyValueCrawlJournal> journals = new HashMap<String, KeyValueCrawlJournal>();
+    private ContentCodec contentCodec = ContentCodec.IDENTITY;
+    private boolean sessionAvailable = false;
+
+    private boolean batching;
+    private int batchSize;
+    private long batchInterval;
+    private long lastSave;
+    private final Set<Entry> pendingDocuments = new LinkedHashSet<Entry>();
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    /**
+     * @param folder where the log, the segments and the journals are (created on the first session if needed)
+     */
+    public KeyValueDocumentStore(File folder) {
+        this(folder, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param folder where the log, the segments and the journals are (created on the first session if needed)
+     * @param segmentSize bytes after which a segment is sealed and a new one started
+     */
+    public KeyValueDocumentStore(File folder, long segmentSize) {
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public synchronized void startSession() throws RepositoryException {
+        if (sessionAvailable) {
+            throw new RepositoryException("Session already started");
+        }
+        if (log == null) {
+            open();
+        }
+        sessionAvailable = true;
+    }
+
+    /**
+     * Commits the batch, if there is one, and closes the log (as Jackrabbit's TransientRepository
+     * shuts down when its last session ends). The next session opens it again.
+     */
+    @Override
+    public synchronized void endSession() throws RepositoryException {
+        if (!sessionAvailable) {
+            throw new RepositoryException("There is no session to end");
+        }
+        if (batching) {
+            commitBatch();
+        }
+        close();
+    }
+
+    /**
+     * Stops the compaction started with startCompaction(), saves what is pending and closes the log
+     */
+    @Override
+    public void shutdown() {
+        stopCompaction();
+        synchronized (this) {
+            if (log != null) {
+                try {
+                    if (sessionAvailable && batching) {
+                        commitBatch();
+                    }
+                } catch (RepositoryException e) {
+                    e.printStackTrace();
+                }
+                close();
+            }
+        }
+    }
+
+    /**
+     * Runs compact() every period milliseconds, in a background thread, until shutdown(). Runs
+     * that find no session (between sessions) do nothing.
+     * @param period
+     * @param minLiveRatio see compact()
+     */
+    public synchronized void startCompaction(long period, final double minLiveRatio) {
+        if (compactor != null) {
+            return;
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "store-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(minLiveRatio);
+                } catch (RepositoryException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the compaction started with startCompaction(), waiting for a run in progress
+     */
+    public void stopCompaction() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = compactor;
+            compactor = null;
+        }
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reclaims the space of content that is no longer in use. For every sealed segment where less
+     * than minLiveRatio of the bytes are still in use, the content in use is copied to the active
+     * segment, the documents pointing to it are saved, and the segment is removed. Then, if most
+     * records of documents.log are stale, it is rewritten with one record per document.
+     * Each segment is moved while holding the store, so the session waits at most one segment.
+     * Does nothing if there is no session.
+     * @param minLiveRatio between 0 (only remove segments with nothing in use) and 1 (move everything)
+     * @return the bytes reclaimed
+     * @throws RepositoryException
+     */
+    public long compact(double minLiveRatio) throws RepositoryException {
+        long start = System.currentTimeMillis();
+        List<Integer> candidates = new ArrayList<Integer>();
+        synchronized (this) {
+            if (log == null) {
+                return 0;
+            }
+            if (live(LOG_SEGMENT) > 0) {
+                candidates.add(LOG_SEGMENT);
+            }
+            for (int segment : segments.getSealedSegments()) {
+                if (live(segment) < minLiveRatio * segments.size(segment) || live(segment) == 0) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        long reclaimed = 0;
+        for (int segment : candidates) {
+            synchronized (this) {
+                if (log == null) {
+                    return reclaimed;
+                }
+                reclaimed += moveSegment(segment);
+            }
+        }
+        synchronized (this) {
+            if (log != null && (candidates.contains(LOG_SEGMENT) || logRecords > 2 * order.size())) {
+                reclaimed += rewriteLog();
+            }
+        }
+        if (reclaimed > 0) {
+            metrics.histogram("repository.compaction.latency").record(System.currentTimeMillis() - start);
+            metrics.counter("repository.compaction.reclaimed.bytes").add(reclaimed);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Copies the content in use of a segment to the active one and removes it (documents.log,
+     * LOG_SEGMENT, is only emptied: rewriteLog() drops its content)
+     * @return the bytes of the segment not in use, or 0 for documents.log
+     */
+    private long moveSegment(int segment) throws RepositoryException {
+        long size = segment != LOG_SEGMENT ? segments.size(segment) : 0;
+        Set<Entry> changed = new LinkedHashSet<Entry>();
+        // shared content is copied once
+        Map<Blob, Blob> moved = new IdentityHashMap<Blob, Blob>();
+        try {
+            for (Entry entry : order) {
+                if (entry.content != null && entry.content.segment == segment) {
+                    entry.content = moveBlob(entry.content, moved);
+                    changed.add(entry);
+                }
+                if (entry.extracted != null && entry.extracted.segment == segment) {
+                    entry.extracted = moveBlob(entry.extracted, moved);
+                    changed.add(entry);
+                }
+            }
+            // the new locations must be on disk before the segment goes
+            saveDocuments(changed);
+            pendingDocuments.removeAll(changed);
+            liveBytes.remove(segment);
+            if (segment != LOG_SEGMENT) {
+                segments.delete(segment);
+            }
+        } catch (IOException e) {
+            throw new RepositoryException("Problems compacting segment " + segment, e);
+        }
+        long movedBytes = 0;
+        for (Blob blob : moved.values()) {
+            movedBytes += blob.length;
+        }
+        return Math.max(0, size - movedBytes);
+    }
+
+    /**
+     * Copies a piece of content to the active segment, unless it was already (moved maps the old
+     * locations to the new ones)
+     */
+    private Blob moveBlob(Blob blob, Map<Blob, Blob> moved) throws IOException {
+        Blob copy = moved.get(blob);
+        if (copy == null) {
+            copy = copyBlob(blob);
+            copy.hash = blob.hash;
+            copy.references = blob.references;
+            increment(liveBytes, copy.segment, copy.length);
+            if (blob.hash != null && blobsByHash.get(blob.hash) == blob) {
+                blobsByHash.put(blob.hash, copy);
+            }
+            moved.put(blob, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Replaces documents.log with one holding a record per document, in order
+     * @return the bytes reclaimed
+     */
+    private long rewriteLog() throws RepositoryException {
+        File logFile = new File(folder, LOG);
+        File compacted = new File(folder, LOG + ".compacted");
+        long before = log.size();
+        try {
+            saveDocuments(pendingDocuments);
+            pendingDocuments.clear();
+            AppendLog newLog = new AppendLog(compacted);
+            try {
+                for (Entry entry : order) {
+                    newLog.append(DOCUMENT, encodeEntry(entry));
+                }
+            } finally {
+                newLog.close();
+            }
+            log.close();
+            log = null;
+            Files.move(compacted.toPath(), logFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log = new AppendLog(logFile);
+        } catch (IOException e) {
+            if (log == null) {
+                // the session cannot go on without its log
+                close();
+            }
+            throw new RepositoryException("Problems rewriting " + logFile, e);
+        }
+        logRecords = order.size();
+        return Math.max(0, before - log.size());
+    }
+
+    private void close() {
+        try {
+            if (log != null) {
+                log.close();
+            }
+            segments.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        log = null;
+        segments = null;
+        liveBytes.clear();
+        blobsByHash.clear();
+        extractedByHash.clear();
+        pendingDocuments.clear();
+        sessionAvailable = false;
+        batching = false;
+        index.clear();
+        order.clear();
+        originalCounts.clear();
+        extractedCounts.clear();
+        journals.clear();
+    }
+
+    @Override
+    public synchronized void beginBatch(int maxDocuments, long maxMillis) throws RepositoryException {
+        checkSession();
+        if (batching) {
+            throw new RepositoryException("Batch already started");
+        }
+        batching = true;
+        batchSize = maxDocuments;
+        batchInterval = maxMillis;
+        lastSave = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void commitBatch() throws RepositoryException {
+        if (!batching) {
+            throw new RepositoryException("There is no batch to commit");
+        }
+        flush();
+        batching = false;
+    }
+
+    /**
+     * Appends a record for every document changed since the last save, saves the journals and
+     * waits until the log is on disk
+     * @throws RepositoryException
+     */
+    @Override
+    public synchronized void flush() throws RepositoryException {
+        checkSession();
+        save();
+        lastSave = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized int getPendingDocuments() {
+        return pendingDocuments.size();
+    }
+
+    @Override
+    public synchronized void setContentCodec(ContentCodec contentCodec) {
+        this.contentCodec = contentCodec;
+    }
+
+    @Override
+    public synchronized ContentCodec getContentCodec() {
+        return contentCodec;
+    }
+
+    @Override
+    public synchronized boolean setOriginalContent(URL url, String content) throws RepositoryException {
+        return setOriginalContent(url, toStream(content));
+    }
+
+    /**
+     * The content is hashed on its way to the active segment; if the hash is the one already
+     * recorded the record is taken back and nothing changes, and if the content is stored for
+     * another document the record is taken back and the document points to that content.
+     * An extraction made from other content is dropped.
+     */
+    @Override
+    public synchronized boolean setOriginalContent(URL url, InputStream content) throws RepositoryException {
+        checkSession();
+        MessageDigest digest = newDigest();
+        Entry entry = getOrCreate(url);
+        ContentCodec.CountingInputStream counting =
+                new ContentCodec.CountingInputStream(new DigestInputStream(content, digest));
+        Blob blob = writeBlob(counting);
+        String hash = toHex(digest.digest());
+        if (entry.content != null && hash.equals(entry.contentHash)) {
+            takeBack(blob);
+            return false;
+        }
+        blob = share(blob, hash);
+        release(entry.content);
+        reference(blob);
+        entry.content = blob;
+        entry.contentHash = hash;
+        entry.contentLength = counting.count;
+        if (!hash.equals(entry.extractedFrom)) {
+            dropExtraction(entry);
+        }
+        touch(entry);
+        return true;
+    }
+
+    @Override
+    public synchronized String getContentHash(URL url) throws RepositoryException {
+        return document(url).contentHash;
+    }
+
+    @Override
+    public synchronized void setValidators(URL url, String etag, String lastModified) throws RepositoryException {
+        checkSession();
+        Entry entry = getOrCreate(url);
+        if (equal(etag, entry.etag) && equal(lastModified, entry.lastModified)) {
+            return;
+        }
+        entry.etag = etag;
+        entry.lastModified = lastModified;
+        touch(entry);
+    }
+
+    @Override
+    public synchronized String getETag(URL url) throws RepositoryException {
+        return document(url).etag;
+    }
+
+    @Override
+    public synchronized String getLastModified(URL url) throws RepositoryException {
+        return document(url).lastModified;
+    }
+
+    @Override
+    public synchronized void setExtractedContent(URL url, String extractedContent, String extractor) throws RepositoryException {
+        setExtractedContent(url, toStream(extractedContent), extractor);
+    }
+
+    @Override
+    public synchronized void setExtractedContent(URL url, InputStream extractedContent, String extractor) throws RepositoryException {
+        checkSession();
+        MessageDigest digest = newDigest();
+        Entry entry = getOrCreate(url);
+        Blob blob = writeBlob(new DigestInputStream(extractedContent, digest));
+        String hash = toHex(digest.digest());
+        blob = share(blob, hash);
+        release(entry.extracted);
+        reference(blob);
+        entry.extracted = blob;
+        entry.extractedHash = hash;
+        entry.extractedFrom = entry.contentHash;
+        entry.extractor = intern(extractor);
+        touch(entry);
+    }
+
+    @Override
+    public synchronized String getExtractor(URL url) throws RepositoryException {
+        return document(url).extractor;
+    }
+
+    /**
+     * The extracted content is not copied, both documents point to it
+     */
+    @Override
+    public synchronized boolean reuseExtraction(URL url, String contentHash) throws RepositoryException {
+        checkSession();
+        if (contentHash == null) {
+            return false;
+        }
+        Entry source = extractedByHash.get(contentHash);
+        if (source != null && !isExtractionOf(source, contentHash)) {
+            extractedByHash.remove(contentHash);
+            source = null;
+        }
+        if (source == null) {
+            return false;
+        }
+        Entry entry = getOrCreate(url);
+        if (entry == source) {
+            return true;
+        }
+        release(entry.extracted);
+        reference(source.extracted);
+        entry.extracted = source.extracted;
+        entry.extractedHash = source.extractedHash;
+        entry.extractedFrom = contentHash;
+        entry.extractor = source.extractor;
+        move(extractedCounts, entry.extractedStatus, STATUS_OK);
+        entry.extractedStatus = STATUS_OK;
+        touch(entry);
+        metrics.counter("repository.extractions.reused").increment();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean hasOriginalContent(URL url) throws RepositoryException {
+        checkSession();
+        return index.containsKey(url.toString());
+    }
+
+    @Override
+    public synchronized List<URL> missingDocuments(Collection<URL> urls) throws RepositoryException {
+        checkSession();
+        List<URL> missing = new ArrayList<URL>();
+        for (URL url : urls) {
+            if (!index.containsKey(url.toString())) {
+                missing.add(url);
+            }
+        }
+        return missing;
+    }
+
+    @Override
+    public synchronized String getOriginalContent(URL url) throws RepositoryException {
+        return toString(getOriginalContentStream(url));
+    }
+
+    @Override
+    public synchronized InputStream getOriginalContentStream(URL url) throws RepositoryException {
+        return readBlob(document(url).content);
+    }
+
+    @Override
+    public synchronized String getExtractedContent(URL url) throws RepositoryException {
+        return toString(getExtractedContentStream(url));
+    }
+
+    @Override
+    public synchronized InputStream getExtractedContentStream(URL url) throws RepositoryException {
+        return readBlob(document(url).extracted);
+    }
+
+    @Override
+    public synchronized Calendar getModificationDate(URL url) throws RepositoryException {
+        return toCalendar(document(url).updatedOn);
+    }
+
+    @Override
+    public synchronized void setOriginalStatus(URL url, String status) throws RepositoryException {
+        checkSession();
+        Entry entry = getOrCreate(url);
+        move(originalCounts, entry.originalStatus, status);
+        entry.originalStatus = intern(status);
+        touch(entry);
+    }
+
+    @Override
+    public synchronized String getOriginalStatus(URL url) throws RepositoryException {
+        String status = document(url).originalStatus;
+        return status != null ? status : STATUS_MISSING;
+    }
+
+    @Override
+    public synchronized void setExtractedStatus(URL url, String status) throws RepositoryException {
+        checkSession();
+        Entry entry = getOrCreate(url);
+        move(extractedCounts, entry.extractedStatus, status);
+        entry.extractedStatus = intern(status);
+        if (isExtractionOf(entry, entry.extractedFrom)) {
+            extractedByHash.put(entry.extractedFrom, entry);
+        }
+        touch(entry);
+    }
+
+    @Override
+    public synchronized String getExtractedStatus(URL url) throws RepositoryException {
+        return document(url).extractedStatus;
+    }
+
+    @Override
+    public synchronized Iterator<URL> documentsIterator() throws RepositoryException {
+        return documentsCursor(1);
+    }
+
+    @Override
+    public synchronized DocumentCursor documentsCursor(int batchSize) throws RepositoryException {
+        checkSession();
+        return new DocumentCursor(new EntryIterator(0) {
+            @Override
+            boolean accept(Entry entry) {
+                return true;
+            }
+        }, DECODER, batchSize);
+    }
+
+    @Override
+    public synchronized void visitDocuments(DocumentVisitor... visitors) throws RepositoryException, IOException {
+        checkSession();
+        for (int i = 0; i < order.size(); i++) {
+            Entry entry = order.get(i);
+            DocumentRecord record = new DocumentRecord(toURL(entry.url),
+                    entry.originalStatus != null ? entry.originalStatus : STATUS_MISSING,
+                    entry.extractedStatus, entry.updatedOn, contentLength(entry),
+                    entry.content != null ? entry.content.length : -1);
+            for (DocumentVisitor visitor : visitors) {
+                visitor.visit(record);
+            }
+        }
+    }
+
+    /**
+     * @return the length of the original content of entry before any codec, -1 if there is none
+     */
+    private long contentLength(Entry entry) throws RepositoryException, IOException {
+        if (entry.content == null) {
+            return -1;
+        }
+        if (entry.contentLength < 0) {
+            // stored before lengths were recorded
+            entry.contentLength = entry.content.codec != null ?
+                    ContentCodec.forId(entry.content.codec).decodedLength(rawStream(entry.content)) : entry.content.length;
+        }
+        return entry.contentLength;
+    }
+
+    @Override
+    public synchronized DocumentStatistics computeStatistics() throws RepositoryException {
+        DocumentStatistics statistics = new DocumentStatistics();
+        try {
+            visitDocuments(statistics);
+        } catch (IOException e) {
+            throw new RepositoryException("Problems computing statistics", e);
+        }
+        return statistics;
+    }
+
+    @Override
+    public synchronized Iterator<URL> documentsByStatusIterator(String status) throws RepositoryException {
+        return documentsByStatusCursor(status, 1);
+    }
+
+    @Override
+    public synchronized DocumentCursor documentsByStatusCursor(final String status, int batchSize)
+            throws RepositoryException {
+        checkSession();
+        return new DocumentCursor(new EntryIterator(0) {
+            @Override
+            boolean accept(Entry entry) {
+                return status.equals(entry.originalStatus != null ? entry.originalStatus : STATUS_MISSING);
+            }
+        }, DECODER, batchSize);
+    }
+
+    /**
+     * The cursor of the journal is the position (in the order of the store) up to which the
+     * documents were read
+     */
+    @Override
+    public synchronized Iterator<URL> documentsByStatusIterator(final String status, CrawlJournal crawlJournal)
+            throws RepositoryException {
+        checkSession();
+        if (!(crawlJournal instanceof KeyValueCrawlJournal)) {
+            throw new RepositoryException("Not a journal of this store");
+        }
+        final KeyValueCrawlJournal journal = (KeyValueCrawlJournal) crawlJournal;
+        return new DocumentCursor(new EntryIterator(journal.getCursor()) {
+            @Override
+            boolean accept(Entry entry) {
+                String entryStatus = entry.originalStatus != null ? entry.originalStatus : STATUS_MISSING;
+                URL url = toURL(entry.url);
+                if (!status.equals(entryStatus) || journal.isPending(url)) {
+                    return false;
+                }
+                journal.addPending(url);
+                return true;
+            }
+
+            @Override
+            void advanced(int position) {
+                journal.setCursor(position);
+            }
+        }, DECODER, 1);
+    }
+
+    @Override
+    public synchronized CrawlJournal openCrawlJournal(String name) throws RepositoryException {
+        checkSession();
+        KeyValueCrawlJournal journal = journals.get(name);
+        if (journal != null && !journal.isFinished()) {
+            return journal;
+        }
+        if (journal != null) {
+            journal.save();
+        }
+        File journalsFolder = new File(folder, JOURNALS);
+        if (!journalsFolder.isDirectory() && !journalsFolder.mkdirs()) {
+            throw new RepositoryException("Cannot create " + journalsFolder);
+        }
+        try {
+            journal = KeyValueCrawlJournal.open(new File(journalsFolder, URLEncoder.encode(name, UTF_8)));
+        } catch (UnsupportedEncodingException e) {
+            throw new RepositoryException("Problems encoding...", e);
+        }
+        journals.put(name, journal);
+        return journal;
+    }
+
+    @Override
+    public synchronized int recordFailedAttempt(URL url) throws RepositoryException {
+        checkSession();
+        Entry entry = getOrCreate(url);
+        entry.attempts++;
+        touch(entry);
+        return entry.attempts;
+    }
+
+    @Override
+    public synchronized void clearAttempts(URL url) throws RepositoryException {
+        Entry entry = document(url);
+        if (entry.attempts > 0 || entry.nextAttempt >= 0) {
+            entry.attempts = 0;
+            entry.nextAttempt = -1;
+            touch(entry);
+        }
+    }
+
+    @Override
+    public synchronized void setNextAttempt(URL url, Calendar nextAttempt) throws RepositoryException {
+        checkSession();
+        Entry entry = getOrCreate(url);
+        entry.nextAttempt = nextAttempt.getTimeInMillis();
+        touch(entry);
+    }
+
+    @Override
+    public synchronized Calendar getNextAttempt(URL url) throws RepositoryException {
+        return toCalendar(document(url).nextAttempt);
+    }
+
+    @Override
+    public synchronized int getAttempts(URL url) throws RepositoryException {
+        return document(url).attempts;
+    }
+
+    @Override
+    public synchronized Iterator<URL> documentsByExtractedStatusIterator(final String status) throws RepositoryException {
+        checkSession();
+        return new DocumentCursor(new EntryIterator(0) {
+            @Override
+            boolean accept(Entry entry) {
+                return status.equals(entry.extractedStatus != null ? entry.extractedStatus : STATUS_MISSING);
+            }
+        }, DECODER, 1);
+    }
+
+    @Override
+    public synchronized long countByOriginalStatus(String status) throws RepositoryException {
+        checkSession();
+        long[] count = originalCounts.get(status);
+        return count != null ? count[0] : 0;
+    }
+
+    @Override
+    public synchronized long countByExtractedStatus(String status) throws RepositoryException {
+        checkSession();
+        long[] count = extractedCounts.get(status);
+        return count != null ? count[0] : 0;
+    }
+
+    @Override
+    public synchronized long countDocuments() throws RepositoryException {
+        checkSession();
+        return order.size();
+    }
+
+    /**
+     * Opens the log and the segments, and rebuilds the index from the log
+     */
+    private void open() throws RepositoryException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new RepositoryException("Cannot create " + folder);
+        }
+        logRecords = 0;
+        try {
+            log = new AppendLog(new File(folder, LOG));
+            long cut = log.replay(new AppendLog.RecordHandler() {
+                @Override
+                public void record(byte type, long offset, int length, byte[] payload) throws IOException {
+                    if (type == DOCUMENT) {
+                        load(decodeEntry(payload));
+                        logRecords++;
+                    }
+                }
+
+                @Override
+                public boolean wantsPayload(byte type) {
+                    return type == DOCUMENT;
+                }
+            });
+            if (cut > 0) {
+                metrics.counter("repository.log.truncated.bytes").add(cut);
+            }
+            segments = new SegmentStore(new File(folder, SEGMENTS), segmentSize);
+        } catch (IOException e) {
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException closing) {
+                    closing.printStackTrace();
+                }
+                log = null;
+            }
+            index.clear();
+            order.clear();
+            throw new RepositoryException("Problems opening " + folder, e);
+        }
+        // records of documents sharing content have a copy of its location each: make them share one
+        Map<String, Blob> byLocation = new HashMap<String, Blob>();
+        for (Entry entry : order) {
+            increment(originalCounts, entry.originalStatus != null ? entry.originalStatus : STATUS_MISSING, 1);
+            increment(extractedCounts, entry.extractedStatus != null ? entry.extractedStatus : STATUS_MISSING, 1);
+            entry.content = canonical(byLocation, entry.content, entry.contentHash);
+            entry.extracted = canonical(byLocation, entry.extracted, entry.extractedHash);
+            reference(entry.content);
+            reference(entry.extracted);
+            if (isExtractionOf(entry, entry.extractedFrom)) {
+                extractedByHash.put(entry.extractedFrom, entry);
+            }
+        }
+    }
+
+    /**
+     * Puts an entry read from the log in the index, replacing the one of the same url
+     */
+    private void load(Entry entry) {
+        Entry old = index.put(entry.url, entry);
+        if (old != null) {
+            entry.position = old.position;
+            order.set(old.position, entry);
+        } else {
+            entry.position = order.size();
+            order.add(entry);
+        }
+    }
+
+    private Entry getOrCreate(URL url) {
+        String key = url.toString();
+        Entry entry = index.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            load(entry);
+            increment(originalCounts, STATUS_MISSING, 1);
+            increment(extractedCounts, STATUS_MISSING, 1);
+        }
+        return entry;
+    }
+
+    private Entry document(URL url) throws RepositoryException {
+        checkSession();
+        Entry entry = index.get(url.toString());
+        if (entry == null) {
+            throw new PathNotFoundException(url.toString());
+        }
+        return entry;
+    }
+
+    /**
+     * Sets the modification date of the document to "now", and saves (or not, if batching)
+     */
+    private void touch(Entry entry) throws RepositoryException {
+        entry.updatedOn = System.currentTimeMillis();
+        pendingDocuments.add(entry);
+        if (!batching || (batchSize > 0 && pendingDocuments.size() >= batchSize) ||
+                (batchInterval > 0 && System.currentTimeMillis() - lastSave >= batchInterval)) {
+            flush();
+        }
+    }
+
+    /**
+     * Appends the pending documents, saves the journals and forces the log to disk, timing it
+     * (repository.save.latency, in milliseconds)
+     */
+    private void save() throws RepositoryException {
+        long start = System.currentTimeMillis();
+        int documents = pendingDocuments.size();
+        try {
+            saveDocuments(pendingDocuments);
+        } catch (IOException e) {
+            throw new RepositoryException("Problems writing the log", e);
+        }
+        pendingDocuments.clear();
+        Iterator<KeyValueCrawlJournal> journalIterator = journals.values().iterator();
+        while (journalIterator.hasNext()) {
+            KeyValueCrawlJournal journal = journalIterator.next();
+            journal.save();
+            if (journal.isFinished()) {
+                journalIterator.remove();
+            }
+        }
+        if (documents > 0) {
+            metrics.histogram("repository.save.latency").record(System.currentTimeMillis() - start);
+            metrics.counter("repository.saves").increment();
+            metrics.counter("repository.documents.saved").add(documents);
+        }
+    }
+
+    /**
+     * Appends a record for each document, once the content they point to is on disk, and waits
+     * until they are on disk too
+     */
+    private void saveDocuments(Collection<Entry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        segments.force();
+        for (Entry entry : entries) {
+            log.append(DOCUMENT, encodeEntry(entry));
+        }
+        log.force();
+        logRecords += entries.size();
+    }
+
+    /**
+     * Streams content, encoded with the current codec, into a new record of the active segment. The stream is closed.
+     */
+    private Blob writeBlob(InputStream content) throws RepositoryException {
+        try {
+            return appendBlob(contentCodec.encode(content),
+                    contentCodec != ContentCodec.IDENTITY ? contentCodec.getId() : null);
+        } catch (IOException e) {
+            throw new RepositoryException("Problems writing content", e);
+        } finally {
+            try {
+                content.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Copies stored content, as it is (still encoded), to the active segment
+     */
+    private Blob copyBlob(Blob blob) throws IOException {
+        return appendBlob(rawStream(blob), blob.codec);
+    }
+
+    /**
+     * Appends a stream to the active segment, taking the record back if it fails. The stream is closed.
+     */
+    private Blob appendBlob(InputStream stream, String codec) throws IOException {
+        long start = -1;
+        try {
+            start = segments.begin();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                segments.write(buffer, 0, read);
+            }
+            int length = segments.end();
+            return new Blob(segments.getActiveSegment(), start + AppendLog.HEADER, length, codec);
+        } catch (IOException e) {
+            if (start >= 0) {
+                try {
+                    segments.rewind(start);
+                } catch (IOException rewinding) {
+                    rewinding.printStackTrace();
+                }
+            }
+            throw e;
+        } finally {
+            stream.close();
+        }
+    }
+
+    private InputStream readBlob(Blob blob) throws RepositoryException {
+        if (blob == null) {
+            return null;
+        }
+        try {
+            InputStream stream = rawStream(blob);
+            return blob.codec != null ? ContentCodec.forId(blob.codec).decode(stream) : stream;
+        } catch (IOException e) {
+            throw new RepositoryException("Problems reading content", e);
+        }
+    }
+
+    private InputStream rawStream(Blob blob) throws IOException {
+        return blob.segment == LOG_SEGMENT ? log.read(blob.offset, blob.length)
+                : segments.read(blob.segment, blob.offset, blob.length);
+    }
+
+    /**
+     * Counts one more document using a piece of content; the first one puts its bytes among
+     * those in use in its segment
+     */
+    private void reference(Blob blob) {
+        if (blob == null || blob.references++ > 0) {
+            return;
+        }
+        increment(liveBytes, blob.segment, blob.length);
+        if (blob.hash != null && !blobsByHash.containsKey(blob.hash)) {
+            blobsByHash.put(blob.hash, blob);
+        }
+    }
+
+    /**
+     * Counts one document less using a piece of content; once none does, it is garbage
+     */
+    private void release(Blob blob) {
+        if (blob == null || --blob.references > 0) {
+            return;
+        }
+        increment(liveBytes, blob.segment, -blob.length);
+        if (blob.hash != null && blobsByHash.get(blob.hash) == blob) {
+            blobsByHash.remove(blob.hash);
+        }
+    }
+
+    /**
+     * @param written content just written (the last record of the active segment)
+     * @param hash its hash
+     * @return the content already stored with the same hash, if there is one (taking written
+     * back), or written
+     */
+    private Blob share(Blob written, String hash) throws RepositoryException {
+        Blob stored = blobsByHash.get(hash);
+        if (stored == null) {
+            written.hash = hash;
+            return written;
+        }
+        takeBack(written);
+        metrics.counter("repository.dedup.hits").increment();
+        metrics.counter("repository.dedup.bytes").add(written.length);
+        return stored;
+    }
+
+    /**
+     * Drops content just written (the last record of the active segment)
+     */
+    private void takeBack(Blob written) throws RepositoryException {
+        try {
+            segments.rewind(written.offset - AppendLog.HEADER);
+        } catch (IOException e) {
+            throw new RepositoryException("Problems writing content", e);
+        }
+    }
+
+    private static Blob canonical(Map<String, Blob> byLocation, Blob blob, String hash) {
+        if (blob == null) {
+            return null;
+        }
+        String location = blob.segment + ":" + blob.offset;
+        Blob shared = byLocation.get(location);
+        if (shared != null) {
+            return shared;
+        }
+        blob.hash = hash;
+        byLocation.put(location, blob);
+        return blob;
+    }
+
+    /**
+     * Forgets the extraction of a document, so that it is extracted again
+     */
+    private void dropExtraction(Entry entry) {
+        if (entry.extracted == null && entry.extractedStatus == null) {
+            return;
+        }
+        release(entry.extracted);
+        move(extractedCounts, entry.extractedStatus, STATUS_MISSING);
+        entry.extracted = null;
+        entry.extractedHash = null;
+        entry.extractedFrom = null;
+        entry.extractor = null;
+        entry.extractedStatus = null;
+        metrics.counter("repository.extractions.dropped").increment();
+    }
+
+    private static boolean isExtractionOf(Entry entry, String contentHash) {
+        return contentHash != null && contentHash.equals(entry.extractedFrom) && entry.extracted != null &&
+                STATUS_OK.equals(entry.extractedStatus);
+    }
+
+    private static MessageDigest newDigest() throws RepositoryException {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RepositoryException("Problems hashing content", e);
+        }
+    }
+
+    private long live(int segment) {
+        long[] bytes = liveBytes.get(segment);
+        return bytes != null ? bytes[0] : 0;
+    }
+
+    private byte[] encodeEntry(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FORMAT);
+        writeString(out, entry.url);
+        writeString(out, entry.originalStatus);
+        writeString(out, entry.extractedStatus);
+        out.writeLong(entry.updatedOn);
+        writeString(out, entry.contentHash);
+        writeString(out, entry.etag);
+        writeString(out, entry.lastModified);
+        writeString(out, entry.extractor);
+        out.writeInt(entry.attempts);
+        out.writeLong(entry.nextAttempt);
+        writeBlob(out, entry.content);
+        writeBlob(out, entry.extracted);
+        writeString(out, entry.extractedHash);
+        writeString(out, entry.extractedFrom);
+        out.writeLong(entry.contentLength);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private Entry decodeEntry(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte format = in.readByte();
+        if (format < FORMAT_WITHOUT_SEGMENTS || format > FORMAT) {
+            throw new IOException("Unknown record format");
+        }
+        Entry entry = new Entry(readString(in));
+        entry.originalStatus = intern(readString(in));
+        entry.extractedStatus = intern(readString(in));
+        entry.updatedOn = in.readLong();
+        entry.contentHash = readString(in);
+        entry.etag = readString(in);
+        entry.lastModified = readString(in);
+        entry.extractor = intern(readString(in));
+        entry.attempts = in.readInt();
+        entry.nextAttempt = in.readLong();
+        entry.content = readBlob(in, format);
+        entry.extracted = readBlob(in, format);
+        if (format > FORMAT_WITHOUT_EXTRACTED_HASH) {
+            entry.extractedHash = readString(in);
+        }
+        if (format > FORMAT_WITHOUT_EXTRACTED_FROM) {
+            entry.extractedFrom = readString(in);
+        }
+        if (format > FORMAT_WITHOUT_CONTENT_LENGTH) {
+            entry.contentLength = in.readLong();
+        }
+        return entry;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeBlob(DataOutputStream out, Blob blob) throws IOException {
+        if (blob == null) {
+            out.writeLong(-1);
+            return;
+        }
+        out.writeLong(blob.offset);
+        out.writeInt(blob.segment);
+        out.writeInt(blob.length);
+        writeString(out, blob.codec);
+    }
+
+    private static Blob readBlob(DataInputStream in, byte format) throws IOException {
+        long offset = in.readLong();
+        if (offset < 0) {
+            return null;
+        }
+        int segment = format != FORMAT_WITHOUT_SEGMENTS ? in.readInt() : LOG_SEGMENT;
+        return new Blob(segment, offset, in.readInt(), intern(readString(in)));
+    }
+
+    /**
+     * Statuses, extractors and codecs take a handful of values: share one instance of each
+     */
+    private static String intern(String value) {
+        return value != null ? value.intern() : null;
+    }
+
+    private static void move(Map<String, long[]> counts, String oldStatus, String newStatus) {
+        String from = oldStatus != null ? oldStatus : STATUS_MISSING;
+        String to = newStatus != null ? newStatus : STATUS_MISSING;
+        if (!from.equals(to)) {
+            increment(counts, from, -1);
+            increment(counts, to, 1);
+        }
+    }
+
+    private static <K> void increment(Map<K, long[]> counts, K key, long delta) {
+        long[] count = counts.get(key);
+        if (count == null) {
+            counts.put(key, new long[] {delta});
+        } else {
+            count[0] += delta;
+        }
+    }
+
+    private void checkSession() throws RepositoryException {
+        if (!sessionAvailable) {
+            throw new RepositoryException("No session available");
+        }
+    }
+
+    private static URL toURL(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Calendar toCalendar(long millis) {
+        if (millis < 0) {
+            return null;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        return calendar;
+    }
+
+    private static InputStream toStream(String content) throws RepositoryException {
+        try {
+            return new ByteArrayInputStream(content.getBytes(UTF_8));
+        } catch (UnsupportedEncodingException e) {
+            throw new RepositoryException("Problems encoding content", e);
+        }
+    }
+
+    private static String toString(InputStream stream) throws RepositoryException {
+        if (stream == null) {
+            return null;
+        }
+        try {
+            Reader reader = new InputStreamReader(stream, UTF_8);
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+            return content.toString();
+        } catch (IOException e) {
+            throw new RepositoryException("Problems reading content", e);
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] chars = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = hex[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = hex[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Iterates over the urls of the documents, in order, from a position on, returning those accepted.
+     * Documents stored while iterating are reached too. The order is read holding the store, so
+     * the iterator can be used from another thread than the one storing documents.
+     */
+    private abstract class EntryIterator implements Iterator<String> {
+        private int position;
+        private String next;
+
+        EntryIterator(int position) {
+            this.position = position;
+        }
+
+        abstract boolean accept(Entry entry);
+
+        /**
+         * Called every time the iterator moves past a document
+         * @param position the position of the next document to look at
+         */
+        void advanced(int position) {
+        }
+
+        @Override
+        public boolean hasNext() {
+            synchronized (KeyValueDocumentStore.this) {
+                while (next == null && position < order.size()) {
+                    Entry entry = order.get(position++);
+                    if (accept(entry)) {
+                        next = entry.url;
+                    }
+                    advanced(position);
+                }
+                return next != null;
+            }
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String url = next;
+            next = null;
+            return url;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Where a piece of content is: segment (LOG_SEGMENT for documents.log), offset and length.
+     * Documents with the same content share one.
+     */
+    private static class Blob {
+        final int segment;
+        final long offset;
+        final int length;
+        final String codec;
+        String hash;
+        int references;
+
+        Blob(int segment, long offset, int length, String codec) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * What the index knows about a document
+     */
+    private static class Entry {
+        final String url;
+        int position;
+        String originalStatus;
+        String extractedStatus;
+        long updatedOn = -1;
+        String contentHash;
+        String etag;
+        String lastModified;
+        String extractor;
+        String extractedHash;
+        String extractedFrom;
+        long contentLength = -1;
+        int attempts;
+        long nextAttempt = -1;
+        Blob content;
+        Blob extracted;
+
+        Entry(String url) {
+            this.url = url;
+        }
+    }
+}
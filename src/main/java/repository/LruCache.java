@@ -0,0 +1,112 @@
+package repository;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least-recently-used cache. It is bounded both by number of entries and by the
+ * sum of the weights (approximate sizes in bytes) given when entries are put, and it counts
+ * hits and misses. Not thread safe, like the session it caches for.
+ */
+class LruCache<V> {
+
+    private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<String, Entry<V>>(1024, 0.75f, true);
+    private int maxEntries;
+    private long maxWeight;
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxEntries maximum number of entries
+     * @param maxWeight maximum sum of the weights of the entries
+     */
+    LruCache(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @param key
+     * @return the value cached for key, or null (a miss) if there is none
+     */
+    V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * @param key
+     * @return true if there is a value cached for key (does not count as a hit or a miss)
+     */
+    boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    void put(String key, V value, int entryWeight) {
+        if (maxEntries == 0 || entryWeight > maxWeight) {
+            remove(key);
+            return;
+        }
+        Entry<V> old = entries.put(key, new Entry<V>(value, entryWeight));
+        if (old != null) {
+            weight -= old.weight;
+        }
+        weight += entryWeight;
+        Iterator<Entry<V>> eldest = entries.values().iterator();
+        while ((entries.size() > maxEntries || weight > maxWeight) && eldest.hasNext()) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+        }
+    }
+
+    void remove(String key) {
+        Entry<V> old = entries.remove(key);
+        if (old != null) {
+            weight -= old.weight;
+        }
+    }
+
+    void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    void resize(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getWeight() {
+        return weight;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final int weight;
+
+        Entry(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package repository;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * How a crawl is split into partitions: every url goes to the partition given by a hash of its
+ * host, so that all the documents of a host (and its politeness limits) stay in one of them.
+ * Each partition is a store of its own, in partition-00, partition-01... under the root folder,
+ * and can be crawled by a separate process, on the same machine or another one (copy or mount
+ * the folder). PartitionedDocumentStore reads all of them as one store.
+ * The number of partitions is written to partitions.properties in the root folder, and cannot
+ * change afterwards: urls would end up in the wrong partition. The hash (CRC-32 of the lower
+ * case host) does not depend on the JVM, so every process agrees on it.
+ */
+public class PartitionLayout {
+
+    public static final String FILE = "partitions.properties";
+    private static final String PARTITIONS = "partitions";
+    private static final String HASH = "hash";
+    private static final String CRC32_HOST = "crc32-host";
+
+    private final File root;
+    private final int partitions;
+
+    private PartitionLayout(File root, int partitions) {
+        this.root = root;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Creates a layout in root, or opens the one that is there
+     * @param root
+     * @param partitions
+     * @return the layout
+     * @throws IOException if root has a layout with a different number of partitions
+     */
+    public static PartitionLayout create(File root, int partitions) throws IOException {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("There must be at least one partition");
+        }
+        if (isPartitioned(root)) {
+            PartitionLayout layout = open(root);
+            if (layout.getPartitions() != partitions) {
+                throw new IOException(root + " already has " + layout.getPartitions() + " partitions");
+            }
+            return layout;
+        }
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Cannot create " + root);
+        }
+        Properties properties = new Properties();
+        properties.setProperty(PARTITIONS, Integer.toString(partitions));
+        properties.setProperty(HASH, CRC32_HOST);
+        OutputStream out = new FileOutputStream(new File(root, FILE));
+        try {
+            properties.store(out, "Partitions of the crawl: do not change");
+        } finally {
+            out.close();
+        }
+        return new PartitionLayout(root, partitions);
+    }
+
+    /**
+     * @param root
+     * @return the layout in root
+     * @throws IOException if there is none
+     */
+    public static PartitionLayout open(File root) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(new File(root, FILE));
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        if (!CRC32_HOST.equals(properties.getProperty(HASH))) {
+            throw new IOException("Unknown partition hash: " + properties.getProperty(HASH));
+        }
+        try {
+            return new PartitionLayout(root, Integer.parseInt(properties.getProperty(PARTITIONS).trim()));
+        } catch (RuntimeException e) {
+            throw new IOException("Bad number of partitions in " + new File(root, FILE), e);
+        }
+    }
+
+    /**
+     * @param folder
+     * @return true if folder is the root of a partitioned crawl
+     */
+    public static boolean isPartitioned(File folder) {
+        return new File(folder, FILE).exists();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @param url
+     * @return the partition the url belongs to
+     */
+    public int partitionOf(URL url) {
+        return partitionOf(url.getHost());
+    }
+
+    /**
+     * @param host
+     * @return the partition the documents of the host belong to
+     */
+    public int partitionOf(String host) {
+        CRC32 crc = new CRC32();
+        crc.update(host.toLowerCase(Locale.ROOT).getBytes(Charset.forName("UTF-8")));
+        return (int) (crc.getValue() % partitions);
+    }
+
+    /**
+     * @param partition
+     * @return the folder of the store of the partition
+     */
+    public File getFolder(int partition) {
+        if (partition < 0 || partition >= partitions) {
+            throw new IllegalArgumentException("No partition " + partition);
+        }
+        return new File(root, String.format("partition-%02d", partition));
+    }
+}
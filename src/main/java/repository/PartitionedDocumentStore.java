@@ -0,0 +1,554 @@
+package repository;
+
+import javax.jcr.RepositoryException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The partitions of a crawl (see PartitionLayout) as a single DocumentStore: calls about a url go
+ * to the store of its partition, and iterators, counts, statistics and visits go through the
+ * partitions one after the other. Each partition is opened with the backend that created it
+ * (see StorageBackend.of()), so they do not need to be all of the same kind.
+ * It is meant for reading a crawl as one corpus (analytics, exports, merges) and for registering
+ * urls in all partitions at once. Crawls themselves run on one partition each: crawl journals
+ * are not supported here.
+ * Extractions are only reused (see reuseExtraction()) within the partition of the url.
+ */
+public class PartitionedDocumentStore implements DocumentStore {
+
+    private static final DocumentCursor.Decoder DECODER = new DocumentCursor.Decoder() {
+        @Override
+        public URL decode(String url) throws RepositoryException {
+            try {
+                return new URL(url);
+            } catch (MalformedURLException e) {
+                throw new RepositoryException("Not a document: " + url, e);
+            }
+        }
+    };
+
+    private final File root;
+    private PartitionLayout layout;
+    private DocumentStore[] stores;
+    private ContentCodec contentCodec;
+
+    /**
+     * @param root the root folder of the partitions (read on the first session)
+     */
+    public PartitionedDocumentStore(File root) {
+        this.root = root;
+    }
+
+    /**
+     * @return the layout of the partitions, or null before the first session
+     */
+    public PartitionLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @param partition
+     * @return the store of the partition (null before the first session)
+     */
+    public DocumentStore getPartition(int partition) {
+        return stores != null ? stores[partition] : null;
+    }
+
+    @Override
+    public void startSession() throws RepositoryException {
+        if (stores == null) {
+            try {
+                layout = PartitionLayout.open(root);
+            } catch (IOException e) {
+                throw new RepositoryException("No partitions in " + root, e);
+            }
+            stores = new DocumentStore[layout.getPartitions()];
+            for (int i = 0; i < stores.length; i++) {
+                File folder = layout.getFolder(i);
+                stores[i] = StorageBackend.of(folder).open(folder);
+                if (contentCodec != null) {
+                    stores[i].setContentCodec(contentCodec);
+                }
+            }
+        }
+        for (DocumentStore store : stores) {
+            store.startSession();
+        }
+    }
+
+    @Override
+    public void endSession() throws RepositoryException {
+        if (stores == null) {
+            throw new RepositoryException("There is no session to end");
+        }
+        for (DocumentStore store : stores) {
+            store.endSession();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (stores != null) {
+            for (DocumentStore store : stores) {
+                store.shutdown();
+            }
+        }
+    }
+
+    @Override
+    public void beginBatch(int maxDocuments, long maxMillis) throws RepositoryException {
+        for (DocumentStore store : stores()) {
+            store.beginBatch(maxDocuments, maxMillis);
+        }
+    }
+
+    @Override
+    public void commitBatch() throws RepositoryException {
+        for (DocumentStore store : stores()) {
+            store.commitBatch();
+        }
+    }
+
+    @Override
+    public void flush() throws RepositoryException {
+        for (DocumentStore store : stores()) {
+            store.flush();
+        }
+    }
+
+    @Override
+    public int getPendingDocuments() {
+        int pending = 0;
+        if (stores != null) {
+            for (DocumentStore store : stores) {
+                pending += store.getPendingDocuments();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Sets the codec of every partition (of those opened later too)
+     * @param contentCodec
+     */
+    @Override
+    public void setContentCodec(ContentCodec contentCodec) {
+        this.contentCodec = contentCodec;
+        if (stores != null) {
+            for (DocumentStore store : stores) {
+                store.setContentCodec(contentCodec);
+            }
+        }
+    }
+
+    @Override
+    public ContentCodec getContentCodec() {
+        if (contentCodec == null) {
+            return stores != null ? stores[0].getContentCodec() : ContentCodec.IDENTITY;
+        }
+        return contentCodec;
+    }
+
+    @Override
+    public boolean setOriginalContent(URL url, String content) throws RepositoryException {
+        return store(url).setOriginalContent(url, content);
+    }
+
+    @Override
+    public boolean setOriginalContent(URL url, InputStream content) throws RepositoryException {
+        return store(url).setOriginalContent(url, content);
+    }
+
+    @Override
+    public String getContentHash(URL url) throws RepositoryException {
+        return store(url).getContentHash(url);
+    }
+
+    @Override
+    public void setValidators(URL url, String etag, String lastModified) throws RepositoryException {
+        store(url).setValidators(url, etag, lastModified);
+    }
+
+    @Override
+    public String getETag(URL url) throws RepositoryException {
+        return store(url).getETag(url);
+    }
+
+    @Override
+    public String getLastModified(URL url) throws RepositoryException {
+        return store(url).getLastModified(url);
+    }
+
+    @Override
+    public void setExtractedContent(URL url, String extractedContent, String extractor) throws RepositoryException {
+        store(url).setExtractedContent(url, extractedContent, extractor);
+    }
+
+    @Override
+    public void setExtractedContent(URL url, InputStream extractedContent, String extractor)
+            throws RepositoryException {
+        store(url).setExtractedContent(url, extractedContent, extractor);
+    }
+
+    @Override
+    public String getExtractor(URL url) throws RepositoryException {
+        return store(url).getExtractor(url);
+    }
+
+    @Override
+    public boolean reuseExtraction(URL url, String contentHash) throws RepositoryException {
+        return store(url).reuseExtraction(url, contentHash);
+    }
+
+    @Override
+    public boolean hasOriginalContent(URL url) throws RepositoryException {
+        return store(url).hasOriginalContent(url);
+    }
+
+    /**
+     * Asks each partition about its own urls, in one call per partition
+     */
+    @Override
+    public List<URL> missingDocuments(Collection<URL> urls) throws RepositoryException {
+        Map<Integer, List<URL>> byPartition = new HashMap<Integer, List<URL>>();
+        for (URL url : urls) {
+            int partition = partition(url);
+            List<URL> partitionUrls = byPartition.get(partition);
+            if (partitionUrls == null) {
+                partitionUrls = new ArrayList<URL>();
+                byPartition.put(partition, partitionUrls);
+            }
+            partitionUrls.add(url);
+        }
+        // by string: URL.equals() resolves host names
+        Set<String> missing = new HashSet<String>();
+        for (Map.Entry<Integer, List<URL>> entry : byPartition.entrySet()) {
+            for (URL url : stores[entry.getKey()].missingDocuments(entry.getValue())) {
+                missing.add(url.toString());
+            }
+        }
+        List<URL> inOrder = new ArrayList<URL>(missing.size());
+        for (URL url : urls) {
+            if (missing.contains(url.toString())) {
+                inOrder.add(url);
+            }
+        }
+        return inOrder;
+    }
+
+    @Override
+    public String getOriginalContent(URL url) throws RepositoryException {
+        return store(url).getOriginalContent(url);
+    }
+
+    @Override
+    public InputStream getOriginalContentStream(URL url) throws RepositoryException {
+        return store(url).getOriginalContentStream(url);
+    }
+
+    @Override
+    public String getExtractedContent(URL url) throws RepositoryException {
+        return store(url).getExtractedContent(url);
+    }
+
+    @Override
+    public InputStream getExtractedContentStream(URL url) throws RepositoryException {
+        return store(url).getExtractedContentStream(url);
+    }
+
+    @Override
+    public Calendar getModificationDate(URL url) throws RepositoryException {
+        return store(url).getModificationDate(url);
+    }
+
+    @Override
+    public void setOriginalStatus(URL url, String status) throws RepositoryException {
+        store(url).setOriginalStatus(url, status);
+    }
+
+    @Override
+    public String getOriginalStatus(URL url) throws RepositoryException {
+        return store(url).getOriginalStatus(url);
+    }
+
+    @Override
+    public void setExtractedStatus(URL url, String status) throws RepositoryException {
+        store(url).setExtractedStatus(url, status);
+    }
+
+    @Override
+    public String getExtractedStatus(URL url) throws RepositoryException {
+        return store(url).getExtractedStatus(url);
+    }
+
+    /**
+     * @return the documents of each partition in turn (the iterator of a partition is only
+     * asked for once the previous one is done)
+     */
+    @Override
+    public Iterator<URL> documentsIterator() throws RepositoryException {
+        return new PartitionIterator<URL>() {
+            @Override
+            Iterator<URL> open(DocumentStore store) throws RepositoryException {
+                return store.documentsIterator();
+            }
+        };
+    }
+
+    @Override
+    public void visitDocuments(DocumentVisitor... visitors) throws RepositoryException, IOException {
+        for (DocumentStore store : stores()) {
+            store.visitDocuments(visitors);
+        }
+    }
+
+    @Override
+    public DocumentStatistics computeStatistics() throws RepositoryException {
+        DocumentStatistics statistics = new DocumentStatistics();
+        try {
+            visitDocuments(statistics);
+        } catch (IOException e) {
+            throw new RepositoryException("Problems computing statistics", e);
+        }
+        return statistics;
+    }
+
+    @Override
+    public Iterator<URL> documentsByStatusIterator(final String status) throws RepositoryException {
+        return new PartitionIterator<URL>() {
+            @Override
+            Iterator<URL> open(DocumentStore store) throws RepositoryException {
+                return store.documentsByStatusIterator(status);
+            }
+        };
+    }
+
+    /**
+     * Not supported: journals belong to the crawl of one partition (open its folder instead)
+     * @throws RepositoryException
+     */
+    @Override
+    public Iterator<URL> documentsByStatusIterator(String status, CrawlJournal journal) throws RepositoryException {
+        throw new RepositoryException("Crawl each partition on its own: " + root);
+    }
+
+    /**
+     * @param batchSize
+     * @return a cursor over the cursors of the partitions, which skip what they cannot decode;
+     * its getSkipped() has what all of them skipped so far
+     */
+    @Override
+    public DocumentCursor documentsCursor(final int batchSize) throws RepositoryException {
+        return cursor(new PartitionIterator<URL>() {
+            @Override
+            Iterator<URL> open(DocumentStore store) throws RepositoryException {
+                return store.documentsCursor(batchSize);
+            }
+        }, batchSize);
+    }
+
+    @Override
+    public DocumentCursor documentsByStatusCursor(final String status, final int batchSize)
+            throws RepositoryException {
+        return cursor(new PartitionIterator<URL>() {
+            @Override
+            Iterator<URL> open(DocumentStore store) throws RepositoryException {
+                return store.documentsByStatusCursor(status, batchSize);
+            }
+        }, batchSize);
+    }
+
+    /**
+     * A cursor over the cursors of the partitions, with the keys they skipped as its own
+     */
+    private static DocumentCursor cursor(final PartitionIterator<URL> partitions, int batchSize) {
+        return new DocumentCursor(new KeyIterator(partitions), DECODER, batchSize) {
+            @Override
+            public List<String> getSkipped() {
+                List<String> skipped = new ArrayList<String>(super.getSkipped());
+                for (Iterator<URL> cursor : partitions.getOpened()) {
+                    skipped.addAll(((DocumentCursor) cursor).getSkipped());
+                }
+                return Collections.unmodifiableList(skipped);
+            }
+        };
+    }
+
+    /**
+     * Not supported: journals belong to the crawl of one partition (open its folder instead)
+     * @throws RepositoryException
+     */
+    @Override
+    public CrawlJournal openCrawlJournal(String name) throws RepositoryException {
+        throw new RepositoryException("Crawl each partition on its own: " + root);
+    }
+
+    @Override
+    public int recordFailedAttempt(URL url) throws RepositoryException {
+        return store(url).recordFailedAttempt(url);
+    }
+
+    @Override
+    public void clearAttempts(URL url) throws RepositoryException {
+        store(url).clearAttempts(url);
+    }
+
+    @Override
+    public void setNextAttempt(URL url, Calendar nextAttempt) throws RepositoryException {
+        store(url).setNextAttempt(url, nextAttempt);
+    }
+
+    @Override
+    public Calendar getNextAttempt(URL url) throws RepositoryException {
+        return store(url).getNextAttempt(url);
+    }
+
+    @Override
+    public int getAttempts(URL url) throws RepositoryException {
+        return store(url).getAttempts(url);
+    }
+
+    @Override
+    public Iterator<URL> documentsByExtractedStatusIterator(final String status) throws RepositoryException {
+        return new PartitionIterator<URL>() {
+            @Override
+            Iterator<URL> open(DocumentStore store) throws RepositoryException {
+                return store.documentsByExtractedStatusIterator(status);
+            }
+        };
+    }
+
+    @Override
+    public long countByOriginalStatus(String status) throws RepositoryException {
+        long count = 0;
+        for (DocumentStore store : stores()) {
+            count += store.countByOriginalStatus(status);
+        }
+        return count;
+    }
+
+    @Override
+    public long countByExtractedStatus(String status) throws RepositoryException {
+        long count = 0;
+        for (DocumentStore store : stores()) {
+            count += store.countByExtractedStatus(status);
+        }
+        return count;
+    }
+
+    @Override
+    public long countDocuments() throws RepositoryException {
+        long count = 0;
+        for (DocumentStore store : stores()) {
+            count += store.countDocuments();
+        }
+        return count;
+    }
+
+    private DocumentStore[] stores() throws RepositoryException {
+        if (stores == null) {
+            throw new RepositoryException("No session available");
+        }
+        return stores;
+    }
+
+    private int partition(URL url) throws RepositoryException {
+        stores();
+        return layout.partitionOf(url);
+    }
+
+    private DocumentStore store(URL url) throws RepositoryException {
+        return stores[partition(url)];
+    }
+
+    /**
+     * Goes through an iterator of each partition in turn, opening them as they are needed
+     */
+    private abstract class PartitionIterator<T> implements Iterator<T> {
+        private final List<Iterator<T>> opened = new ArrayList<Iterator<T>>();
+        private int partition = 0;
+        private Iterator<T> current;
+
+        PartitionIterator() throws RepositoryException {
+            stores();
+        }
+
+        abstract Iterator<T> open(DocumentStore store) throws RepositoryException;
+
+        /**
+         * @return the iterators of the partitions opened so far
+         */
+        List<Iterator<T>> getOpened() {
+            return opened;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                if (partition >= stores.length) {
+                    return false;
+                }
+                try {
+                    current = open(stores[partition++]);
+                    opened.add(current);
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException("Cannot read partition " + (partition - 1), e);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The urls of the partitions as keys of a DocumentCursor
+     */
+    private static class KeyIterator implements Iterator<String> {
+        private final Iterator<URL> urls;
+
+        KeyIterator(Iterator<URL> urls) {
+            this.urls = urls;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return urls.hasNext();
+        }
+
+        @Override
+        public String next() {
+            return urls.next().toString();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
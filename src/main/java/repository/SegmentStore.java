@@ -0,0 +1,260 @@
+package repository;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Content kept in numbered segment files (00000001.seg, 00000002.seg...) in a folder. Content is
+ * only ever appended, as records (see AppendLog) of the active segment, the last one; once it
+ * grows past the maximum segment size it is sealed and a new one is started.
+ * Sealed segments never change again: they are memory mapped (read-only) the first time they are
+ * read, so reading content from them is a copy out of the page cache, with no system call.
+ * Segments are removed as a whole, once the content still in use was moved out of them (see
+ * KeyValueDocumentStore.compact()).
+ * Not thread safe.
+ */
+class SegmentStore implements Closeable {
+
+    static final byte CONTENT = 'C';
+    private static final String SUFFIX = ".seg";
+
+    private final File folder;
+    private final long maxSegmentSize;
+    private final SortedSet<Integer> sealed = new TreeSet<Integer>();
+    private final Map<Integer, ByteBuffer> mapped = new HashMap<Integer, ByteBuffer>();
+    // sealed in this session: kept open until close(), for the streams still reading them
+    private final List<AppendLog> retired = new ArrayList<AppendLog>();
+    private int activeSegment;
+    private AppendLog active;
+
+    /**
+     * Opens the segments in folder (creating it if needed), cutting the torn record at the end of
+     * the active segment if there is one
+     * @param folder
+     * @param maxSegmentSize bytes after which the active segment is sealed
+     * @throws IOException
+     */
+    SegmentStore(File folder, long maxSegmentSize) throws IOException {
+        this.folder = folder;
+        this.maxSegmentSize = maxSegmentSize;
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Cannot create " + folder);
+        }
+        File[] files = folder.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+        for (File file : files) {
+            sealed.add(Integer.parseInt(file.getName().substring(0, file.getName().length() - SUFFIX.length())));
+        }
+        activeSegment = sealed.isEmpty() ? 1 : sealed.last();
+        sealed.remove(activeSegment);
+        active = new AppendLog(file(activeSegment));
+        active.replay(new AppendLog.RecordHandler() {
+            @Override
+            public void record(byte type, long offset, int length, byte[] payload) {
+            }
+
+            @Override
+            public boolean wantsPayload(byte type) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Starts a content record, in a new segment if the active one is full
+     * @return where the record starts in the active segment, for rewind()
+     * @throws IOException
+     */
+    long begin() throws IOException {
+        if (active.size() >= maxSegmentSize) {
+            roll();
+        }
+        return active.begin(CONTENT);
+    }
+
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        active.write(bytes, offset, length);
+    }
+
+    /**
+     * @return the length of the content record started with begin()
+     * @throws IOException
+     */
+    int end() throws IOException {
+        return active.end();
+    }
+
+    /**
+     * Drops the last record of the active segment
+     * @param start as returned by begin()
+     * @throws IOException
+     */
+    void rewind(long start) throws IOException {
+        active.rewind(start);
+    }
+
+    /**
+     * @return the segment begin() wrote to
+     */
+    int getActiveSegment() {
+        return activeSegment;
+    }
+
+    /**
+     * @param segment
+     * @param offset where the content starts in the segment
+     * @param length
+     * @return a stream over the content
+     * @throws IOException
+     */
+    InputStream read(int segment, long offset, int length) throws IOException {
+        if (segment == activeSegment) {
+            return active.read(offset, length);
+        }
+        ByteBuffer buffer = map(segment).duplicate();
+        buffer.position((int) offset);
+        buffer.limit((int) offset + length);
+        return new ByteBufferInputStream(buffer.slice());
+    }
+
+    /**
+     * @return the sealed segments (all but the active one), oldest first
+     */
+    SortedSet<Integer> getSealedSegments() {
+        return new TreeSet<Integer>(sealed);
+    }
+
+    /**
+     * @param segment
+     * @return the size in bytes of the segment
+     */
+    long size(int segment) {
+        return segment == activeSegment ? active.size() : file(segment).length();
+    }
+
+    /**
+     * Removes a sealed segment. Streams already open on it stay readable (the mapping outlives
+     * the file) on systems that allow removing open files.
+     * @param segment
+     * @throws IOException
+     */
+    void delete(int segment) throws IOException {
+        if (!sealed.remove(segment)) {
+            throw new IOException("Not a sealed segment: " + segment);
+        }
+        mapped.remove(segment);
+        if (!file(segment).delete()) {
+            throw new IOException("Cannot remove " + file(segment));
+        }
+    }
+
+    /**
+     * Waits until everything written is on disk
+     * @throws IOException
+     */
+    void force() throws IOException {
+        active.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapped.clear();
+        for (AppendLog log : retired) {
+            log.close();
+        }
+        retired.clear();
+        active.close();
+    }
+
+    /**
+     * Seals the active segment and starts a new one
+     */
+    private void roll() throws IOException {
+        active.force();
+        retired.add(active);
+        sealed.add(activeSegment);
+        activeSegment++;
+        active = new AppendLog(file(activeSegment));
+    }
+
+    private ByteBuffer map(int segment) throws IOException {
+        ByteBuffer buffer = mapped.get(segment);
+        if (buffer == null) {
+            if (!sealed.contains(segment)) {
+                throw new IOException("No segment " + segment);
+            }
+            RandomAccessFile file = new RandomAccessFile(file(segment), "r");
+            try {
+                FileChannel channel = file.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Segment " + segment + " is too large to map");
+                }
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer = map;
+            } finally {
+                file.close();
+            }
+            mapped.put(segment, buffer);
+        }
+        return buffer;
+    }
+
+    private File file(int segment) {
+        return new File(folder, String.format("%08d", segment) + SUFFIX);
+    }
+
+    /**
+     * Reads a slice of a mapped segment
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package repository;
+
+import java.io.File;
+
+/**
+ * The kinds of DocumentStore there are, to choose one by name (e.g. from the command line).
+ * Folders that already hold a store are opened with the backend that created them; new ones
+ * get the backend named by the repository.backend system property (JCR if there is none).
+ */
+public enum StorageBackend {
+
+    /**
+     * DocumentRepository, on Jackrabbit
+     */
+    JCR {
+        @Override
+        public DocumentStore open(File folder) {
+            return new DocumentRepository(folder);
+        }
+    },
+
+    /**
+     * KeyValueDocumentStore, an append-only log with an in-memory index
+     */
+    KEY_VALUE {
+        @Override
+        public DocumentStore open(File folder) {
+            return new KeyValueDocumentStore(folder);
+        }
+    },
+
+    /**
+     * PartitionedDocumentStore, over the partitions of a crawl (see PartitionLayout)
+     */
+    PARTITIONED {
+        @Override
+        public DocumentStore open(File folder) {
+            return new PartitionedDocumentStore(folder);
+        }
+    };
+
+    public static final String PROPERTY = "repository.backend";
+
+    /**
+     * @param folder
+     * @return a store of this kind, on folder (nothing is read or created until its first session)
+     */
+    public abstract DocumentStore open(File folder);
+
+    /**
+     * @param folder
+     * @return the backend of the store in folder, or the default one if there is no store there yet
+     */
+    public static StorageBackend of(File folder) {
+        if (PartitionLayout.isPartitioned(folder)) {
+            return PARTITIONED;
+        }
+        if (new File(folder, KeyValueDocumentStore.LOG).exists()) {
+            return KEY_VALUE;
+        }
+        if (new File(folder, "repository.xml").exists()) {
+            return JCR;
+        }
+        return getDefault();
+    }
+
+    /**
+     * @return the backend named by the repository.backend system property, JCR if it is not set
+     */
+    public static StorageBackend getDefault() {
+        String name = System.getProperty(PROPERTY);
+        return name != null ? valueOf(name.trim().toUpperCase().replace('-', '_')) : JCR;
+    }
+}
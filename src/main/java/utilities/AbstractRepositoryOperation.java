@@ -1,16 +1,28 @@
 package utilities;
 
-import utilities.helpers.HttpClientResponseHandler;
+import metrics.MetricsRegistry;
+import metrics.MetricsReporter;
+import utilities.extractors.ContentExtractor;
+import utilities.helpers.DocumentFetcher;
+import utilities.helpers.ExtractionResult;
+import utilities.helpers.FetchResult;
+import utilities.helpers.SpooledContent;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.fluent.Request;
-import org.apache.http.conn.ConnectTimeoutException;
 import repository.DocumentRepository;
+import repository.DocumentStore;
+import repository.KeyValueDocumentStore;
+import repository.StorageBackend;
 
 import javax.jcr.RepositoryException;
 import java.io.File;
 import java.io.IOException;
-import java.net.SocketTimeoutException;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,16 +31,114 @@ import java.util.logging.Logger;
  */
 public abstract class AbstractRepositoryOperation {
 
-    private final DocumentRepository repo;
+    /** How long workers that are stopped get to finish what they are doing */
+    private static final long STOP_WAIT = 10000;
 
+    private final DocumentStore repo;
+    private DocumentFetcher fetcher;
+    private File metricsFile;
+    private MetricsReporter.Format metricsFormat;
+    private long metricsPeriod;
+    private MetricsReporter metricsReporter;
+
+    /**
+     * Works on the store in repoFolder, with the backend that created it (see StorageBackend.of())
+     * @param repoFolder
+     */
     public AbstractRepositoryOperation(File repoFolder) {
-        this.repo = new DocumentRepository(repoFolder);
+        this(repoFolder, StorageBackend.of(repoFolder));
     }
 
-    public DocumentRepository getRepo() {
+    /**
+     * @param repoFolder
+     * @param backend JCR or KEY_VALUE (the fast one, for bulk crawling)
+     */
+    public AbstractRepositoryOperation(File repoFolder, StorageBackend backend) {
+        this.repo = backend.open(repoFolder);
+    }
+
+    public DocumentStore getRepo() {
         return repo;
     }
 
+    /**
+     * Dumps the metrics (see MetricsRegistry) to a file every period while the operation runs.
+     * Call it before run().
+     * @param file where to append the snapshots
+     * @param format CSV or JSON
+     * @param period milliseconds between two snapshots
+     */
+    public void setMetricsDump(File file, MetricsReporter.Format format, long period) {
+        this.metricsFile = file;
+        this.metricsFormat = format;
+        this.metricsPeriod = period;
+    }
+
+    /**
+     * Compacts the store every period while the operation runs (and until the store is shut
+     * down), so that content replaced by a long crawl does not pile up. Only key-value stores
+     * are compacted this way (see KeyValueDocumentStore.startCompaction()); for other stores it
+     * does nothing.
+     * @param period milliseconds between two compactions
+     * @param minLiveRatio see KeyValueDocumentStore.compact()
+     */
+    public void setBackgroundCompaction(long period, double minLiveRatio) {
+        if (repo instanceof KeyValueDocumentStore) {
+            ((KeyValueDocumentStore) repo).startCompaction(period, minLiveRatio);
+        }
+    }
+
+    /**
+     * Starts the metrics dump, if there is one. Called at the start of run().
+     */
+    void startMetricsDump() {
+        if (metricsFile != null && metricsReporter == null) {
+            metricsReporter = new MetricsReporter(MetricsRegistry.getDefault(), metricsFile, metricsFormat,
+                    metricsPeriod);
+        }
+    }
+
+    /**
+     * Stops the metrics dump, after a last snapshot. Called at the end of run().
+     */
+    void stopMetricsDump() {
+        if (metricsReporter != null) {
+            metricsReporter.stop();
+            metricsReporter = null;
+        }
+    }
+
+    /**
+     * Returns the fetcher used to retrieve documents, creating one with the default
+     * configuration if none was set
+     * @return
+     */
+    public synchronized DocumentFetcher getFetcher() {
+        if (fetcher == null) {
+            fetcher = new DocumentFetcher();
+        }
+        return fetcher;
+    }
+
+    /**
+     * Replaces the fetcher used to retrieve documents (e.g. to size its connection pool)
+     * @param fetcher
+     */
+    public synchronized void setFetcher(DocumentFetcher fetcher) {
+        closeFetcher();
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Closes the connections of the fetcher. A new one is created if needed again.
+     */
+    public synchronized void closeFetcher() {
+        if (fetcher != null) {
+            fetcher.close();
+            fetcher = null;
+        }
+    }
+
     public abstract void run();
 
     /**
@@ -38,27 +148,177 @@ public abstract class AbstractRepositoryOperation {
      * @throws RepositoryException
      */
     void retrieveOriginalDocument(String line) throws IOException, RepositoryException {
+        storeOriginalDocument(fetchOriginalDocument(line));
+    }
+
+    /**
+     * Attempt to retrieve the document, without touching the repo. This is the network
+     * half of retrieveOriginalDocument() and it is safe to call it from several threads
+     * at the same time.
+     * @param line
+     * @return the status and content that came back
+     * @throws IOException
+     */
+    FetchResult fetchOriginalDocument(String line) throws IOException {
+        return getFetcher().fetch(line);
+    }
+
+    /**
+     * Same as above, but only if the document changed since the copy we have (see
+     * DocumentFetcher.fetch(String, String, String))
+     * @param line
+     * @param etag the ETag of the copy we have, or null
+     * @param lastModified the Last-Modified header of the copy we have, or null
+     * @return the status and content that came back - 304 if the document did not change
+     * @throws IOException
+     */
+    FetchResult fetchOriginalDocument(String line, String etag, String lastModified) throws IOException {
+        return getFetcher().fetch(line, etag, lastModified);
+    }
+
+    /**
+     * Store the status (and the content, if the status is 200) of a fetched document in the repo.
+     * This is the repository half of retrieveOriginalDocument(); call it only from the thread
+     * that owns the repo session. The body is streamed into the repo and then released.
+     * Nothing is written when the status is 304 (not modified), nor when the status and content
+     * are the same we had. A body that was dropped (see FetchResult.Outcome) is recorded as
+     * TRUNCATED, ABORTED or UNSUPPORTED_TYPE instead of the http status; a fetch aborted before
+     * any answer came keeps its 408.
+     * @param result
+     * @return true if anything about the document changed
+     * @throws RepositoryException
+     * @throws IOException
+     */
+    boolean storeOriginalDocument(FetchResult result) throws RepositoryException, IOException {
         Logger  logger = Logger.getLogger(this.getClass().toString());
-        long start_time = System.currentTimeMillis();
-        HttpClientResponseHandler handler = new HttpClientResponseHandler();
-        int status = 0;
+        URL url = new URL(result.getUrl());
+        logger.log(Level.INFO, "    status " + result.getStatus() + " (" + result.getDuration() + " ms) " + result.getUrl());
+        if (result.getStatus() == HttpStatus.SC_NOT_MODIFIED) {
+            return false;
+        }
+        String status = status(result);
+        boolean changed = false;
+        if (!repo.hasOriginalContent(url) || !status.equals(repo.getOriginalStatus(url))) {
+            repo.setOriginalStatus(url, status);
+            changed = true;
+        }
+        if (result.getStatus() == HttpStatus.SC_OK && result.getBody() != null) {
+            InputStream body = result.getBody().openStream();
+            try {
+                changed |= repo.setOriginalContent(url, body);
+            } finally {
+                body.close();
+                result.getBody().delete();
+            }
+            repo.setValidators(url, result.getETag(), result.getLastModified());
+        }
+        return changed;
+    }
+
+    private static String status(FetchResult result) {
+        switch (result.getOutcome()) {
+            case TRUNCATED:
+                return DocumentStore.STATUS_TRUNCATED;
+            case ABORTED:
+                return result.getStatus() != HttpStatus.SC_REQUEST_TIMEOUT ? DocumentStore.STATUS_ABORTED
+                        : DocumentStore.STATUS_TIMED_OUT;
+            case UNSUPPORTED_TYPE:
+                return DocumentStore.STATUS_UNSUPPORTED_TYPE;
+            default:
+                return Integer.toString(result.getStatus());
+        }
+    }
+
+    /**
+     * Stops a pool of workers, interrupting them, and waits a while (STOP_WAIT) for those
+     * still running, so that the results they leave behind can be released
+     * @param pool
+     */
+    static void stopWorkers(ExecutorService pool) {
+        pool.shutdownNow();
+        // also when stopping because this thread was interrupted
+        boolean interrupted = Thread.interrupted();
+        try {
+            pool.awaitTermination(STOP_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @param future a completed task
+     * @return its result, or null if it failed or was cancelled
+     */
+    static <T> T resultOf(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Run the extractor on the original content of a document, without touching the repo.
+     * Safe to call from several threads at the same time (as long as the extractor is).
+     * The original content is not released.
+     * @param extractor
+     * @param url
+     * @param original
+     * @return the extracted content, or the reason the extractor failed
+     */
+    ExtractionResult extractContent(ContentExtractor extractor, String url, SpooledContent original) {
+        SpooledContent extracted = new SpooledContent();
+        long start = System.currentTimeMillis();
         try {
-            logger.log(Level.INFO, "Retrieving " + line);
-            Request.Get(line).connectTimeout(60000).socketTimeout(60000)
-                    .execute().handleResponse(handler);
-            status = handler.getStatusLine().getStatusCode();
-        } catch (ConnectTimeoutException e) {
-            //e.printStackTrace();
-            status = 408;
-        } catch (SocketTimeoutException e) {
-            //e.printStackTrace();
-            status = 408;
+            InputStream content = original.openStream();
+            try {
+                extractor.extract(new URL(url), content, extracted);
+            } finally {
+                content.close();
+            }
+            extracted.close();
+            return new ExtractionResult(url, extractor.getId(), extracted, null);
+        } catch (Exception e) {
+            extracted.delete();
+            MetricsRegistry.getDefault().counter("extraction.failures").increment();
+            return new ExtractionResult(url, extractor.getId(), null, e);
+        } finally {
+            MetricsRegistry.getDefault().histogram("extraction.latency").record(System.currentTimeMillis() - start);
         }
-        repo.setOriginalStatus(new URL(line), new Integer(status).toString());
-        long duration = (System.currentTimeMillis() - start_time) / 1000;
-        logger.log(Level.INFO, "    status " + status + " (" + duration + " seconds)");
-        if (status == HttpStatus.SC_OK) {
-            repo.setOriginalContent(new URL(line), handler.getContent());
+    }
+
+    /**
+     * Store the extracted content of a document (extracted status 200), or the extracted status
+     * FAILED if the extractor failed. Call it only from the thread that owns the repo session.
+     * The extracted content is released.
+     * @param result
+     * @throws RepositoryException
+     * @throws IOException
+     */
+    void storeExtractedContent(ExtractionResult result) throws RepositoryException, IOException {
+        URL url = new URL(result.getUrl());
+        if (result.getFailure() != null) {
+            Logger logger = Logger.getLogger(this.getClass().toString());
+            logger.log(Level.WARNING, "    extraction failed " + result.getUrl() + ": " + result.getFailure());
+            repo.setExtractedStatus(url, DocumentRepository.STATUS_FAILED);
+            return;
+        }
+        InputStream extracted = result.getExtracted().openStream();
+        try {
+            repo.setExtractedContent(url, extracted, result.getExtractor());
+        } finally {
+            extracted.close();
+            result.getExtracted().delete();
         }
+        repo.setExtractedStatus(url, DocumentRepository.STATUS_OK);
     }
 }
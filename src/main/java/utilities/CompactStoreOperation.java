@@ -0,0 +1,55 @@
+package utilities;
+
+import repository.DocumentRepository;
+import repository.KeyValueDocumentStore;
+
+import javax.jcr.RepositoryException;
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * I reclaim the space of replaced content in a key-value store (see KeyValueDocumentStore.compact()):
+ * segments where less than minLiveRatio of the bytes are in use are rewritten and removed.
+ * Crawls can do the same as they go (see AbstractRepositoryOperation.setBackgroundCompaction()).
+ * In a Jackrabbit repo I remove the binaries of the data store that no document uses any more
+ * (see DocumentRepository.collectGarbage()); minLiveRatio does not apply there.
+ */
+public class CompactStoreOperation extends AbstractRepositoryOperation {
+
+    private final double minLiveRatio;
+
+    public CompactStoreOperation(File repoFolder, double minLiveRatio) {
+        super(repoFolder);
+        this.minLiveRatio = minLiveRatio;
+    }
+
+    @Override
+    public void run() {
+        Logger logger = Logger.getLogger(this.getClass().toString());
+        try {
+            getRepo().startSession();
+            long start = System.currentTimeMillis();
+            if (getRepo() instanceof KeyValueDocumentStore) {
+                long reclaimed = ((KeyValueDocumentStore) getRepo()).compact(minLiveRatio);
+                logger.log(Level.INFO, "Reclaimed " + reclaimed / 1024 + " KB in " +
+                        (System.currentTimeMillis() - start) / 1000 + " seconds");
+            } else if (getRepo() instanceof DocumentRepository) {
+                int removed = ((DocumentRepository) getRepo()).collectGarbage();
+                logger.log(Level.INFO, "Removed " + removed + " unused binaries from the data store in " +
+                        (System.currentTimeMillis() - start) / 1000 + " seconds");
+            } else {
+                logger.log(Level.INFO, "Only key-value stores and Jackrabbit repos are compacted");
+            }
+            getRepo().endSession();
+        } catch (RepositoryException e) {
+            e.printStackTrace();
+        } finally {
+            getRepo().shutdown();
+        }
+    }
+
+    public static void main(String[] args) {
+        new CompactStoreOperation(new File("data/repo"), 0.5).run();
+    }
+}
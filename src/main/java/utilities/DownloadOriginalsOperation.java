@@ -1,23 +1,95 @@
 package utilities;
 
+import metrics.Gauge;
+import metrics.MetricsRegistry;
+import repository.ContentCodec;
+import repository.CrawlJournal;
 import repository.DocumentRepository;
+import repository.StorageBackend;
+
+import org.apache.http.HttpStatus;
+import utilities.extractors.ContentExtractor;
+import utilities.helpers.ExtractionResult;
+import utilities.helpers.FetchResult;
+import utilities.helpers.HostScheduler;
+import utilities.helpers.RetryQueue;
+import utilities.helpers.SpooledContent;
 
 import javax.jcr.RepositoryException;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * I look for those documents in the repo that have the indicated original status
- * and try to retrieve them
+ * and try to retrieve them.
+ * With more than one thread, up to that many URLs are fetched at the same time by a pool of
+ * workers; everything that touches the repo still happens in the thread that calls run(),
+ * since the repo only supports one session.
+ * In that mode URLs go through a HostScheduler, so that requests are spread round-robin
+ * across hosts and each host gets at most maxPerHost requests at a time, crawlDelay
+ * milliseconds apart (backing off when the host answers 408, 429 or 5xx).
+ * With an extractor (see setExtractor()) downloading and extraction run as a pipeline.
+ * Progress is kept in a CrawlJournal, saved with the documents: a run that stops (limits,
+ * exceptions, a killed process) is resumed by the next one with the same status, which picks up
+ * the URLs that were pending and goes on reading the status index where the last one stopped.
+ * URLs that fail (no answer, 408, 429, 5xx) maxAttempts times in a row, or that were in flight
+ * that many times when a run died, are parked (original status PARKED) and not tried again.
+ * Until then they are retried within the same run, together with fresh work, after an
+ * exponential backoff with jitter (see RetryQueue). When to try them again is also recorded
+ * in the repo, so a later run does not try them before time either.
+ * Queue depths are exposed as download.* gauges in the default MetricsRegistry.
+ * A partitioned crawl (see PartitionLayout) runs one of these per partition folder, in as many
+ * processes or machines as there are partitions: they share nothing but the url list.
  */
 public class DownloadOriginalsOperation extends AbstractRepositoryOperation {
 
+    private static final int BATCH_DOCUMENTS = 100;
+    private static final long BATCH_MILLIS = 5000;
+    private static final long MAX_WAIT = 1000;
 
     String status = DocumentRepository.STATUS_MISSING;
     int countLimit = 0;
     long timeLimit = 0;
+    int threads = 1;
+    int maxPerHost = 2;
+    long crawlDelay = 500;
+    int lookahead = 10000;
+    boolean conditional = false;
+    ContentExtractor extractor;
+    int extractorThreads = Runtime.getRuntime().availableProcessors();
+    int maxAttempts = 5;
+    long retryDelay = 5000;
+    long maxRetryDelay = 300000;
+    volatile RetryQueue retries;
+    long deferred = 0;
+    // read by the metrics gauges, from other threads
+    volatile HostScheduler scheduler;
+    volatile int inFlight = 0;
+    volatile int extracting = 0;
+    long fetched = 0;
+    long changed = 0;
+    CrawlJournal journal;
+    MetricsRegistry metrics = MetricsRegistry.getDefault();
 
     /**
      * Look in the repo for all documents with the given status (using the constants defined
@@ -35,21 +107,124 @@ public class DownloadOriginalsOperation extends AbstractRepositoryOperation {
 
     }
 
+    /**
+     * Same as above, but fetching up to threads URLs concurrently
+     * @param repoFolder
+     * @param status The status of the selected URLs
+     * @param countLimit maximum number of URLs to process - 0 means all possible
+     * @param timeLimit maximum time (in minutes) to work - 0 means all possible
+     * @param threads maximum number of requests in flight - 1 means one URL at a time
+     */
+    public DownloadOriginalsOperation(File repoFolder, String status, int countLimit, long timeLimit, int threads) {
+        this(repoFolder, status, countLimit, timeLimit);
+        this.threads = threads;
+    }
+
+    /**
+     * Same as above, on a store of the given backend (KEY_VALUE for bulk crawling)
+     * @param repoFolder
+     * @param backend
+     * @param status The status of the selected URLs
+     * @param countLimit maximum number of URLs to process - 0 means all possible
+     * @param timeLimit maximum time (in minutes) to work - 0 means all possible
+     * @param threads maximum number of requests in flight - 1 means one URL at a time
+     */
+    public DownloadOriginalsOperation(File repoFolder, StorageBackend backend, String status, int countLimit,
+                                      long timeLimit, int threads) {
+        super(repoFolder, backend);
+        this.status = status;
+        this.countLimit = countLimit;
+        this.timeLimit = timeLimit;
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the politeness limits used when fetching concurrently
+     * @param maxPerHost maximum number of requests in flight for a single host
+     * @param crawlDelay minimum time (in milliseconds) between two requests to the same host
+     * @param lookahead how many URLs to read ahead from the repo, so that there are other hosts
+     *                  to work on while the busiest ones wait
+     */
+    public void setHostLimits(int maxPerHost, long crawlDelay, int lookahead) {
+        this.maxPerHost = maxPerHost;
+        this.crawlDelay = crawlDelay;
+        this.lookahead = lookahead;
+    }
+
+    /**
+     * Turns on pipeline mode: every document downloaded with status 200 is also run through
+     * the extractor, while its body is still at hand, and its original and extracted content
+     * are stored together. This saves reading everything back for an ExtractContentOperation.
+     * Bodies the store already has an extraction for (same content hash) are not extracted again
+     * (see DocumentStore.reuseExtraction()).
+     * @param extractor what to run on the downloaded documents
+     * @param extractorThreads number of extractor workers (besides the download workers)
+     */
+    public void setExtractor(ContentExtractor extractor, int extractorThreads) {
+        this.extractor = extractor;
+        this.extractorThreads = extractorThreads;
+    }
+
+    /**
+     * @param maxAttempts how many times in a row a URL can fail before it is parked
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Sets how long to wait before trying again a URL that failed
+     * @param retryDelay wait (in milliseconds) after the first failed attempt, doubled after
+     *                   each further one
+     * @param maxRetryDelay longest wait (in milliseconds)
+     */
+    public void setRetryBackoff(long retryDelay, long maxRetryDelay) {
+        this.retryDelay = retryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
     @Override
     public void run() {
         Iterator<URL> iterator = null;
         long count = 0;
         long start = System.currentTimeMillis();
+        startMetricsDump();
+        registerGauges();
         try {
             getRepo().startSession();
-            iterator = getRepo().documentsByStatusIterator(status);
-            while (iterator.hasNext() &
-                    ((countLimit == 0) | (count <= countLimit)) &
-                    ((timeLimit == 0) | ((System.currentTimeMillis() - start) < timeLimit * 60000))) {
-
-                URL doc = iterator.next();
-                retrieveOriginalDocument(doc.toString());
-                count++;
+            getRepo().beginBatch(BATCH_DOCUMENTS, BATCH_MILLIS);
+            journal = getRepo().openCrawlJournal(getClass().getSimpleName() + "-" + status);
+            retries = new RetryQueue(retryDelay, maxRetryDelay);
+            iterator = resume();
+            boolean finished;
+            if (threads > 1 || extractor != null) {
+                finished = runConcurrently(iterator, start);
+            } else {
+                while (withinLimits(count, start)) {
+                    URL doc = retries.pollDue();
+                    if (doc == null && iterator.hasNext()) {
+                        doc = iterator.next();
+                        if (!isDue(doc)) {
+                            continue;
+                        }
+                    } else if (doc == null && !retries.isEmpty()) {
+                        Thread.sleep(Math.max(1, Math.min(retries.millisUntilDue(), MAX_WAIT)));
+                        continue;
+                    } else if (doc == null) {
+                        break;
+                    }
+                    journal.markStarted(doc);
+                    store(attempt(doc.toString(), getETag(doc), getLastModified(doc)));
+                    count++;
+                }
+                finished = retries.isEmpty() && !iterator.hasNext();
+            }
+            if (finished) {
+                journal.finish();
+            }
+            if (deferred > 0) {
+                Logger logger = Logger.getLogger(this.getClass().toString());
+                logger.log(Level.INFO, "Deferred " + deferred + " URLs that cannot be tried again yet");
             }
             getRepo().endSession();
         } catch (RepositoryException e) {
@@ -58,10 +233,345 @@ public class DownloadOriginalsOperation extends AbstractRepositoryOperation {
         } catch (IOException e) {
             e.printStackTrace();
             getRepo().shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getRepo().shutdown();
+        } finally {
+            closeFetcher();
+            removeGauges();
+            stopMetricsDump();
+        }
+    }
+
+    /**
+     * Keeps up to threads fetches in flight, picking URLs through the HostScheduler.
+     * Results are stored as they complete, in this thread.
+     * The limits are checked every time a new URL is handed to the workers; fetches that are
+     * already in flight when a limit is reached are still completed and stored.
+     * In pipeline mode, fetched bodies go to the extractor workers first, and the document is
+     * stored (original and extracted content together) when its extraction completes. No new
+     * fetches are started while the extractors have 2 * extractorThreads documents waiting,
+     * so a slow extractor slows the crawl down instead of filling up memory.
+     * If it stops on an error, the bodies still in the workers' hands are released.
+     */
+    private boolean runConcurrently(Iterator<URL> iterator, long start) throws IOException, RepositoryException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorService extractorPool = extractor != null ? Executors.newFixedThreadPool(extractorThreads) : null;
+        // both stages complete into the same queue, so this thread waits on whichever is first
+        BlockingQueue<Future<Fetched>> completed = new LinkedBlockingQueue<Future<Fetched>>();
+        CompletionService<Fetched> fetches = new ExecutorCompletionService<Fetched>(pool, completed);
+        CompletionService<Fetched> extractions = extractor != null ?
+                new ExecutorCompletionService<Fetched>(extractorPool, completed) : null;
+        int maxExtracting = 2 * extractorThreads;
+        // bodies handed to the extractors, until their extraction is taken
+        Set<SpooledContent> extractingBodies = Collections.newSetFromMap(new IdentityHashMap<SpooledContent, Boolean>());
+        HostScheduler scheduler = new HostScheduler(maxPerHost, crawlDelay);
+        this.scheduler = scheduler;
+        long submitted = 0;
+        inFlight = 0;
+        extracting = 0;
+        try {
+            while (true) {
+                while (scheduler.size() < lookahead && iterator.hasNext()) {
+                    URL doc = iterator.next();
+                    if (isDue(doc)) {
+                        scheduler.add(doc);
+                    }
+                }
+                URL next;
+                while ((next = retries.pollDue()) != null) {
+                    scheduler.add(next);
+                }
+                while (inFlight < threads && extracting < maxExtracting && withinLimits(submitted, start) &&
+                        (next = scheduler.next()) != null) {
+                    final String doc = next.toString();
+                    final String etag = getETag(next);
+                    final String lastModified = getLastModified(next);
+                    journal.markStarted(next);
+                    fetches.submit(new Callable<Fetched>() {
+                        @Override
+                        public Fetched call() {
+                            return new Fetched(attempt(doc, etag, lastModified), null);
+                        }
+                    });
+                    submitted++;
+                    inFlight++;
+                }
+                boolean moreToSubmit = (!scheduler.isEmpty() || !retries.isEmpty()) && withinLimits(submitted, start);
+                if (inFlight == 0 && extracting == 0 && !moreToSubmit) {
+                    return scheduler.isEmpty() && retries.isEmpty() && !iterator.hasNext();
+                }
+                long wait = moreToSubmit && extracting < maxExtracting ?
+                        earliest(scheduler.millisUntilReady(), retries.millisUntilDue()) : -1;
+                Future<Fetched> done;
+                if (inFlight == 0 && extracting == 0) {
+                    Thread.sleep(Math.max(1, Math.min(wait, MAX_WAIT)));
+                    continue;
+                } else if (wait >= 0 && inFlight < threads) {
+                    done = completed.poll(Math.max(1, wait), TimeUnit.MILLISECONDS);
+                } else {
+                    done = completed.take();
+                }
+                if (done == null) {
+                    continue;
+                }
+                final Fetched fetched = done.get();
+                final FetchResult result = fetched.fetch;
+                if (fetched.extraction != null) {
+                    extracting--;
+                    extractingBodies.remove(result.getBody());
+                    store(result);
+                    storeExtractedContent(fetched.extraction);
+                    continue;
+                }
+                inFlight--;
+                scheduler.completed(result.getUrl(), result.getStatus(), result.getFailure() != null);
+                if (extractions != null && result.getStatus() == HttpStatus.SC_OK && result.getBody() != null &&
+                        !getRepo().reuseExtraction(new URL(result.getUrl()), result.getBody().getHash())) {
+                    extractions.submit(new Callable<Fetched>() {
+                        @Override
+                        public Fetched call() {
+                            return new Fetched(result, extractContent(extractor, result.getUrl(), result.getBody()));
+                        }
+                    });
+                    extractingBodies.add(result.getBody());
+                    extracting++;
+                } else {
+                    store(result);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for downloads", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            stopWorkers(pool);
+            if (extractorPool != null) {
+                stopWorkers(extractorPool);
+            }
+            // left by a run that stopped on an error: bodies of extractions that never ran, and
+            // fetches and extractions nobody took
+            for (SpooledContent body : extractingBodies) {
+                body.delete();
+            }
+            Future<Fetched> left;
+            while ((left = completed.poll()) != null) {
+                Fetched fetched = resultOf(left);
+                if (fetched != null && fetched.fetch.getBody() != null) {
+                    fetched.fetch.getBody().delete();
+                }
+                if (fetched != null && fetched.extraction != null && fetched.extraction.getExtracted() != null) {
+                    fetched.extraction.getExtracted().delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * What comes out of the workers: a fetched document and, once the extractor went
+     * through it, what the extractor made of it
+     */
+    private static class Fetched {
+        final FetchResult fetch;
+        final ExtractionResult extraction;
+
+        Fetched(FetchResult fetch, ExtractionResult extraction) {
+            this.fetch = fetch;
+            this.extraction = extraction;
         }
     }
 
+    /**
+     * Fetches a URL; failing to get an answer is an outcome like any other, not a reason to stop
+     */
+    private FetchResult attempt(String doc, String etag, String lastModified) {
+        long start = System.currentTimeMillis();
+        try {
+            return fetchOriginalDocument(doc, etag, lastModified);
+        } catch (IOException e) {
+            return new FetchResult(doc, e, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * URLs that stay pending in the journal are those queued to be tried again
+     */
+    private void store(FetchResult result) throws IOException, RepositoryException {
+        URL url = new URL(result.getUrl());
+        boolean retry = false;
+        fetched++;
+        metrics.counter("download.stored").increment();
+        if (result.getFailure() != null) {
+            Logger logger = Logger.getLogger(this.getClass().toString());
+            logger.log(Level.WARNING, "    failed " + result.getUrl() + ": " + result.getFailure());
+            retry = !failedAttempt(url);
+        } else {
+            if (storeOriginalDocument(result)) {
+                changed++;
+                metrics.counter("download.changed").increment();
+            }
+            if (HostScheduler.isTransient(result.getStatus())) {
+                retry = !failedAttempt(url);
+            } else {
+                getRepo().clearAttempts(url);
+            }
+        }
+        if (!retry) {
+            journal.removePending(url);
+        }
+    }
+
+    /**
+     * Counts a failed attempt for url. It is parked if it failed too many times, and queued to
+     * be tried again after a backoff otherwise.
+     * @return true if the url was parked
+     */
+    private boolean failedAttempt(URL url) throws RepositoryException {
+        int attempts = getRepo().recordFailedAttempt(url);
+        if (attempts < maxAttempts) {
+            long due = System.currentTimeMillis() + retries.delay(attempts);
+            Calendar nextAttempt = Calendar.getInstance();
+            nextAttempt.setTimeInMillis(due);
+            getRepo().setNextAttempt(url, nextAttempt);
+            retries.add(url, due);
+            return false;
+        }
+        Logger logger = Logger.getLogger(this.getClass().toString());
+        logger.log(Level.WARNING, "    parked " + url + " after " + maxAttempts + " failed attempts");
+        getRepo().setOriginalStatus(url, DocumentRepository.STATUS_PARKED);
+        return true;
+    }
+
+    /**
+     * URLs read from the repo that cannot be tried again yet are left for a later run
+     * @return true if url can be fetched now
+     */
+    private boolean isDue(URL url) throws RepositoryException {
+        Calendar nextAttempt = getRepo().getNextAttempt(url);
+        if (nextAttempt == null || nextAttempt.getTimeInMillis() <= System.currentTimeMillis()) {
+            return true;
+        }
+        journal.removePending(url);
+        deferred++;
+        return false;
+    }
+
+    private void registerGauges() {
+        metrics.gauge("download.in_flight", new Gauge() {
+            @Override
+            public long getValue() {
+                return inFlight;
+            }
+        });
+        metrics.gauge("download.scheduled", new Gauge() {
+            @Override
+            public long getValue() {
+                HostScheduler current = scheduler;
+                return current != null ? current.size() : 0;
+            }
+        });
+        metrics.gauge("download.retries", new Gauge() {
+            @Override
+            public long getValue() {
+                RetryQueue current = retries;
+                return current != null ? current.size() : 0;
+            }
+        });
+        metrics.gauge("extraction.pending", new Gauge() {
+            @Override
+            public long getValue() {
+                return extracting;
+            }
+        });
+    }
+
+    private void removeGauges() {
+        metrics.removeGauge("download.in_flight");
+        metrics.removeGauge("download.scheduled");
+        metrics.removeGauge("download.retries");
+        metrics.removeGauge("extraction.pending");
+    }
+
+    private static long earliest(long wait, long otherWait) {
+        if (wait < 0 || otherWait < 0) {
+            return Math.max(wait, otherWait);
+        }
+        return Math.min(wait, otherWait);
+    }
+
+    /**
+     * Returns the URLs to work on: those left pending in the journal by an earlier run, and
+     * then those in the status index after the journal cursor. Pending URLs that were in
+     * flight when the earlier run stopped count as a failed attempt; those (and those that were
+     * waiting for a retry) go to the retry queue.
+     */
+    private Iterator<URL> resume() throws RepositoryException {
+        List<URL> pending = new ArrayList<URL>();
+        if (journal.isResumed()) {
+            for (URL url : journal.getPending()) {
+                if (journal.wasStarted(url)) {
+                    journal.removePending(url);
+                    if (!failedAttempt(url)) {
+                        journal.addPending(url);
+                    }
+                    continue;
+                }
+                Calendar nextAttempt = getRepo().getNextAttempt(url);
+                if (nextAttempt != null && nextAttempt.getTimeInMillis() > System.currentTimeMillis()) {
+                    retries.add(url, nextAttempt.getTimeInMillis());
+                    continue;
+                }
+                pending.add(url);
+            }
+            Logger logger = Logger.getLogger(this.getClass().toString());
+            logger.log(Level.INFO, "Resuming crawl started on " + journal.getStartedOn().getTime() +
+                    ", " + pending.size() + " URLs pending");
+        }
+        final Iterator<URL> first = pending.iterator();
+        final Iterator<URL> second = getRepo().documentsByStatusIterator(status, journal);
+        return new Iterator<URL>() {
+            @Override
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            @Override
+            public URL next() {
+                return first.hasNext() ? first.next() : second.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * The validators are only sent in conditional mode, and read here since workers cannot
+     * touch the repo
+     */
+    private String getETag(URL doc) throws RepositoryException {
+        return conditional ? getRepo().getETag(doc) : null;
+    }
+
+    private String getLastModified(URL doc) throws RepositoryException {
+        return conditional ? getRepo().getLastModified(doc) : null;
+    }
+
+    private boolean withinLimits(long count, long start) {
+        return ((countLimit == 0) | (count <= countLimit)) &
+                ((timeLimit == 0) | ((System.currentTimeMillis() - start) < timeLimit * 60000));
+    }
+
     public static void main(String[] args) {
-        new DownloadOriginalsOperation(new File("data/repo"), DocumentRepository.STATUS_MISSING,0,1).run();
+        DownloadOriginalsOperation operation =
+                new DownloadOriginalsOperation(new File("data/repo"), DocumentRepository.STATUS_MISSING,0,1);
+        operation.getRepo().setContentCodec(ContentCodec.DEFLATE_HTML);
+        operation.run();
     }
 }
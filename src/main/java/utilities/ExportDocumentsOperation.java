@@ -0,0 +1,88 @@
+package utilities;
+
+import repository.DocumentExporter;
+import repository.DocumentStatistics;
+
+import javax.jcr.RepositoryException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * I export one row per document (url, statuses, modification date, size) and the counts by
+ * status, host and date, for analysis outside the repository (see data/main.R).
+ * Both come out of a single walk over the repository (see DocumentStore.visitDocuments()).
+ */
+public class ExportDocumentsOperation extends AbstractRepositoryOperation {
+
+    private final File target;
+    private final DocumentExporter.Format format;
+    private final File statisticsFile;
+
+    /**
+     * @param repoFolder
+     * @param target the file (CSV) or folder (COLUMNAR) for the documents - null to only count them
+     * @param format
+     * @param statisticsFile where to write the counts, as csv
+     */
+    public ExportDocumentsOperation(File repoFolder, File target, DocumentExporter.Format format,
+                                    File statisticsFile) {
+        super(repoFolder);
+        this.target = target;
+        this.format = format;
+        this.statisticsFile = statisticsFile;
+    }
+
+    @Override
+    public void run() {
+        Logger logger = Logger.getLogger(this.getClass().toString());
+        DocumentExporter exporter = null;
+        Writer writer = null;
+        try {
+            getRepo().startSession();
+            long start = System.currentTimeMillis();
+            DocumentStatistics statistics = new DocumentStatistics();
+            if (target != null) {
+                exporter = new DocumentExporter(target, format);
+                getRepo().visitDocuments(statistics, exporter);
+            } else {
+                getRepo().visitDocuments(statistics);
+            }
+            writer = new OutputStreamWriter(new FileOutputStream(statisticsFile), Charset.forName("UTF-8"));
+            statistics.writeCsv(writer);
+            logger.log(Level.INFO, "Exported " + statistics.getDocuments() + " documents in " +
+                    (System.currentTimeMillis() - start) / 1000 + " seconds");
+            for (Map.Entry<String, Long> entry : statistics.getCountsByStatus().entrySet()) {
+                logger.log(Level.INFO, entry.getKey() + ": " + entry.getValue());
+            }
+            getRepo().endSession();
+        } catch (RepositoryException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (exporter != null) {
+                    exporter.close();
+                }
+                if (writer != null) {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            getRepo().shutdown();
+        }
+    }
+
+    public static void main(String[] args) {
+        new ExportDocumentsOperation(new File("data/repo"), new File("data/documents.csv.gz"),
+                DocumentExporter.Format.CSV, new File("data/statistics.csv")).run();
+    }
+}
@@ -0,0 +1,207 @@
+package utilities;
+
+import metrics.Gauge;
+import metrics.MetricsRegistry;
+import repository.DocumentRepository;
+import utilities.extractors.ContentExtractor;
+import utilities.extractors.JsonLdExtractor;
+import utilities.helpers.ExtractionResult;
+import utilities.helpers.SpooledContent;
+
+import javax.jcr.RepositoryException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * I look for those documents in the repo that were downloaded (original status 200) but not
+ * extracted yet (no extracted status), run an extractor on them and store what it gives.
+ * Documents whose original content changed since they were extracted have lost their extracted
+ * status (see DocumentStore.setOriginalContent()), so they are extracted again.
+ * The extractor runs on a pool of workers, one per core by default. Everything that touches
+ * the repo happens in the thread that calls run(): it reads the original content of the next
+ * documents into memory (or a temporary file, for large ones), hands them to the workers and
+ * stores their results in batches. Only a couple of documents per worker are read ahead, so
+ * memory use stays flat however many documents there are.
+ * Documents the extractor fails on get the extracted status FAILED. If the run stops on an
+ * error, the temporary files of the documents still in the workers' hands are released.
+ */
+public class ExtractContentOperation extends AbstractRepositoryOperation {
+
+    private static final int BATCH_DOCUMENTS = 100;
+    private static final long BATCH_MILLIS = 5000;
+    private static final int READ_AHEAD = 2;
+
+    ContentExtractor extractor;
+    int countLimit = 0;
+    long timeLimit = 0;
+    int threads = Runtime.getRuntime().availableProcessors();
+    // read by the metrics gauge, from another thread
+    volatile int inFlight = 0;
+
+    /**
+     * @param repoFolder
+     * @param extractor what to run on the documents
+     * @param countLimit maximum number of documents to extract - 0 means all possible
+     * @param timeLimit maximum time (in minutes) to work - 0 means all possible
+     */
+    public ExtractContentOperation(File repoFolder, ContentExtractor extractor, int countLimit, long timeLimit) {
+        super(repoFolder);
+        this.extractor = extractor;
+        this.countLimit = countLimit;
+        this.timeLimit = timeLimit;
+    }
+
+    /**
+     * Same as above, but with a given number of workers instead of one per core
+     * @param repoFolder
+     * @param extractor what to run on the documents
+     * @param countLimit maximum number of documents to extract - 0 means all possible
+     * @param timeLimit maximum time (in minutes) to work - 0 means all possible
+     * @param threads number of extractor workers
+     */
+    public ExtractContentOperation(File repoFolder, ContentExtractor extractor, int countLimit, long timeLimit,
+                                   int threads) {
+        this(repoFolder, extractor, countLimit, timeLimit);
+        this.threads = threads;
+    }
+
+    @Override
+    public void run() {
+        Logger logger = Logger.getLogger(this.getClass().toString());
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CompletionService<ExtractionResult> completionService = new ExecutorCompletionService<ExtractionResult>(pool);
+        // original content handed to the workers, until their result is taken
+        Map<String, SpooledContent> extracting = new HashMap<String, SpooledContent>();
+        long submitted = 0;
+        long failed = 0;
+        long reused = 0;
+        inFlight = 0;
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.gauge("extraction.in_flight", new Gauge() {
+            @Override
+            public long getValue() {
+                return inFlight;
+            }
+        });
+        startMetricsDump();
+        try {
+            getRepo().startSession();
+            getRepo().beginBatch(BATCH_DOCUMENTS, BATCH_MILLIS);
+            Iterator<URL> iterator = getRepo().documentsByStatusIterator(DocumentRepository.STATUS_OK);
+            while (true) {
+                while (inFlight < threads * READ_AHEAD && withinLimits(submitted, start) && iterator.hasNext()) {
+                    URL doc = iterator.next();
+                    if (getRepo().getExtractedStatus(doc) != null) {
+                        continue;
+                    }
+                    // the same content was extracted for another document
+                    if (getRepo().reuseExtraction(doc, getRepo().getContentHash(doc))) {
+                        reused++;
+                        continue;
+                    }
+                    final SpooledContent original = readOriginalContent(doc);
+                    if (original == null) {
+                        continue;
+                    }
+                    final String url = doc.toString();
+                    completionService.submit(new Callable<ExtractionResult>() {
+                        @Override
+                        public ExtractionResult call() {
+                            try {
+                                return extractContent(extractor, url, original);
+                            } finally {
+                                original.delete();
+                            }
+                        }
+                    });
+                    extracting.put(url, original);
+                    submitted++;
+                    inFlight++;
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+                ExtractionResult result = completionService.take().get();
+                inFlight--;
+                extracting.remove(result.getUrl());
+                if (result.getFailure() != null) {
+                    failed++;
+                }
+                storeExtractedContent(result);
+                metrics.counter("extraction.stored").increment();
+            }
+            getRepo().endSession();
+            logger.log(Level.INFO, "Extracted " + submitted + " documents (" + failed + " failed, " +
+                    reused + " more with content already extracted) in " +
+                    (System.currentTimeMillis() - start) / 1000 + " seconds");
+        } catch (RepositoryException e) {
+            e.printStackTrace();
+            getRepo().shutdown();
+        } catch (IOException e) {
+            e.printStackTrace();
+            getRepo().shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getRepo().shutdown();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            getRepo().shutdown();
+        } finally {
+            stopWorkers(pool);
+            // left by a run that stopped on an error: content of tasks that never ran, and results nobody took
+            for (SpooledContent original : extracting.values()) {
+                original.delete();
+            }
+            Future<ExtractionResult> left;
+            while ((left = completionService.poll()) != null) {
+                ExtractionResult result = resultOf(left);
+                if (result != null && result.getExtracted() != null) {
+                    result.getExtracted().delete();
+                }
+            }
+            metrics.removeGauge("extraction.in_flight");
+            stopMetricsDump();
+        }
+    }
+
+    /**
+     * Copies the original content out of the repo, so that workers never touch the session
+     * @return the content, or null if the document has none
+     */
+    private SpooledContent readOriginalContent(URL doc) throws RepositoryException, IOException {
+        InputStream stream = getRepo().getOriginalContentStream(doc);
+        if (stream == null) {
+            return null;
+        }
+        SpooledContent original = new SpooledContent();
+        original.readFrom(stream);
+        return original;
+    }
+
+    private boolean withinLimits(long count, long start) {
+        return ((countLimit == 0) | (count < countLimit)) &
+                ((timeLimit == 0) | ((System.currentTimeMillis() - start) < timeLimit * 60000));
+    }
+
+    public static void main(String[] args) {
+        ExtractContentOperation operation =
+                new ExtractContentOperation(new File("data/repo"), new JsonLdExtractor(), 0, 0);
+        operation.run();
+        operation.getRepo().shutdown();
+    }
+}
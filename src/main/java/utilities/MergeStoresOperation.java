@@ -0,0 +1,134 @@
+package utilities;
+
+import metrics.MetricsRegistry;
+import repository.DocumentCursor;
+import repository.DocumentStore;
+import repository.StorageBackend;
+
+import javax.jcr.RepositoryException;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * I copy every document of one or more stores into the repo: statuses, original and extracted
+ * content, validators and failed attempts. A source can be any store, or the root folder of a
+ * partitioned crawl (see PartitionLayout), which is read as one store, so this is how the
+ * partitions of a crawl end up in a single repo.
+ * Sources are read one after the other; a url that is already in the repo (with a status other
+ * than MISSING) is left as it is, so the first source to have fetched it wins. Modification
+ * dates are those of the copy.
+ */
+public class MergeStoresOperation extends AbstractRepositoryOperation {
+
+    private static final int BATCH_DOCUMENTS = 1000;
+    private static final long BATCH_MILLIS = 10000;
+
+    private final List<File> sources;
+
+    /**
+     * @param repoFolder the repo the documents are copied into
+     * @param sources folders of the stores to copy
+     */
+    public MergeStoresOperation(File repoFolder, List<File> sources) {
+        super(repoFolder);
+        this.sources = sources;
+    }
+
+    /**
+     * Same as above, creating the repo with the given backend if there is none
+     * @param repoFolder
+     * @param backend
+     * @param sources
+     */
+    public MergeStoresOperation(File repoFolder, StorageBackend backend, List<File> sources) {
+        super(repoFolder, backend);
+        this.sources = sources;
+    }
+
+    @Override
+    public void run() {
+        Logger logger = Logger.getLogger(this.getClass().toString());
+        startMetricsDump();
+        try {
+            getRepo().startSession();
+            getRepo().beginBatch(BATCH_DOCUMENTS, BATCH_MILLIS);
+            for (File folder : sources) {
+                DocumentStore source = StorageBackend.of(folder).open(folder);
+                try {
+                    source.startSession();
+                    long start = System.currentTimeMillis();
+                    int copied = 0;
+                    int kept = 0;
+                    DocumentCursor documents = source.documentsCursor(DocumentCursor.DEFAULT_BATCH_SIZE);
+                    while (documents.hasNext()) {
+                        if (copy(source, documents.next())) {
+                            copied++;
+                        } else {
+                            kept++;
+                        }
+                    }
+                    logger.log(Level.INFO, "Merged " + copied + " documents from " + folder + " in " +
+                            (System.currentTimeMillis() - start) / 1000 + " seconds (" + kept +
+                            " already in the repo, " + documents.getSkipped().size() + " unreadable)");
+                    source.endSession();
+                } finally {
+                    source.shutdown();
+                }
+            }
+            getRepo().commitBatch();
+            getRepo().endSession();
+        } catch (RepositoryException e) {
+            e.printStackTrace();
+        } finally {
+            getRepo().shutdown();
+            stopMetricsDump();
+        }
+    }
+
+    /**
+     * Copies a document of source into the repo
+     * @return false if the repo had it already
+     */
+    private boolean copy(DocumentStore source, URL url) throws RepositoryException {
+        DocumentStore repo = getRepo();
+        if (repo.hasOriginalContent(url) &&
+                !DocumentStore.STATUS_MISSING.equals(repo.getOriginalStatus(url))) {
+            MetricsRegistry.getDefault().counter("merge.kept").increment();
+            return false;
+        }
+        repo.setOriginalStatus(url, source.getOriginalStatus(url));
+        InputStream content = source.getOriginalContentStream(url);
+        if (content != null) {
+            repo.setOriginalContent(url, content);
+            repo.setValidators(url, source.getETag(url), source.getLastModified(url));
+        }
+        String extractedStatus = source.getExtractedStatus(url);
+        if (extractedStatus != null) {
+            InputStream extracted = source.getExtractedContentStream(url);
+            if (extracted != null) {
+                repo.setExtractedContent(url, extracted, source.getExtractor(url));
+            }
+            repo.setExtractedStatus(url, extractedStatus);
+        }
+        repo.clearAttempts(url);
+        for (int i = source.getAttempts(url); i > 0; i--) {
+            repo.recordFailedAttempt(url);
+        }
+        Calendar nextAttempt = source.getNextAttempt(url);
+        if (nextAttempt != null) {
+            repo.setNextAttempt(url, nextAttempt);
+        }
+        MetricsRegistry.getDefault().counter("merge.copied").increment();
+        return true;
+    }
+
+    public static void main(String[] args) {
+        new MergeStoresOperation(new File("data/repo"), Arrays.asList(new File("data/partitions"))).run();
+    }
+}
@@ -0,0 +1,47 @@
+package utilities;
+
+import repository.DocumentRepository;
+
+import javax.jcr.RepositoryException;
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * I move the documents of a repo created with the old flat layout (every document a child
+ * of /documents_home) into buckets, and rebuild its status index.
+ * Safe to run again if it was interrupted, and a no-op on repos that are already sharded.
+ */
+public class MigrateLayoutOperation extends AbstractRepositoryOperation {
+
+    public MigrateLayoutOperation(File repoFolder) {
+        super(repoFolder);
+    }
+
+    @Override
+    public void run() {
+        Logger logger = Logger.getLogger(this.getClass().toString());
+        try {
+            getRepo().startSession();
+            if (!(getRepo() instanceof DocumentRepository)) {
+                logger.log(Level.INFO, "Only JCR repositories have layouts");
+            } else if (((DocumentRepository) getRepo()).isSharded()) {
+                logger.log(Level.INFO, "Repository is already sharded");
+            } else {
+                long start = System.currentTimeMillis();
+                ((DocumentRepository) getRepo()).migrateToShardedLayout();
+                logger.log(Level.INFO, "Migrated " + getRepo().countDocuments() + " documents in " +
+                        (System.currentTimeMillis() - start) / 1000 + " seconds");
+            }
+            getRepo().endSession();
+        } catch (RepositoryException e) {
+            e.printStackTrace();
+        } finally {
+            getRepo().shutdown();
+        }
+    }
+
+    public static void main(String[] args) {
+        new MigrateLayoutOperation(new File("data/repo")).run();
+    }
+}
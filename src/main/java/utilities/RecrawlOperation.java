@@ -0,0 +1,44 @@
+package utilities;
+
+import repository.ContentCodec;
+import repository.DocumentRepository;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * I refresh the documents that were already downloaded (status 200). Each request carries
+ * the validators stored with the document (If-None-Match / If-Modified-Since), so servers
+ * that support them answer 304 without a body; those documents are not written at all.
+ * Documents that come back in full are only written if their content hash changed.
+ * Fetching works as in DownloadOriginalsOperation (threads, host limits).
+ */
+public class RecrawlOperation extends DownloadOriginalsOperation {
+
+    /**
+     * @param repoFolder
+     * @param countLimit maximum number of URLs to process - 0 means all possible
+     * @param timeLimit maximum time (in minutes) to work - 0 means all possible
+     * @param threads maximum number of requests in flight - 1 means one URL at a time
+     */
+    public RecrawlOperation(File repoFolder, int countLimit, long timeLimit, int threads) {
+        super(repoFolder, DocumentRepository.STATUS_OK, countLimit, timeLimit, threads);
+        this.conditional = true;
+    }
+
+    @Override
+    public void run() {
+        super.run();
+        Logger logger = Logger.getLogger(this.getClass().toString());
+        logger.log(Level.INFO, "Re-fetched " + fetched + " documents, " + changed + " changed");
+    }
+
+    public static void main(String[] args) {
+        RecrawlOperation operation = new RecrawlOperation(new File("data/repo"), 0, 0, 8);
+        operation.getRepo().setContentCodec(ContentCodec.DEFLATE_HTML);
+        operation.setBackgroundCompaction(10 * 60 * 1000, 0.5);
+        operation.run();
+        operation.getRepo().shutdown();
+    }
+}
@@ -1,43 +1,137 @@
 package utilities;
 
+import metrics.MetricsRegistry;
+import repository.DocumentCursor;
 import repository.DocumentRepository;
+import repository.PartitionLayout;
+import repository.StorageBackend;
+import utilities.helpers.FingerprintSet;
 
 import javax.jcr.RepositoryException;
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Created by alejandrofernandez on 6/10/14.
+ *
+ * Registers (with status MISSING) every url in a file that is not in the repo yet.
+ * The file is streamed once; duplicated lines are dropped with an in-memory FingerprintSet,
+ * so the list does not need to be made unique beforehand. New urls are checked against the
+ * repo and inserted in batches.
+ * When most of the list is expected to be registered already (a re-import), use preloadExisting:
+ * the urls in the repo are listed once and seeded into the set, so that known urls never reach
+ * the repo at all.
+ * For a partitioned crawl (see PartitionLayout), register the list on the root folder to spread it
+ * over all partitions, or on a single partition (each crawling process taking the same list) to
+ * keep only the urls of that partition.
  */
 public class RegisterURLsOperation extends AbstractRepositoryOperation {
 
+    private static final int BATCH_DOCUMENTS = 1000;
+    private static final long BATCH_MILLIS = 10000;
+    private static final int CHECK_BATCH = 1000;
+
     File urlList;
+    boolean preloadExisting = false;
+    PartitionLayout layout;
+    int partition = -1;
 
     public RegisterURLsOperation(File repoFolder, File urlList) {
         super(repoFolder);
         this.urlList = urlList;
     }
 
+    /**
+     * @param repoFolder
+     * @param urlList a file with one url per line
+     * @param preloadExisting seed the duplicate filter with all the urls already in the repo
+     */
+    public RegisterURLsOperation(File repoFolder, File urlList, boolean preloadExisting) {
+        this(repoFolder, urlList);
+        this.preloadExisting = preloadExisting;
+    }
+
+    /**
+     * Same as above, on a store of the given backend (KEY_VALUE for bulk crawling)
+     * @param repoFolder
+     * @param backend
+     * @param urlList a file with one url per line
+     * @param preloadExisting seed the duplicate filter with all the urls already in the repo
+     */
+    public RegisterURLsOperation(File repoFolder, StorageBackend backend, File urlList, boolean preloadExisting) {
+        super(repoFolder, backend);
+        this.urlList = urlList;
+        this.preloadExisting = preloadExisting;
+    }
+
+    /**
+     * Registers in one partition of a partitioned crawl the urls of the list that belong to it
+     * @param layout
+     * @param partition
+     * @param urlList a file with one url per line (all partitions)
+     * @param preloadExisting seed the duplicate filter with all the urls already in the partition
+     */
+    public RegisterURLsOperation(PartitionLayout layout, int partition, File urlList, boolean preloadExisting) {
+        this(layout.getFolder(partition), urlList, preloadExisting);
+        this.layout = layout;
+        this.partition = partition;
+    }
+
     @Override
     public void run() {
         FileInputStream fis = null;
         Logger logger = Logger.getLogger(this.getClass().toString());
+        startMetricsDump();
         try {
             fis = new FileInputStream(urlList);
             BufferedReader br = new BufferedReader(new InputStreamReader(fis, Charset.forName("UTF-8")));
             String line;
 
             int count = 0;
+            int duplicates = 0;
+            int invalid = 0;
+            int elsewhere = 0;
             getRepo().startSession();
+            FingerprintSet seen = new FingerprintSet();
+            if (preloadExisting) {
+                DocumentCursor existing = getRepo().documentsCursor(DocumentCursor.DEFAULT_BATCH_SIZE);
+                while (existing.hasNext()) {
+                    seen.add(existing.next().toString());
+                }
+                logger.log(Level.INFO, "Preloaded " + seen.size() + " urls from the repo (" +
+                        existing.getSkipped().size() + " unreadable)");
+            }
+            getRepo().beginBatch(BATCH_DOCUMENTS, BATCH_MILLIS);
+            List<URL> pending = new ArrayList<URL>(CHECK_BATCH);
             long start = System.currentTimeMillis();
             while ((line = br.readLine()) != null) {
-                if (!getRepo().hasOriginalContent(new URL(line))) {
-                    getRepo().setOriginalStatus(new URL(line), DocumentRepository.STATUS_MISSING);
-                    count ++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (!seen.add(line)) {
+                    duplicates++;
+                    continue;
+                }
+                try {
+                    URL url = new URL(line);
+                    if (layout != null && layout.partitionOf(url) != partition) {
+                        elsewhere++;
+                        continue;
+                    }
+                    pending.add(url);
+                } catch (MalformedURLException e) {
+                    logger.log(Level.WARNING, "Skipping malformed url " + line);
+                    invalid++;
+                }
+                if (pending.size() >= CHECK_BATCH) {
+                    count += register(pending);
                 }
                 if ((System.currentTimeMillis() - start) >= 30000) {
                     start = System.currentTimeMillis();
@@ -45,20 +139,37 @@ public class RegisterURLsOperation extends AbstractRepositoryOperation {
                 }
 
             }
+            count += register(pending);
+            logger.log(Level.INFO, "Registered " + count + " urls (" + duplicates + " duplicated lines, " +
+                    invalid + " malformed" + (layout != null ? ", " + elsewhere + " in other partitions" : "") + ")");
+            getRepo().commitBatch();
             getRepo().shutdown();
             br.close();
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (RepositoryException e) {
             e.printStackTrace();
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            stopMetricsDump();
         }
 
     }
 
+    /**
+     * Registers the urls in pending that are not in the repo yet, and empties pending
+     * @return the number of urls registered
+     */
+    private int register(List<URL> pending) throws RepositoryException {
+        List<URL> missing = getRepo().missingDocuments(pending);
+        for (URL url : missing) {
+            getRepo().setOriginalStatus(url, DocumentRepository.STATUS_MISSING);
+        }
+        pending.clear();
+        MetricsRegistry.getDefault().counter("register.registered").add(missing.size());
+        return missing.size();
+    }
 
     public static void main(String[] args) {
         new RegisterURLsOperation(new File("data/repo"), new File("data/all_urls.txt")).run();
@@ -0,0 +1,30 @@
+package utilities.extractors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+
+/**
+ * Something that turns the original content of a document (html) into extracted content
+ * (rdf, n3, json...). Implementations are called from several worker threads at the same
+ * time, so they must be thread safe, and they never see the repository: the content comes
+ * in as a stream and the extracted content goes out as a stream.
+ */
+public interface ContentExtractor {
+
+    /**
+     * @return the id recorded in the repo as the extractor of the content (e.g. the URL of
+     * the extractor)
+     */
+    String getId();
+
+    /**
+     * Extracts content from a document
+     * @param url the url of the document
+     * @param original the original content, encoded in UTF-8 - do not close it
+     * @param extracted where to write the extracted content, encoded in UTF-8 - do not close it
+     * @throws IOException if the document could not be extracted
+     */
+    void extract(URL url, InputStream original, OutputStream extracted) throws IOException;
+}
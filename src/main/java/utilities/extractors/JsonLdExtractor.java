@@ -0,0 +1,65 @@
+package utilities.extractors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the JSON-LD blocks embedded in a page (script elements of type
+ * application/ld+json). The extracted content is a JSON array with one element per block,
+ * copied as they are; pages without blocks give an empty array.
+ */
+public class JsonLdExtractor implements ContentExtractor {
+
+    public static final String ID = "jsonld";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern SCRIPT = Pattern.compile(
+            "<script[^>]*type\\s*=\\s*[\"']?application/ld\\+json[\"']?[^>]*>(.*?)</script\\s*>",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public void extract(URL url, InputStream original, OutputStream extracted) throws IOException {
+        Matcher matcher = SCRIPT.matcher(read(original));
+        Writer writer = new OutputStreamWriter(extracted, UTF_8);
+        writer.write('[');
+        boolean first = true;
+        while (matcher.find()) {
+            String block = matcher.group(1).trim();
+            if (block.isEmpty()) {
+                continue;
+            }
+            if (!first) {
+                writer.write(',');
+            }
+            writer.write(block);
+            first = false;
+        }
+        writer.write(']');
+        writer.flush();
+    }
+
+    private static CharSequence read(InputStream original) throws IOException {
+        Reader reader = new InputStreamReader(original, UTF_8);
+        StringBuilder content = new StringBuilder();
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            content.append(buffer, 0, read);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,78 @@
+package utilities.helpers;
+
+import org.apache.http.conn.DnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the addresses of the hosts we resolved for a while, so that successive fetches
+ * from the same host do not pay a lookup each. Hosts that could not be resolved are
+ * remembered too - url lists have plenty of dead domains - but only for a short while, so that
+ * a lookup that failed because the resolver hiccuped does not fail a whole host for long.
+ * Thread safe.
+ */
+public class CachingDnsResolver implements DnsResolver {
+
+    private static final int MAX_ENTRIES = 100000;
+    public static final long DEFAULT_NEGATIVE_TTL = 30 * 1000;
+
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    private final long timeToLive;
+    private final long negativeTimeToLive;
+
+    /**
+     * @param timeToLive how long (in milliseconds) to remember a resolution
+     */
+    public CachingDnsResolver(long timeToLive) {
+        this(timeToLive, Math.min(timeToLive, DEFAULT_NEGATIVE_TTL));
+    }
+
+    /**
+     * @param timeToLive how long (in milliseconds) to remember a resolution
+     * @param negativeTimeToLive how long (in milliseconds) to remember that a host could not be
+     *                           resolved; 0 not to remember it at all
+     */
+    public CachingDnsResolver(long timeToLive, long negativeTimeToLive) {
+        this.timeToLive = timeToLive;
+        this.negativeTimeToLive = negativeTimeToLive;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(host);
+        if (entry == null || entry.expires < now) {
+            if (cache.size() >= MAX_ENTRIES) {
+                cache.clear();
+            }
+            try {
+                entry = new Entry(InetAddress.getAllByName(host), null, now + timeToLive);
+            } catch (UnknownHostException e) {
+                entry = new Entry(null, e.getMessage(), now + negativeTimeToLive);
+            }
+            if (entry.addresses != null || negativeTimeToLive > 0) {
+                cache.put(host, entry);
+            } else {
+                cache.remove(host);
+            }
+        }
+        if (entry.addresses == null) {
+            throw new UnknownHostException(entry.error);
+        }
+        return entry.addresses.clone();
+    }
+
+    private static class Entry {
+        final InetAddress[] addresses;
+        final String error;
+        final long expires;
+
+        Entry(InetAddress[] addresses, String error, long expires) {
+            this.addresses = addresses;
+            this.error = error;
+            this.expires = expires;
+        }
+    }
+}
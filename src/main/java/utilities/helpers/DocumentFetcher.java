@@ -0,0 +1,349 @@
+package utilities.helpers;
+
+import metrics.MetricsRegistry;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches documents over a pool of persistent connections, so that successive fetches from
+ * the same host reuse an open connection instead of setting up a new one. Responses are
+ * asked for (and transparently decoded) with gzip / deflate transfer encoding, and host
+ * names are resolved through a CachingDnsResolver.
+ * Latencies (overall and per host), statuses and bytes downloaded go to the default
+ * MetricsRegistry, as fetch.* metrics.
+ * A single slow or huge document should not hold a worker for long: bodies longer than the
+ * maximum body size are dropped as soon as they get there, and a fetch that takes longer than
+ * the deadline as a whole (not just between two packets) is aborted. Only html is asked for,
+ * and a HEAD request can be sent first to turn down other types and oversized bodies before
+ * any of them is transferred (see setBodyLimits() and setHeadPrefilter()).
+ * Thread safe: one fetcher is shared by all the download workers of an operation.
+ * Close it when done.
+ */
+public class DocumentFetcher {
+
+    private static final Logger logger = Logger.getLogger(DocumentFetcher.class.toString());
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+    public static final int DEFAULT_MAX_PER_HOST = 20;
+    public static final int DEFAULT_TIMEOUT = 60000;
+    public static final long DEFAULT_KEEP_ALIVE = 30000;
+    public static final long DEFAULT_DNS_TTL = 10 * 60000;
+    public static final long DEFAULT_MAX_BODY_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_DEADLINE = 2 * DEFAULT_TIMEOUT;
+    public static final String ACCEPT = "text/html,*/*;q=0.1";
+    /** Hosts beyond this many share a single latency histogram */
+    public static final int MAX_HOST_HISTOGRAMS = 1000;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final AtomicInteger hostHistograms = new AtomicInteger();
+    private final ScheduledExecutorService deadlines;
+    private volatile long maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private volatile long deadline = DEFAULT_DEADLINE;
+    private volatile boolean headPrefilter = false;
+
+    public DocumentFetcher() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_PER_HOST, DEFAULT_TIMEOUT, DEFAULT_KEEP_ALIVE, DEFAULT_DNS_TTL);
+    }
+
+    /**
+     * @param maxConnections maximum number of open connections, in total
+     * @param maxPerHost maximum number of open connections to a single host (route)
+     * @param timeout connect and socket timeout, in milliseconds
+     * @param keepAlive how long (in milliseconds) an idle connection is kept open, unless
+     *                  the server asks for less
+     * @param dnsTtl how long (in milliseconds) host name resolutions are cached
+     */
+    public DocumentFetcher(int maxConnections, int maxPerHost, int timeout, final long keepAlive, long dnsTtl) {
+        Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                .build();
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactories, new CachingDnsResolver(dnsTtl));
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxPerHost);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .build();
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                    @Override
+                    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                        HeaderElementIterator elements =
+                                new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                        while (elements.hasNext()) {
+                            HeaderElement element = elements.nextElement();
+                            if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                                try {
+                                    return Math.min(keepAlive, Long.parseLong(element.getValue()) * 1000);
+                                } catch (NumberFormatException e) {
+                                    break;
+                                }
+                            }
+                        }
+                        return keepAlive;
+                    }
+                })
+                .disableCookieManagement()
+                .build();
+        deadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "fetch-deadline");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param maxBodySize bodies longer than this (in bytes) are dropped (outcome TRUNCATED); -1 for no limit
+     * @param deadline longest time (in milliseconds) a fetch may take, from the first request
+     *                 (the HEAD of the prefilter, if there is one) to the end of the body (outcome
+     *                 ABORTED); -1 for no limit
+     */
+    public void setBodyLimits(long maxBodySize, long deadline) {
+        this.maxBodySize = maxBodySize;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param headPrefilter whether to send a HEAD request before each GET, and skip the GET when
+     *                      the answer is not html (outcome UNSUPPORTED_TYPE) or too long (TRUNCATED)
+     */
+    public void setHeadPrefilter(boolean headPrefilter) {
+        this.headPrefilter = headPrefilter;
+    }
+
+    /**
+     * Fetches url. Connect and socket time outs are reported as status 408, and so are fetches
+     * that got no answer before the deadline. Those that were reading the body at the deadline
+     * keep the status of the answer, with outcome ABORTED.
+     * @param url
+     * @return the status and body that came back
+     * @throws IOException
+     */
+    public FetchResult fetch(String url) throws IOException {
+        return fetch(url, null, null);
+    }
+
+    /**
+     * Fetches url only if it changed: the validators of the copy we have are sent as
+     * If-None-Match / If-Modified-Since, and a server that supports them answers 304 (with
+     * no body) if the document did not change.
+     * @param url
+     * @param etag the ETag of the copy we have, or null
+     * @param lastModified the Last-Modified header of the copy we have, or null
+     * @return the status, body and validators that came back
+     * @throws IOException
+     */
+    public FetchResult fetch(String url, String etag, String lastModified) throws IOException {
+        long start = System.currentTimeMillis();
+        FetchResult prefiltered = headPrefilter ? prefilter(url, start) : null;
+        if (prefiltered != null) {
+            return prefiltered;
+        }
+        HttpGet request = new HttpGet(url);
+        HttpClientResponseHandler handler = new HttpClientResponseHandler(request, maxBodySize);
+        request.setHeader(HttpHeaders.ACCEPT, ACCEPT);
+        if (etag != null) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+        }
+        AtomicBoolean expired = new AtomicBoolean();
+        ScheduledFuture<?> timer = abortAt(request, expired, start);
+        int status;
+        FetchResult.Outcome outcome;
+        try {
+            logger.log(Level.INFO, "Retrieving " + url);
+            client.execute(request, handler);
+            status = handler.getStatusLine().getStatusCode();
+            outcome = handler.getOutcome();
+        } catch (ConnectTimeoutException e) {
+            status = 408;
+            outcome = FetchResult.Outcome.COMPLETE;
+        } catch (SocketTimeoutException e) {
+            status = 408;
+            outcome = FetchResult.Outcome.COMPLETE;
+        } catch (IOException e) {
+            if (!expired.get()) {
+                metrics.counter("fetch.failures").increment();
+                throw e;
+            }
+            metrics.counter("fetch.deadline.expired").increment();
+            if (handler.getStatusLine() == null) {
+                // no answer yet: a time out like any other
+                status = 408;
+                outcome = FetchResult.Outcome.COMPLETE;
+            } else {
+                status = handler.getStatusLine().getStatusCode();
+                // a body read to the end was only being released when the deadline came
+                outcome = handler.getBody() != null ? handler.getOutcome() : FetchResult.Outcome.ABORTED;
+            }
+        } finally {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+        long duration = System.currentTimeMillis() - start;
+        record(request, status, outcome, handler.getBody(), duration);
+        return new FetchResult(url, status, handler.getBody(), duration,
+                handler.getETag(), handler.getLastModified(), outcome);
+    }
+
+    /**
+     * Asks for the headers of url, to tell whether a GET is worth sending. The HEAD counts
+     * against the deadline of the fetch.
+     * @return the result of the fetch if there is no need to GET url, null otherwise
+     */
+    private FetchResult prefilter(String url, long start) throws IOException {
+        HttpHead request = new HttpHead(url);
+        request.setHeader(HttpHeaders.ACCEPT, ACCEPT);
+        AtomicBoolean expired = new AtomicBoolean();
+        ScheduledFuture<?> timer = abortAt(request, expired, start);
+        FetchResult.Outcome outcome;
+        int status;
+        try {
+            CloseableHttpResponse response = client.execute(request);
+            try {
+                status = response.getStatusLine().getStatusCode();
+                Header contentType = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+                Header contentLength = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+                if (status != 200) {
+                    return null;
+                }
+                if (contentType != null &&
+                        !ContentType.TEXT_HTML.getMimeType().equalsIgnoreCase(
+                                ContentType.parse(contentType.getValue()).getMimeType())) {
+                    outcome = FetchResult.Outcome.UNSUPPORTED_TYPE;
+                } else if (maxBodySize >= 0 && contentLength != null &&
+                        Long.parseLong(contentLength.getValue().trim()) > maxBodySize) {
+                    outcome = FetchResult.Outcome.TRUNCATED;
+                } else {
+                    return null;
+                }
+            } finally {
+                response.close();
+            }
+        } catch (RuntimeException e) {
+            // unparseable headers: leave it to the GET
+            return null;
+        } catch (IOException e) {
+            if (!expired.get()) {
+                // servers that do not answer HEAD properly may still answer GET
+                return null;
+            }
+            // no answer before the deadline, and no time left for the GET
+            metrics.counter("fetch.deadline.expired").increment();
+            status = 408;
+            outcome = FetchResult.Outcome.COMPLETE;
+        } finally {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+        long duration = System.currentTimeMillis() - start;
+        metrics.counter("fetch.prefiltered").increment();
+        record(request, status, outcome, null, duration);
+        return new FetchResult(url, status, null, duration, null, null, outcome);
+    }
+
+    /**
+     * Aborts request once the deadline of a fetch that started at start is past, flagging expired
+     * @return the timer, or null if there is no deadline
+     */
+    private ScheduledFuture<?> abortAt(final HttpRequestBase request, final AtomicBoolean expired, long start) {
+        if (deadline < 0) {
+            return null;
+        }
+        return deadlines.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expired.set(true);
+                request.abort();
+            }
+        }, Math.max(0, start + deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void record(HttpRequestBase request, int status, FetchResult.Outcome outcome, SpooledContent body,
+                        long duration) {
+        metrics.histogram("fetch.latency").record(duration);
+        metrics.histogram(hostHistogram(request.getURI().getHost())).record(duration);
+        metrics.counter("fetch.status." + status).increment();
+        if (outcome != FetchResult.Outcome.COMPLETE) {
+            metrics.counter("fetch.status." + outcome).increment();
+        }
+        if (body != null) {
+            metrics.counter("fetch.bytes").add(body.length());
+        }
+    }
+
+    /**
+     * Latencies are kept per host, for the first MAX_HOST_HISTOGRAMS hosts
+     */
+    private String hostHistogram(String host) {
+        String name = "fetch.latency.host." + host;
+        if (metrics.hasHistogram(name)) {
+            return name;
+        }
+        if (hostHistograms.get() >= MAX_HOST_HISTOGRAMS || hostHistograms.incrementAndGet() > MAX_HOST_HISTOGRAMS) {
+            return "fetch.latency.host.other";
+        }
+        return name;
+    }
+
+    /**
+     * Closes all connections. The fetcher cannot be used afterwards.
+     */
+    public void close() {
+        deadlines.shutdownNow();
+        try {
+            client.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        connectionManager.shutdown();
+    }
+}
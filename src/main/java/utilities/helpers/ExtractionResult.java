@@ -0,0 +1,43 @@
+package utilities.helpers;
+
+/**
+ * The outcome of running an extractor on one document: the extracted content or, if the
+ * extractor failed, the reason. Extraction results are produced by extractor workers
+ * and handed over to the thread that owns the repository session.
+ */
+public class ExtractionResult {
+
+    private final String url;
+    private final String extractor;
+    private final SpooledContent extracted;
+    private final Exception failure;
+
+    /**
+     * @param url the url of the document
+     * @param extractor the id of the extractor
+     * @param extracted the extracted content - null if the extractor failed
+     * @param failure why the extractor failed - null if it did not
+     */
+    public ExtractionResult(String url, String extractor, SpooledContent extracted, Exception failure) {
+        this.url = url;
+        this.extractor = extractor;
+        this.extracted = extracted;
+        this.failure = failure;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getExtractor() {
+        return extractor;
+    }
+
+    public SpooledContent getExtracted() {
+        return extracted;
+    }
+
+    public Exception getFailure() {
+        return failure;
+    }
+}
@@ -0,0 +1,128 @@
+package utilities.helpers;
+
+import java.io.IOException;
+
+/**
+ * The outcome of fetching one URL: the http status and, when the status is 200,
+ * the body of the document and the validators (ETag, Last-Modified) that came with it.
+ * A fetch that did not get an http answer at all (unknown host, connection reset...) has
+ * status 0 and the reason as its failure. A fetch that got an answer but did not keep its body
+ * says why in its outcome. Fetch results are produced by download workers and handed over to
+ * the thread that owns the repository session.
+ */
+public class FetchResult {
+
+    /**
+     * What became of the body of an answer
+     */
+    public enum Outcome {
+        /** read as it came (or there was none) */
+        COMPLETE,
+        /** longer than the maximum body size: reading stopped there and the body was dropped */
+        TRUNCATED,
+        /** the fetch went past its deadline while the body was being read, and was dropped */
+        ABORTED,
+        /** not html (from the Content-Type of the answer, or of a HEAD request before it) */
+        UNSUPPORTED_TYPE
+    }
+
+    private final String url;
+    private final int status;
+    private final SpooledContent body;
+    private final long duration;
+    private final String etag;
+    private final String lastModified;
+    private final IOException failure;
+    private final Outcome outcome;
+
+    /**
+     * @param url the url that was fetched
+     * @param status the http status (408 for connect / socket time outs)
+     * @param body the body of the document - null unless status is 200
+     * @param duration how long the fetch took, in milliseconds
+     */
+    public FetchResult(String url, int status, SpooledContent body, long duration) {
+        this(url, status, body, duration, null, null);
+    }
+
+    /**
+     * @param url the url that was fetched
+     * @param status the http status (408 for connect / socket time outs)
+     * @param body the body of the document - null unless status is 200
+     * @param duration how long the fetch took, in milliseconds
+     * @param etag the ETag header of the response, or null
+     * @param lastModified the Last-Modified header of the response, or null
+     */
+    public FetchResult(String url, int status, SpooledContent body, long duration, String etag, String lastModified) {
+        this(url, status, body, duration, etag, lastModified, Outcome.COMPLETE);
+    }
+
+    /**
+     * @param url the url that was fetched
+     * @param status the http status (408 for connect / socket time outs)
+     * @param body the body of the document - null unless status is 200 and outcome COMPLETE
+     * @param duration how long the fetch took, in milliseconds
+     * @param etag the ETag header of the response, or null
+     * @param lastModified the Last-Modified header of the response, or null
+     * @param outcome
+     */
+    public FetchResult(String url, int status, SpooledContent body, long duration, String etag, String lastModified,
+                       Outcome outcome) {
+        this.url = url;
+        this.status = status;
+        this.body = body;
+        this.duration = duration;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.failure = null;
+        this.outcome = outcome;
+    }
+
+    /**
+     * @param url the url that was fetched
+     * @param failure why there was no http answer
+     * @param duration how long the fetch took, in milliseconds
+     */
+    public FetchResult(String url, IOException failure, long duration) {
+        this.url = url;
+        this.status = 0;
+        this.body = null;
+        this.duration = duration;
+        this.etag = null;
+        this.lastModified = null;
+        this.failure = failure;
+        this.outcome = Outcome.COMPLETE;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public SpooledContent getBody() {
+        return body;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public IOException getFailure() {
+        return failure;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+}
@@ -0,0 +1,117 @@
+package utilities.helpers;
+
+/**
+ * A compact set of strings that remembers only a 64 bit fingerprint of each element,
+ * in an open addressing table of longs kept between a quarter and half full (16 to 32 bytes
+ * per element). Two different strings share a fingerprint with a probability of about
+ * n / 2^64, negligible even for lists of hundreds of millions of urls. The table is limited
+ * to 2^30 slots, so the set holds at most 2^29 elements.
+ */
+public class FingerprintSet {
+
+    private static final long EMPTY = 0;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int MAX_SIZE = MAX_CAPACITY / 2;
+
+    private long[] table;
+    private int size;
+
+    public FingerprintSet() {
+        this(1024);
+    }
+
+    /**
+     * @param expectedSize number of elements the set should hold without growing
+     */
+    public FingerprintSet(int expectedSize) {
+        if (expectedSize > MAX_SIZE) {
+            throw new IllegalArgumentException("A FingerprintSet holds at most " + MAX_SIZE + " elements, "
+                    + expectedSize + " requested");
+        }
+        int capacity = 16;
+        while (capacity < (long) expectedSize * 2) {
+            capacity <<= 1;
+        }
+        table = new long[capacity];
+    }
+
+    /**
+     * Adds value to the set
+     * @param value
+     * @return true if value was not in the set yet
+     * @throws IllegalStateException if the set already holds its maximum number of elements
+     */
+    public boolean add(String value) {
+        long fingerprint = fingerprint(value);
+        int mask = table.length - 1;
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == fingerprint) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == MAX_SIZE) {
+            throw new IllegalStateException("FingerprintSet is full: it holds at most " + MAX_SIZE + " elements");
+        }
+        table[slot] = fingerprint;
+        if (++size * 2 > table.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * @param value
+     * @return true if value (or a string with the same fingerprint) was added to the set
+     */
+    public boolean contains(String value) {
+        long fingerprint = fingerprint(value);
+        int mask = table.length - 1;
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == fingerprint) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        long[] old = table;
+        table = new long[old.length * 2];
+        int mask = table.length - 1;
+        for (long fingerprint : old) {
+            if (fingerprint != EMPTY) {
+                int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+                while (table[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = fingerprint;
+            }
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a over the chars of value, followed by a final mix so that similar
+     * urls spread over the table. Never returns EMPTY.
+     */
+    private static long fingerprint(String value) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1 : hash;
+    }
+}
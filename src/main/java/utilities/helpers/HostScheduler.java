@@ -0,0 +1,214 @@
+package utilities.helpers;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides which URL to fetch next so that no host gets hammered. URLs are kept in one
+ * queue per host and handed out round-robin across hosts, honouring a maximum number of
+ * concurrent requests and a minimum delay between requests for each host.
+ * Limits adapt to the answers we get: a 408, 429 or 5xx (or no answer at all) halves the
+ * host's concurrency and doubles its delay; a run of successful fetches slowly gives back what was taken.
+ * Hosts whose queue runs dry are remembered while they are backed off (or still within their
+ * crawl delay), so that urls retried later find the limits where they were left; they are
+ * forgotten once recovered, or after being idle for IDLE_EXPIRY.
+ * Not thread safe - it is meant to be used by the thread that hands out the work.
+ */
+public class HostScheduler {
+
+    private static final int RECOVERY_SUCCESSES = 10;
+    private static final long MIN_BACKOFF_DELAY = 1000;
+    private static final long MAX_DELAY = 120000;
+    /** Idle hosts still backed off after this long are forgotten anyway */
+    private static final long IDLE_EXPIRY = 10 * MAX_DELAY;
+
+    private final int maxPerHost;
+    private final long crawlDelay;
+    private final Map<String, Host> hosts = new LinkedHashMap<String, Host>();
+    private final Map<String, Host> inFlight = new HashMap<String, Host>();
+    private int queued = 0;
+
+    /**
+     * @param maxPerHost maximum number of requests in flight for a single host
+     * @param crawlDelay minimum time (in milliseconds) between two requests to the same host
+     */
+    public HostScheduler(int maxPerHost, long crawlDelay) {
+        this.maxPerHost = maxPerHost;
+        this.crawlDelay = crawlDelay;
+    }
+
+    /**
+     * Queues a url behind the other urls of its host
+     * @param url
+     */
+    public void add(URL url) {
+        String name = url.getHost().toLowerCase();
+        Host host = hosts.get(name);
+        if (host == null) {
+            host = new Host(name);
+            hosts.put(name, host);
+        }
+        host.queue.add(url);
+        queued++;
+    }
+
+    /**
+     * Returns the next url that can be fetched right now, or null if every host with queued urls
+     * is either at its concurrency limit or still waiting out its crawl delay.
+     * Hosts are visited round-robin, so a host that just got a url goes to the back of the line.
+     * Call completed() when the fetch of the returned url is over.
+     * @return
+     */
+    public URL next() {
+        long now = System.currentTimeMillis();
+        Iterator<Host> iterator = hosts.values().iterator();
+        while (iterator.hasNext()) {
+            Host host = iterator.next();
+            if (host.queue.isEmpty()) {
+                if (host.isForgettable(now)) {
+                    iterator.remove();
+                }
+                continue;
+            }
+            if (host.isReady(now)) {
+                iterator.remove();
+                hosts.put(host.name, host);
+                URL url = host.queue.poll();
+                queued--;
+                host.active++;
+                host.lastStart = now;
+                inFlight.put(url.toString(), host);
+                return url;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param status an http status
+     * @return true for the statuses that mean "not now" (408, 429 and 5xx): the host may
+     * answer differently later
+     */
+    public static boolean isTransient(int status) {
+        return status == 408 || status == 429 || status >= 500;
+    }
+
+    /**
+     * Releases the slot taken by url and adapts the limits of its host to the status we got
+     * @param url a url returned by next()
+     * @param status the http status of the fetch
+     */
+    public void completed(String url, int status) {
+        completed(url, status, false);
+    }
+
+    /**
+     * Same as above, for fetches that may have got no answer at all (connection refused or
+     * reset, unknown host...), which back the host off like a transient status does
+     * @param url a url returned by next()
+     * @param status the http status of the fetch (meaningless if it failed)
+     * @param failed true if there was no http answer
+     */
+    public void completed(String url, int status, boolean failed) {
+        Host host = inFlight.remove(url);
+        if (host == null) {
+            return;
+        }
+        host.active--;
+        if (failed || isTransient(status)) {
+            host.limit = Math.max(1, host.limit / 2);
+            host.delay = Math.min(MAX_DELAY, Math.max(MIN_BACKOFF_DELAY, host.delay * 2));
+            host.successes = 0;
+        } else if (++host.successes >= RECOVERY_SUCCESSES) {
+            host.successes = 0;
+            host.limit = Math.min(maxPerHost, host.limit + 1);
+            host.delay = Math.max(crawlDelay, host.delay / 2);
+        }
+        if (host.queue.isEmpty() && host.isForgettable(System.currentTimeMillis())) {
+            hosts.remove(host.name);
+        }
+    }
+
+    /**
+     * Returns how long (in milliseconds) until some queued url may become ready, 0 if one is
+     * ready now, or -1 if nothing can become ready before a fetch completes
+     * @return
+     */
+    public long millisUntilReady() {
+        long now = System.currentTimeMillis();
+        long wait = -1;
+        for (Host host : hosts.values()) {
+            if (host.queue.isEmpty() || host.active >= host.limit) {
+                continue;
+            }
+            long hostWait = Math.max(0, host.lastStart + host.delay - now);
+            if (wait < 0 || hostWait < wait) {
+                wait = hostWait;
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * @return the number of urls waiting to be handed out
+     */
+    public int size() {
+        return queued;
+    }
+
+    public boolean isEmpty() {
+        return queued == 0;
+    }
+
+    /**
+     * @param host
+     * @return the current concurrency limit for host
+     */
+    public int getLimit(String host) {
+        Host h = hosts.get(host.toLowerCase());
+        return h != null ? h.limit : maxPerHost;
+    }
+
+    /**
+     * @param host
+     * @return the current delay between requests (in milliseconds) for host
+     */
+    public long getDelay(String host) {
+        Host h = hosts.get(host.toLowerCase());
+        return h != null ? h.delay : crawlDelay;
+    }
+
+    private class Host {
+        final String name;
+        final ArrayDeque<URL> queue = new ArrayDeque<URL>();
+        int active = 0;
+        int limit = maxPerHost;
+        long delay = crawlDelay;
+        long lastStart = 0;
+        int successes = 0;
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        boolean isReady(long now) {
+            return active < limit && now - lastStart >= delay;
+        }
+
+        /**
+         * @return true if nothing is lost by dropping the host: nothing in flight, and either
+         * limits back to the defaults or idle for long
+         */
+        boolean isForgettable(long now) {
+            if (active > 0) {
+                return false;
+            }
+            boolean recovered = limit >= maxPerHost && delay <= crawlDelay && now - lastStart >= delay;
+            return recovered || now - lastStart >= IDLE_EXPIRY;
+        }
+    }
+}
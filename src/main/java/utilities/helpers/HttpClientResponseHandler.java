@@ -1,53 +1,134 @@
 package utilities.helpers;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
-import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.ContentType;
-import org.apache.tika.io.IOUtils;
 
 import java.io.IOException;
-import java.io.StringWriter;
 
 /**
  * Created by alejandrofernandez on 6/9/14.
+ *
+ * The body of a 200 response is streamed from the entity into a SpooledContent, so that
+ * large pages end up in a temporary file instead of the heap. The validators of the response
+ * (ETag and Last-Modified) are kept too, for conditional re-fetches.
+ * Bodies that are not html, or longer than the maximum body size, are not read to the end: the
+ * request is aborted (dropping its connection, rather than draining it) and the outcome says why.
  */
-public class HttpClientResponseHandler implements ResponseHandler {
+public class HttpClientResponseHandler implements ResponseHandler<SpooledContent> {
 
 
     private StatusLine statusLine;
-    private String content;
+    private SpooledContent body;
+    private String etag;
+    private String lastModified;
+    private FetchResult.Outcome outcome;
+    private final HttpRequestBase request;
+    private final long maxBodySize;
+
+    /**
+     * A handler that reads bodies of any length
+     */
+    public HttpClientResponseHandler() {
+        this(null, -1);
+    }
+
+    /**
+     * @param request the request this handler gets the response of, aborted when its body is dropped
+     * @param maxBodySize bodies longer than this (in bytes) are dropped; -1 for no limit
+     */
+    public HttpClientResponseHandler(HttpRequestBase request, long maxBodySize) {
+        this.request = request;
+        this.maxBodySize = maxBodySize;
+    }
 
     @Override
-    public Object handleResponse(HttpResponse httpResponse) throws IOException {
+    public SpooledContent handleResponse(HttpResponse httpResponse) throws IOException {
         statusLine = null;
-        content = "";
+        body = null;
+        outcome = FetchResult.Outcome.COMPLETE;
         statusLine = httpResponse.getStatusLine();
+        etag = headerValue(httpResponse, HttpHeaders.ETAG);
+        lastModified = headerValue(httpResponse, HttpHeaders.LAST_MODIFIED);
         HttpEntity entity = httpResponse.getEntity();
 
         if (statusLine.getStatusCode() == 200) {
 
             ContentType contentType = ContentType.getOrDefault(entity);
             if (!contentType.getMimeType().equals(ContentType.TEXT_HTML.getMimeType())) {
-                throw new ClientProtocolException("Unexpected content type:" +
-                        contentType);
+                return drop(FetchResult.Outcome.UNSUPPORTED_TYPE);
+            }
+            if (maxBodySize >= 0 && entity.getContentLength() > maxBodySize) {
+                return drop(FetchResult.Outcome.TRUNCATED);
             }
-            StringWriter writer = new StringWriter();
-            IOUtils.copy(entity.getContent(), writer, "UTF-8");
-            content = writer.toString();
+            body = new SpooledContent();
+            try {
+                if (!body.readFrom(entity.getContent(), maxBodySize)) {
+                    body.delete();
+                    body = null;
+                    return drop(FetchResult.Outcome.TRUNCATED);
+                }
+            } catch (IOException e) {
+                body.delete();
+                body = null;
+                throw e;
+            }
+
+            return body;
+        }
+        return null;
+    }
 
-            return content;
+    /**
+     * Gives up on the body of the response, without reading what is left of it
+     */
+    private SpooledContent drop(FetchResult.Outcome outcome) {
+        this.outcome = outcome;
+        if (request != null) {
+            request.abort();
         }
         return null;
     }
 
+    private static String headerValue(HttpResponse httpResponse, String name) {
+        Header header = httpResponse.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
     public StatusLine getStatusLine() {
         return statusLine;
     }
 
-    public String getContent() {
-        return content;
+    /**
+     * @return the body of the document, or null if the status was not 200 or the body was dropped
+     */
+    public SpooledContent getBody() {
+        return body;
+    }
+
+    /**
+     * @return the ETag header of the response, or null if there was none
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return the Last-Modified header of the response, or null if there was none
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return whether the body was read, or why it was dropped
+     */
+    public FetchResult.Outcome getOutcome() {
+        return outcome;
     }
 }
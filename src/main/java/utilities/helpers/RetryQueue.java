@@ -0,0 +1,110 @@
+package utilities.helpers;
+
+import java.net.URL;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * URLs waiting to be tried again, each until its own time. The wait grows exponentially with
+ * the number of failed attempts (baseDelay, 2 * baseDelay, 4 * baseDelay... up to maxDelay),
+ * with jitter: a random half of it is added or not, so that URLs that failed together (e.g.
+ * all the URLs of a host that was down) do not all come back at the same time.
+ * Not thread safe: it lives in the thread that stores results.
+ */
+public class RetryQueue {
+
+    private final PriorityQueue<Retry> queue = new PriorityQueue<Retry>();
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random;
+    private long sequence = 0;
+
+    /**
+     * @param baseDelay wait (in milliseconds) after the first failed attempt
+     * @param maxDelay longest wait (in milliseconds)
+     */
+    public RetryQueue(long baseDelay, long maxDelay) {
+        this(baseDelay, maxDelay, new Random());
+    }
+
+    RetryQueue(long baseDelay, long maxDelay, Random random) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+    }
+
+    /**
+     * @param attempts number of failed attempts in a row
+     * @return how long (in milliseconds) to wait before the next attempt: between half and all
+     * of baseDelay * 2^(attempts - 1), capped at maxDelay
+     */
+    public long delay(int attempts) {
+        long delay = baseDelay;
+        for (int i = 1; i < attempts && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        long half = delay / 2;
+        return delay - half + (half > 0 ? (long) (random.nextDouble() * half) : 0);
+    }
+
+    /**
+     * Queues url until the given time
+     * @param url
+     * @param due when (System.currentTimeMillis()) it may be tried again
+     */
+    public void add(URL url, long due) {
+        queue.add(new Retry(url, due, sequence++));
+    }
+
+    /**
+     * @return the url due first, if it is due now (and takes it out of the queue), or null
+     */
+    public URL pollDue() {
+        Retry first = queue.peek();
+        if (first == null || first.due > System.currentTimeMillis()) {
+            return null;
+        }
+        return queue.poll().url;
+    }
+
+    /**
+     * @return how long (in milliseconds) until the first url is due, 0 if one is due now,
+     * or -1 if the queue is empty
+     */
+    public long millisUntilDue() {
+        Retry first = queue.peek();
+        if (first == null) {
+            return -1;
+        }
+        return Math.max(0, first.due - System.currentTimeMillis());
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    private static class Retry implements Comparable<Retry> {
+        final URL url;
+        final long due;
+        final long sequence;
+
+        Retry(URL url, long due, long sequence) {
+            this.url = url;
+            this.due = due;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Retry other) {
+            if (due != other.due) {
+                return due < other.due ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
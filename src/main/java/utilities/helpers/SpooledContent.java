@@ -0,0 +1,161 @@
+package utilities.helpers;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The body of a downloaded document. Bodies up to the threshold are kept in memory; longer
+ * bodies overflow to a temporary file, so holding on to a body never costs more than
+ * threshold bytes of heap, whatever the size of the page. Call delete() once the body has
+ * been stored.
+ * The body is hashed as it is written (SHA-1, the content hash of the repository), so that
+ * bodies already seen can be recognized without reading them again (see getHash()).
+ */
+public class SpooledContent extends OutputStream {
+
+    public static final int DEFAULT_THRESHOLD = 256 * 1024;
+
+    private final DeferredFileOutputStream out;
+    private final MessageDigest digest;
+    private String hash;
+    private long length = 0;
+
+    public SpooledContent() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold the maximum number of bytes kept in memory
+     */
+    public SpooledContent(int threshold) {
+        out = new DeferredFileOutputStream(threshold, "body", ".tmp", null);
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies everything in content into this body (and closes content)
+     * @param content
+     * @throws IOException
+     */
+    public void readFrom(InputStream content) throws IOException {
+        readFrom(content, -1);
+    }
+
+    /**
+     * Copies content into this body, up to maxLength bytes, and closes content unless it stops
+     * early (closing an http entity reads it to the end: abort the request instead)
+     * @param content
+     * @param maxLength -1 for no limit
+     * @return false if content had more than maxLength bytes (the body has only the first
+     * maxLength, and the rest of content was not read)
+     * @throws IOException
+     */
+    public boolean readFrom(InputStream content, long maxLength) throws IOException {
+        byte[] buffer = new byte[8192];
+        boolean complete = true;
+        try {
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                if (maxLength >= 0 && length + read > maxLength) {
+                    write(buffer, 0, (int) (maxLength - length));
+                    complete = false;
+                    break;
+                }
+                write(buffer, 0, read);
+            }
+        } finally {
+            if (complete) {
+                content.close();
+            }
+        }
+        close();
+        return complete;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        digest.update((byte) b);
+        length++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        digest.update(b, off, len);
+        length += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+        if (hash == null) {
+            hash = toHex(digest.digest());
+        }
+    }
+
+    /**
+     * @return the SHA-1 of the body, in hex, once it is closed (null before)
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return the number of bytes in the body
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return true if the body did not fit in memory and lives in a temporary file
+     */
+    public boolean isSpooled() {
+        return !out.isInMemory();
+    }
+
+    /**
+     * Opens a new stream over the body. Can be called more than once.
+     * @return
+     * @throws IOException
+     */
+    public InputStream openStream() throws IOException {
+        if (out.isInMemory()) {
+            return new ByteArrayInputStream(out.getData());
+        }
+        return new FileInputStream(out.getFile());
+    }
+
+    /**
+     * Releases the temporary file, if any
+     */
+    public void delete() {
+        File file = out.getFile();
+        if (file != null && file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] chars = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = hex[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = hex[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
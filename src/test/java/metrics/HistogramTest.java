@@ -0,0 +1,36 @@
+package metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        long median = histogram.getPercentile(0.5);
+        assertTrue(median >= 500 && median <= 500 * 1.125);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertEquals(1, histogram.getPercentile(0.001));
+    }
+
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 100000; value += 7) {
+            int bucket = Histogram.bucket(value);
+            assertTrue(Histogram.upperBound(bucket) >= value);
+            assertTrue(bucket == 0 || Histogram.upperBound(bucket - 1) < value);
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.upperBound(Histogram.bucket(Long.MAX_VALUE)));
+    }
+}
@@ -0,0 +1,27 @@
+package metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void testRegistrySnapshot() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("fetch.bytes").add(10);
+        registry.counter("fetch.bytes").add(5);
+        registry.histogram("fetch.latency").record(20);
+        registry.gauge("queue", new Gauge() {
+            @Override
+            public long getValue() {
+                return 3;
+            }
+        });
+        assertEquals(15L, registry.snapshot().get("fetch.bytes"));
+        assertEquals(20L, registry.snapshot().get("fetch.latency.p99"));
+        assertEquals(3L, registry.snapshot().get("queue"));
+        registry.removeGauge("queue");
+        assertEquals(null, registry.snapshot().get("queue"));
+    }
+}
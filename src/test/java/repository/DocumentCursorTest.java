@@ -0,0 +1,70 @@
+package repository;
+
+import org.junit.Test;
+
+import javax.jcr.RepositoryException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BinaryOperator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentCursorTest {
+
+    private static final DocumentCursor.Decoder DECODER = new DocumentCursor.Decoder() {
+        @Override
+        public URL decode(String key) throws RepositoryException {
+            try {
+                return new URL(key);
+            } catch (MalformedURLException e) {
+                throw new RepositoryException("Not a document: " + key, e);
+            }
+        }
+    };
+
+    @Test
+    public void testSkipsBadEntries() {
+        List<String> keys = Arrays.asList("http://mentira.org/1", "no es una url", "http://mentira.org/2",
+                "tampoco", "otra", "http://mentira.org/3");
+        DocumentCursor cursor = new DocumentCursor(keys.iterator(), DECODER, 2);
+        List<URL> urls = new ArrayList<URL>();
+        while (cursor.hasNext()) {
+            urls.add(cursor.next());
+        }
+        assertEquals(3, urls.size());
+        assertFalse(urls.contains(null));
+        assertEquals(Arrays.asList("no es una url", "tampoco", "otra"), cursor.getSkipped());
+    }
+
+    @Test
+    public void testBatchesAndStreams() {
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            keys.add("http://mentira" + (i % 10) + ".org/" + i);
+        }
+        DocumentCursor cursor = new DocumentCursor(keys.iterator(), DECODER, 100);
+        List<URL> batch = cursor.nextBatch();
+        assertEquals(100, batch.size());
+        assertEquals("http://mentira0.org/0", batch.get(0).toString());
+        cursor.next();
+        assertEquals(99, cursor.nextBatch().size());
+        assertEquals(100, cursor.nextBatch().size());
+
+        cursor = new DocumentCursor(keys.iterator(), DECODER, 100);
+        assertEquals(10000, cursor.stream(true).distinct().count());
+        assertTrue(cursor.nextBatch().isEmpty());
+        // order is kept, even in parallel
+        cursor = new DocumentCursor(keys.iterator(), DECODER, 64);
+        assertEquals("http://mentira9.org/9999", cursor.stream(true).reduce(null, new BinaryOperator<URL>() {
+            @Override
+            public URL apply(URL first, URL second) {
+                return second != null ? second : first;
+            }
+        }).toString());
+    }
+}
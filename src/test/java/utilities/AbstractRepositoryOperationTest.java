@@ -0,0 +1,56 @@
+package utilities;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import repository.DocumentStore;
+import repository.StorageBackend;
+import utilities.helpers.FetchResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+
+public class AbstractRepositoryOperationTest {
+
+    private final File storeFolder = new File("unit-test-store");
+    private AbstractRepositoryOperation operation;
+    private int documents;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteDirectory(storeFolder);
+        operation = new AbstractRepositoryOperation(storeFolder, StorageBackend.KEY_VALUE) {
+            @Override
+            public void run() {
+            }
+        };
+        operation.getRepo().startSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        operation.getRepo().endSession();
+        operation.getRepo().shutdown();
+        FileUtils.deleteDirectory(storeFolder);
+    }
+
+    @Test
+    public void testStatusOfDroppedBodies() throws Exception {
+        assertEquals(DocumentStore.STATUS_TRUNCATED, stored(200, FetchResult.Outcome.TRUNCATED));
+        assertEquals(DocumentStore.STATUS_UNSUPPORTED_TYPE, stored(200, FetchResult.Outcome.UNSUPPORTED_TYPE));
+        assertEquals(DocumentStore.STATUS_ABORTED, stored(200, FetchResult.Outcome.ABORTED));
+        // aborted before any answer came
+        assertEquals(DocumentStore.STATUS_TIMED_OUT, stored(408, FetchResult.Outcome.ABORTED));
+        assertEquals(DocumentStore.STATUS_404, stored(404, FetchResult.Outcome.COMPLETE));
+    }
+
+    private String stored(int status, FetchResult.Outcome outcome) throws Exception {
+        URL url = new URL("http://mentira.org/" + ++documents);
+        operation.storeOriginalDocument(new FetchResult(url.toString(), status, null, 10, null, null, outcome));
+        return operation.getRepo().getOriginalStatus(url);
+    }
+}
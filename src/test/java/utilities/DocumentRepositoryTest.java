@@ -1,23 +1,49 @@
 package utilities;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.http.client.fluent.Request;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import repository.ContentCodec;
+import repository.CrawlJournal;
+import repository.DocumentCursor;
+import repository.DocumentExporter;
 import repository.DocumentRepository;
+import repository.DocumentStatistics;
+import org.apache.jackrabbit.core.TransientRepository;
 
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DocumentRepositoryTest {
 
@@ -113,15 +139,395 @@ public class DocumentRepositoryTest {
         }
         Iterator<URL> documentsIterator = repository.documentsIterator();
 
-        int i = 0;
+        // documents come bucket by bucket, not in the order they were stored
+        Set<String> seen = new HashSet<String>();
         while(documentsIterator.hasNext()) {
-            i++;
             URL url = documentsIterator.next();
+            String i = url.getPath().substring(1);
             assertEquals("http://www.google.com/" + i, url.toString());
             assertEquals("document"+i, repository.getOriginalContent(url));
+            assertTrue(seen.add(i));
 
         }
-        assertEquals(10, i);
+        assertEquals(10, seen.size());
+        repository.endSession();
+    }
+
+    @Test
+    public void testDocumentCursor() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        repository.beginBatch(100, 0);
+        for (int i = 0; i < 100; i++) {
+            repository.setOriginalStatus(new URL("http://www.google.com/" + i),
+                    i % 4 == 0 ? DocumentRepository.STATUS_404 : DocumentRepository.STATUS_OK);
+        }
+        repository.commitBatch();
+        DocumentCursor cursor = repository.documentsCursor(7);
+        Set<URL> seen = new HashSet<URL>();
+        List<URL> batch;
+        while (!(batch = cursor.nextBatch()).isEmpty()) {
+            assertTrue(batch.size() <= 7);
+            seen.addAll(batch);
+        }
+        assertEquals(100, seen.size());
+        assertTrue(cursor.getSkipped().isEmpty());
+
+        // the workers of a parallel stream get whole batches
+        assertEquals(25, repository.documentsByStatusCursor(DocumentRepository.STATUS_404, 4).stream(true).count());
+        assertEquals(75, repository.documentsByStatusCursor(DocumentRepository.STATUS_OK, 10).stream(true).distinct().count());
+        repository.endSession();
+    }
+
+    @Test
+    public void testReuseExtraction() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        URL first = new URL("http://mentira.org/1");
+        URL second = new URL("http://mentira.org/2");
+        repository.setOriginalContent(first, "el mismo documento");
+        repository.setOriginalContent(second, "el mismo documento");
+        String hash = repository.getContentHash(second);
+        assertFalse(repository.reuseExtraction(second, hash));
+        repository.setExtractedContent(first, "[{}]", "jsonld");
+        repository.setExtractedStatus(first, DocumentRepository.STATUS_OK);
+        assertTrue(repository.reuseExtraction(second, hash));
+        assertEquals("[{}]", repository.getExtractedContent(second));
+        assertEquals("jsonld", repository.getExtractor(second));
+        assertEquals(DocumentRepository.STATUS_OK, repository.getExtractedStatus(second));
+        assertEquals(2, repository.countByExtractedStatus(DocumentRepository.STATUS_OK));
+        repository.endSession();
+    }
+
+    /**
+     * Extractions of the same batch, not saved yet, are reused too
+     */
+    @Test
+    public void testReuseExtractionWithinBatch() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        repository.beginBatch(100, 60000);
+        URL first = new URL("http://mentira.org/1");
+        URL second = new URL("http://mentira.org/2");
+        repository.setOriginalContent(first, "el mismo documento");
+        repository.setExtractedContent(first, "[{}]", "jsonld");
+        repository.setExtractedStatus(first, DocumentRepository.STATUS_OK);
+        String hash = repository.getContentHash(first);
+        assertTrue(repository.reuseExtraction(second, hash));
+        assertEquals("[{}]", repository.getExtractedContent(second));
+
+        // an extraction dropped since is not
+        repository.setOriginalContent(first, "otro documento");
+        repository.setOriginalContent(second, "otro documento");
+        assertFalse(repository.reuseExtraction(new URL("http://mentira.org/3"), hash));
+        repository.commitBatch();
+        repository.endSession();
+    }
+
+    @Test
+    public void testChangedContentDropsExtraction() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        URL url = new URL("http://mentira.org/cambia");
+        URL other = new URL("http://mentira.org/otra");
+        repository.setOriginalContent(url, "primera version");
+        repository.setExtractedContent(url, "[1]", "jsonld");
+        repository.setExtractedStatus(url, DocumentRepository.STATUS_OK);
+        repository.setOriginalContent(other, "segunda version");
+        repository.setExtractedContent(other, "[2]", "jsonld");
+        repository.setExtractedStatus(other, DocumentRepository.STATUS_OK);
+
+        assertFalse(repository.setOriginalContent(url, "primera version"));
+        assertEquals(DocumentRepository.STATUS_OK, repository.getExtractedStatus(url));
+
+        // an extraction reused before the content is stored was made from that content
+        assertTrue(repository.reuseExtraction(url, repository.getContentHash(other)));
+        assertTrue(repository.setOriginalContent(url, "segunda version"));
+        assertEquals("[2]", repository.getExtractedContent(url));
+
+        assertTrue(repository.setOriginalContent(url, "tercera version"));
+        assertEquals(null, repository.getExtractedStatus(url));
+        assertEquals(null, repository.getExtractedContent(url));
+        assertEquals(null, repository.getExtractor(url));
+        assertEquals(1, repository.countByExtractedStatus(DocumentRepository.STATUS_OK));
+        assertEquals("[2]", repository.getExtractedContent(other));
+        repository.endSession();
+    }
+
+    @Test
+    public void testReuseExtractionOfChangedContent() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        URL first = new URL("http://mentira.org/1");
+        URL second = new URL("http://mentira.org/2");
+        URL third = new URL("http://mentira.org/3");
+        URL fourth = new URL("http://mentira.org/4");
+        repository.setOriginalContent(first, "version vieja");
+        String oldHash = repository.getContentHash(first);
+        repository.setExtractedContent(first, "[\"vieja\"]", "jsonld");
+        repository.setExtractedStatus(first, DocumentRepository.STATUS_OK);
+        repository.setOriginalContent(first, "version nueva");
+        String newHash = repository.getContentHash(first);
+        assertFalse(repository.reuseExtraction(second, oldHash));
+        assertFalse(repository.reuseExtraction(second, newHash));
+
+        // second gets the extraction of the new content while it still has the old one
+        repository.setOriginalContent(third, "version nueva");
+        repository.setExtractedContent(third, "[\"nueva\"]", "jsonld");
+        repository.setExtractedStatus(third, DocumentRepository.STATUS_OK);
+        repository.setOriginalContent(second, "version vieja");
+        assertTrue(repository.reuseExtraction(second, newHash));
+        assertFalse(repository.reuseExtraction(fourth, oldHash));
+        assertTrue(repository.reuseExtraction(fourth, newHash));
+        assertEquals("[\"nueva\"]", repository.getExtractedContent(fourth));
+        repository.endSession();
+    }
+
+    @Test
+    public void testCollectGarbage() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        URL url = new URL("http://mentira.org/reemplazada");
+        // long enough to go to the data store instead of being kept inline
+        String first = randomText(1, 1000);
+        String second = randomText(2, 1000);
+        repository.setOriginalContent(url, first);
+        repository.setOriginalContent(url, second);
+        // the data store keeps what the JVM still references
+        repository.endSession();
+        System.gc();
+        repository.startSession();
+        assertEquals(1, repository.collectGarbage());
+        assertEquals(second, repository.getOriginalContent(url));
+        assertEquals(0, repository.collectGarbage());
+        repository.endSession();
+    }
+
+    private static String randomText(long seed, int length) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void testIndexingConfiguration() throws Exception {
+        repository.startSession();
+        URL url = new URL("http://mentira.org/indexada");
+        repository.setOriginalStatus(url, DocumentRepository.STATUS_OK);
+        repository.setOriginalContent(url, "una pagina");
+        repository.setExtractedContent(url, "[{}]", "cebraextractor");
+        repository.endSession();
+        repository.shutdown();
+        assertTrue(new File(repositoryFolder, "indexing_configuration.xml").exists());
+
+        // statuses are in the index, the rest of the properties are not
+        TransientRepository jcr = new TransientRepository(repositoryFolder);
+        Session session = jcr.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        try {
+            QueryManager queryManager = session.getWorkspace().getQueryManager();
+            assertEquals(1, queryManager.createQuery("SELECT * FROM [nt:unstructured] AS d WHERE d.[ORIGINAL_STATUS] = '200'" +
+                    " AND ISDESCENDANTNODE(d, '/documents_home')", Query.JCR_SQL2).execute().getNodes().getSize());
+            assertEquals(0, queryManager.createQuery("SELECT * FROM [nt:unstructured] AS d WHERE d.[extractor] = 'cebraextractor'",
+                    Query.JCR_SQL2).execute().getNodes().getSize());
+            assertEquals(0, queryManager.createQuery("SELECT * FROM [nt:unstructured] AS d WHERE CONTAINS(d.*, 'cebraextractor')",
+                    Query.JCR_SQL2).execute().getNodes().getSize());
+        } finally {
+            session.logout();
+            jcr.shutdown();
+        }
+    }
+
+    /**
+     * With full text indexing, the words of the original and extracted content (compressed in
+     * the data store) can be searched for, and those of a dropped extraction no longer are
+     */
+    @Test
+    public void testFullTextIndexing() throws Exception {
+        repository.setFullTextIndexing(true);
+        repository.setContentCodec(ContentCodec.GZIP);
+        repository.startSession();
+        URL url = new URL("http://mentira.org/cebras");
+        URL other = new URL("http://mentira.org/jirafas");
+        repository.setOriginalContent(url, "una pagina sobre cebras");
+        repository.setExtractedContent(url, "[{\"animal\": \"cebra\"}]", "cebraextractor");
+        repository.setOriginalContent(other, "una pagina sobre jirafas");
+        repository.setExtractedContent(other, "[{\"animal\": \"jirafa\"}]", "cebraextractor");
+        repository.setOriginalContent(other, "una pagina sobre okapis");
+        repository.endSession();
+        repository.shutdown();
+
+        TransientRepository jcr = new TransientRepository(repositoryFolder);
+        Session session = jcr.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        try {
+            assertEquals(1, containing(session, "cebras"));
+            assertEquals(1, containing(session, "cebra"));
+            assertEquals(1, containing(session, "okapis"));
+            assertEquals(0, containing(session, "jirafa"));
+            assertEquals(2, containing(session, "pagina"));
+        } finally {
+            session.logout();
+            jcr.shutdown();
+        }
+    }
+
+    private static long containing(Session session, String word) throws RepositoryException {
+        return session.getWorkspace().getQueryManager().createQuery("SELECT * FROM [nt:unstructured] AS d" +
+                " WHERE CONTAINS(d.*, '" + word + "')", Query.JCR_SQL2).execute().getNodes().getSize();
+    }
+
+    /**
+     * An install of the configuration that died before repository.xml was in place is done
+     * again, over what it had left
+     */
+    @Test
+    public void testInstallConfigurationAgain() throws Exception {
+        FileUtils.forceMkdir(repositoryFolder);
+        File indexing = new File(repositoryFolder, "indexing_configuration.xml");
+        FileUtils.writeStringToFile(indexing, "<configuration", "UTF-8");
+        repository.startSession();
+        repository.setOriginalStatus(new URL("http://mentira.org/1"), DocumentRepository.STATUS_OK);
+        repository.endSession();
+        assertTrue(new File(repositoryFolder, "repository.xml").exists());
+        assertTrue(FileUtils.readFileToString(indexing, "UTF-8").contains("</configuration>"));
+        assertEquals(2, repositoryFolder.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".xml") || name.endsWith(".tmp");
+            }
+        }).length);
+    }
+
+    /**
+     * New repos spread the urls of a host over 4096 buckets; repos sharded with 256 of them
+     * (2 hex digits, and no width recorded) keep finding their documents
+     */
+    @Test
+    public void testUrlBuckets() throws Exception {
+        repository.startSession();
+        URL url = new URL("http://mentira.org/cubo");
+        repository.setOriginalStatus(url, DocumentRepository.STATUS_OK);
+        repository.endSession();
+        repository.shutdown();
+
+        TransientRepository jcr = new TransientRepository(repositoryFolder);
+        Session session = jcr.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        try {
+            Node home = session.getRootNode().getNode("documents_home");
+            assertEquals(3, home.getProperty("url-bucket-width").getLong());
+            Node document = home.getNodes().nextNode().getNodes().nextNode().getNodes().nextNode();
+            Node urlBucket = document.getParent();
+            assertEquals(3, urlBucket.getName().length());
+            // the same document where a repo with 2 digit url buckets has it
+            Node oldBucket = urlBucket.getParent().addNode(urlBucket.getName().substring(1));
+            session.move(document.getPath(), oldBucket.getPath() + "/" + document.getName());
+            urlBucket.remove();
+            home.getProperty("url-bucket-width").remove();
+            session.save();
+        } finally {
+            session.logout();
+            jcr.shutdown();
+        }
+
+        repository = new DocumentRepository(repositoryFolder);
+        repository.startSession();
+        assertEquals(DocumentRepository.STATUS_OK, repository.getOriginalStatus(url));
+        assertEquals(1, repository.countDocuments());
+        repository.endSession();
+    }
+
+    /**
+     * A repo with the old flat layout (and no status index), whose migration dies half way
+     * (on a node that is not a document) and is run again
+     */
+    @Test
+    public void testMigrateFlatLayout() throws Exception {
+        int documents = 1100;
+        TransientRepository jcr = new TransientRepository(repositoryFolder);
+        Session session = jcr.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        Node home = session.getRootNode().addNode("documents_home");
+        for (int i = 0; i < documents; i++) {
+            Node document = home.addNode(URLEncoder.encode("http://host" + i % 7 + ".org/" + i, "UTF-8"));
+            document.setProperty("ORIGINAL_STATUS", i % 2 == 0 ? DocumentRepository.STATUS_OK : "404");
+            document.setProperty("content", "pagina " + i);
+        }
+        home.addNode("not-a-document");
+        session.save();
+        session.logout();
+        jcr.shutdown();
+
+        repository.startSession();
+        assertFalse(repository.isSharded());
+        assertEquals(DocumentRepository.STATUS_OK, repository.getOriginalStatus(new URL("http://host2.org/2")));
+        try {
+            repository.migrateToShardedLayout();
+            fail("the migration should have stopped");
+        } catch (RepositoryException e) {
+            // expected
+        }
+        try {
+            repository.hasOriginalContent(new URL("http://host2.org/2"));
+            fail("a half migrated repo should refuse to work");
+        } catch (RepositoryException e) {
+            // expected
+        }
+        repository.shutdown();
+
+        jcr = new TransientRepository(repositoryFolder);
+        session = jcr.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        home = session.getRootNode().getNode("documents_home");
+        assertEquals("migrating", home.getProperty("layout").getString());
+        int buckets = 0;
+        for (NodeIterator children = home.getNodes(); children.hasNext(); ) {
+            if (children.nextNode().getName().length() == 2) {
+                buckets++;
+            }
+        }
+        assertTrue(buckets > 0);
+        home.getNode("not-a-document").remove();
+        session.save();
+        session.logout();
+        jcr.shutdown();
+
+        // half migrated: moved documents are not where a flat repo looks for them
+        repository = new DocumentRepository(repositoryFolder);
+        repository.startSession();
+        assertFalse(repository.isSharded());
+        try {
+            repository.getOriginalStatus(new URL("http://host2.org/2"));
+            fail("a half migrated repo should refuse to work");
+        } catch (RepositoryException e) {
+            // expected
+        }
+        try {
+            repository.countDocuments();
+            fail("a half migrated repo should refuse to work");
+        } catch (RepositoryException e) {
+            // expected
+        }
+        repository.migrateToShardedLayout();
+        assertTrue(repository.isSharded());
+        assertTrue(repository.hasStatusIndex());
+        assertEquals(documents, repository.countDocuments());
+        assertEquals(documents / 2, repository.countByOriginalStatus(DocumentRepository.STATUS_OK));
+        assertEquals("pagina 5", repository.getOriginalContent(new URL("http://host5.org/5")));
+        assertEquals("404", repository.getOriginalStatus(new URL("http://host2.org/1003")));
+        Set<String> seen = new HashSet<String>();
+        Iterator<URL> iterator = repository.documentsIterator();
+        while (iterator.hasNext()) {
+            seen.add(iterator.next().toString());
+        }
+        assertEquals(documents, seen.size());
+        int ok = 0;
+        iterator = repository.documentsByStatusIterator(DocumentRepository.STATUS_OK);
+        while (iterator.hasNext()) {
+            assertEquals(DocumentRepository.STATUS_OK, repository.getOriginalStatus(iterator.next()));
+            ok++;
+        }
+        assertEquals(documents / 2, ok);
+        repository.endSession();
+
+        // a migrated repo stays migrated
+        repository.startSession();
+        assertTrue(repository.isSharded());
+        repository.migrateToShardedLayout();
+        assertEquals(documents, repository.countDocuments());
         repository.endSession();
     }
 
@@ -170,6 +576,309 @@ public class DocumentRepositoryTest {
         repository.endSession();
     }
 
+    @Test
+    public void testBatchedWrites() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        repository.beginBatch(3, 0);
+        repository.setOriginalStatus(new URL("http://mentira.org/1"), DocumentRepository.STATUS_404);
+        repository.setOriginalContent(new URL("http://mentira.org/2"), "dos");
+        repository.setOriginalStatus(new URL("http://mentira.org/2"), DocumentRepository.STATUS_OK);
+        assertEquals(2, repository.getPendingDocuments());
+        assertEquals("dos", repository.getOriginalContent(new URL("http://mentira.org/2")));
+        repository.setOriginalStatus(new URL("http://mentira.org/3"), DocumentRepository.STATUS_OK);
+        assertEquals(0, repository.getPendingDocuments());
+        repository.setOriginalStatus(new URL("http://mentira.org/4"), DocumentRepository.STATUS_OK);
+        assertEquals(1, repository.getPendingDocuments());
+        repository.endSession();
+
+        repository.startSession();
+        assertEquals(DocumentRepository.STATUS_404, repository.getOriginalStatus(new URL("http://mentira.org/1")));
+        assertEquals(DocumentRepository.STATUS_OK, repository.getOriginalStatus(new URL("http://mentira.org/4")));
+        repository.endSession();
+    }
+
+    @Test
+    public void testMissingDocuments() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        repository.setOriginalStatus(new URL("http://mentira.org/1"), DocumentRepository.STATUS_MISSING);
+        repository.setOriginalContent(new URL("http://mentira.org/3"), "tres");
+        List<URL> missing = repository.missingDocuments(Arrays.asList(new URL("http://mentira.org/1"),
+                new URL("http://mentira.org/2"), new URL("http://mentira.org/3"), new URL("http://mentira.org/4")));
+        assertEquals(Arrays.asList(new URL("http://mentira.org/2"), new URL("http://mentira.org/4")), missing);
+        repository.endSession();
+    }
+
+    @Test
+    public void testStatusCounts() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        assertTrue(repository.hasStatusIndex());
+        repository.setOriginalStatus(new URL("http://mentira.org/1"), DocumentRepository.STATUS_MISSING);
+        repository.setOriginalStatus(new URL("http://mentira.org/2"), DocumentRepository.STATUS_404);
+        repository.setOriginalStatus(new URL("http://mentira.org/3"), DocumentRepository.STATUS_404);
+        repository.setOriginalContent(new URL("http://mentira.org/4"), "without status - should be missing");
+        repository.setExtractedStatus(new URL("http://mentira.org/4"), DocumentRepository.STATUS_OK);
+        assertEquals(4, repository.countDocuments());
+        assertEquals(2, repository.countByOriginalStatus(DocumentRepository.STATUS_404));
+        assertEquals(2, repository.countByOriginalStatus(DocumentRepository.STATUS_MISSING));
+        assertEquals(0, repository.countByOriginalStatus(DocumentRepository.STATUS_OK));
+        assertEquals(1, repository.countByExtractedStatus(DocumentRepository.STATUS_OK));
+        assertEquals(3, repository.countByExtractedStatus(DocumentRepository.STATUS_MISSING));
+
+        repository.setOriginalStatus(new URL("http://mentira.org/2"), DocumentRepository.STATUS_OK);
+        assertEquals(1, repository.countByOriginalStatus(DocumentRepository.STATUS_404));
+        assertEquals(1, repository.countByOriginalStatus(DocumentRepository.STATUS_OK));
+        Iterator<URL> iterator = repository.documentsByStatusIterator(DocumentRepository.STATUS_OK);
+        assertEquals(new URL("http://mentira.org/2"), iterator.next());
+        assertTrue(!iterator.hasNext());
+        iterator = repository.documentsByExtractedStatusIterator(DocumentRepository.STATUS_OK);
+        assertEquals(new URL("http://mentira.org/4"), iterator.next());
+        assertTrue(!iterator.hasNext());
+
+        repository.rebuildStatusIndex();
+        assertEquals(4, repository.countDocuments());
+        assertEquals(1, repository.countByOriginalStatus(DocumentRepository.STATUS_404));
+        assertEquals(2, repository.countByOriginalStatus(DocumentRepository.STATUS_MISSING));
+        assertEquals(1, repository.countByExtractedStatus(DocumentRepository.STATUS_OK));
+        repository.endSession();
+    }
+
+    /**
+     * Rebuilding an index bigger than a batch replaces the old one without leaving any of it
+     */
+    @Test
+    public void testRebuildLargeStatusIndex() throws Exception {
+        int documents = 1100;
+        repository.startSession();
+        repository.beginBatch(500, 60000);
+        for (int i = 0; i < documents; i++) {
+            repository.setOriginalStatus(new URL("http://host" + i % 7 + ".org/" + i),
+                    i % 2 == 0 ? DocumentRepository.STATUS_OK : DocumentRepository.STATUS_404);
+        }
+        repository.commitBatch();
+        repository.rebuildStatusIndex();
+        assertEquals(documents, repository.countDocuments());
+        assertEquals(documents / 2, repository.countByOriginalStatus(DocumentRepository.STATUS_OK));
+        assertEquals(documents / 2, repository.countByOriginalStatus(DocumentRepository.STATUS_404));
+        repository.endSession();
+        repository.shutdown();
+
+        TransientRepository jcr = new TransientRepository(repositoryFolder);
+        Session session = jcr.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        try {
+            assertFalse(session.getRootNode().hasNode("status_index_old"));
+        } finally {
+            session.logout();
+            jcr.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreamedContent() throws Exception {
+        repository.startSession();
+        URL url = new URL("http://mentira.org/");
+        StringBuilder page = new StringBuilder("<html>");
+        for (int i = 0; i < 100000; i++) {
+            page.append("<p>p\u00e1rrafo ").append(i).append("</p>");
+        }
+        page.append("</html>");
+        repository.setOriginalContent(url, new ByteArrayInputStream(page.toString().getBytes("UTF-8")));
+        repository.setExtractedContent(url, new ByteArrayInputStream("object rdfs:type class".getBytes("UTF-8")),
+                "http://www.any23.org");
+        repository.endSession();
+
+        repository.startSession();
+        assertEquals(page.toString(), repository.getOriginalContent(url));
+        InputStream stream = repository.getOriginalContentStream(url);
+        assertEquals(page.toString(), IOUtils.toString(stream, "UTF-8"));
+        stream.close();
+        assertEquals("object rdfs:type class", repository.getExtractedContent(url));
+        repository.setOriginalStatus(new URL("http://mentira.org/nada"), DocumentRepository.STATUS_404);
+        assertEquals(null, repository.getExtractedContentStream(new URL("http://mentira.org/nada")));
+        repository.endSession();
+    }
+
+    @Test
+    public void testCompressedContent() throws Exception {
+        repository.startSession();
+        String page = "<html><body><div class=\"x\">Un documento corto, con \u00f1</div></body></html>";
+        repository.setOriginalContent(new URL("http://mentira.org/plain"), page);
+        for (ContentCodec codec : ContentCodec.values()) {
+            repository.setContentCodec(codec);
+            repository.setOriginalContent(new URL("http://mentira.org/" + codec.getId()), page);
+            repository.setExtractedContent(new URL("http://mentira.org/" + codec.getId()), "object rdfs:type class",
+                    "http://www.any23.org");
+        }
+        repository.setContentCodec(ContentCodec.IDENTITY);
+        repository.endSession();
+
+        repository.startSession();
+        assertEquals(page, repository.getOriginalContent(new URL("http://mentira.org/plain")));
+        for (ContentCodec codec : ContentCodec.values()) {
+            URL url = new URL("http://mentira.org/" + codec.getId());
+            assertEquals(page, repository.getOriginalContent(url));
+            assertEquals("object rdfs:type class", repository.getExtractedContent(url));
+        }
+        InputStream stream = repository.getOriginalContentStream(new URL("http://mentira.org/gzip"));
+        assertEquals(page, IOUtils.toString(stream, "UTF-8"));
+        stream.close();
+        repository.endSession();
+    }
+
+    @Test
+    public void testUnchangedContent() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        URL url = new URL("http://mentira.org/");
+        assertTrue(repository.setOriginalContent(url, "<html>uno</html>"));
+        String hash = repository.getContentHash(url);
+        assertEquals(40, hash.length());
+        Calendar modified = repository.getModificationDate(url);
+        assertFalse(repository.setOriginalContent(url, "<html>uno</html>"));
+        assertEquals(modified, repository.getModificationDate(url));
+        assertTrue(repository.setOriginalContent(url, "<html>dos</html>"));
+        assertFalse(hash.equals(repository.getContentHash(url)));
+        assertEquals("<html>dos</html>", repository.getOriginalContent(url));
+
+        repository.setValidators(url, "\"abc\"", "Wed, 21 Oct 2015 07:28:00 GMT");
+        repository.endSession();
+
+        repository.startSession();
+        assertEquals("\"abc\"", repository.getETag(url));
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", repository.getLastModified(url));
+        repository.setValidators(url, null, "Wed, 21 Oct 2015 07:28:00 GMT");
+        assertEquals(null, repository.getETag(url));
+        repository.endSession();
+    }
+
+    @Test
+    public void testCrawlJournal() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        Set<URL> all = new HashSet<URL>();
+        for (int i = 0; i < 1000; i++) {
+            URL url = new URL("http://mentira" + (i % 50) + ".org/" + i);
+            repository.setOriginalStatus(url, DocumentRepository.STATUS_MISSING);
+            all.add(url);
+        }
+        repository.beginBatch(100, 0);
+        CrawlJournal journal = repository.openCrawlJournal("test");
+        assertFalse(journal.isResumed());
+        Iterator<URL> iterator = repository.documentsByStatusIterator(DocumentRepository.STATUS_MISSING, journal);
+        Set<URL> seen = new HashSet<URL>();
+        for (int i = 0; i < 600; i++) {
+            URL url = iterator.next();
+            assertTrue(seen.add(url));
+            if (i < 500) {
+                repository.setOriginalStatus(url, DocumentRepository.STATUS_OK);
+                journal.removePending(url);
+            }
+        }
+        repository.endSession();
+
+        repository.startSession();
+        journal = repository.openCrawlJournal("test");
+        assertTrue(journal.isResumed());
+        assertEquals(100, journal.getPending().size());
+        iterator = repository.documentsByStatusIterator(DocumentRepository.STATUS_MISSING, journal);
+        while (iterator.hasNext()) {
+            assertTrue(seen.add(iterator.next()));
+        }
+        assertEquals(all, seen);
+        journal.finish();
+        assertFalse(repository.openCrawlJournal("test").isResumed());
+
+        URL url = new URL("http://mentira0.org/0");
+        assertEquals(0, repository.getAttempts(url));
+        assertEquals(1, repository.recordFailedAttempt(url));
+        assertEquals(2, repository.recordFailedAttempt(url));
+        Calendar later = Calendar.getInstance();
+        later.add(Calendar.MINUTE, 5);
+        repository.setNextAttempt(url, later);
+        assertEquals(later.getTimeInMillis(), repository.getNextAttempt(url).getTimeInMillis());
+        repository.clearAttempts(url);
+        assertEquals(0, repository.getAttempts(url));
+        assertEquals(null, repository.getNextAttempt(url));
+        repository.endSession();
+    }
+
+    @Test
+    public void testCache() throws RepositoryException, MalformedURLException {
+        repository.startSession();
+        URL url = new URL("http://mentira.org/");
+        repository.setOriginalStatus(url, DocumentRepository.STATUS_404);
+        long misses = repository.getCacheMisses();
+        long hits = repository.getCacheHits();
+        assertEquals(DocumentRepository.STATUS_404, repository.getOriginalStatus(url));
+        assertTrue(repository.getModificationDate(url) instanceof Calendar);
+        assertEquals(hits + 2, repository.getCacheHits());
+        assertEquals(misses, repository.getCacheMisses());
+
+        repository.setOriginalStatus(url, DocumentRepository.STATUS_OK);
+        assertEquals(DocumentRepository.STATUS_OK, repository.getOriginalStatus(url));
+        repository.endSession();
+
+        repository.startSession();
+        misses = repository.getCacheMisses();
+        assertEquals(DocumentRepository.STATUS_OK, repository.getOriginalStatus(url));
+        assertTrue(repository.getCacheMisses() > misses);
+        repository.setCacheLimits(0, 0);
+        assertEquals(DocumentRepository.STATUS_OK, repository.getOriginalStatus(url));
+        repository.endSession();
+    }
+
+    @Test
+    public void testStatisticsAndExport() throws Exception {
+        repository.startSession();
+        URL url1 = new URL("http://mentira.org/a");
+        URL url2 = new URL("http://mentira.org/b,c");
+        URL url3 = new URL("http://verdad.org/");
+        // sizes are those of the content as it came
+        repository.setContentCodec(ContentCodec.GZIP);
+        repository.setOriginalContent(url1, "hola");
+        repository.setOriginalStatus(url1, DocumentRepository.STATUS_OK);
+        repository.setOriginalStatus(url2, DocumentRepository.STATUS_404);
+        repository.setOriginalStatus(url3, DocumentRepository.STATUS_404);
+
+        DocumentStatistics statistics = repository.computeStatistics();
+        assertEquals(3, statistics.getDocuments());
+        assertEquals(1, statistics.getDocumentsWithContent());
+        assertEquals(4, statistics.getTotalSize());
+        assertTrue(statistics.getTotalStoredSize() > 4 + 10);
+        assertEquals(Long.valueOf(2), statistics.getCountsByStatus().get(DocumentRepository.STATUS_404));
+        assertEquals(Long.valueOf(1), statistics.getCountsByStatus().get(DocumentRepository.STATUS_OK));
+        assertEquals(Long.valueOf(2), statistics.getCountsByHost().get("mentira.org"));
+        assertEquals(1, statistics.getCountsByDate().size());
+
+        File csv = new File(repositoryFolder, "documents.csv");
+        File columns = new File(repositoryFolder, "columns");
+        DocumentExporter exporter = new DocumentExporter(csv, DocumentExporter.Format.CSV);
+        DocumentExporter columnar = new DocumentExporter(columns, DocumentExporter.Format.COLUMNAR);
+        repository.visitDocuments(exporter, columnar);
+        exporter.close();
+        columnar.close();
+        repository.endSession();
+
+        List<String> rows = FileUtils.readLines(csv, "UTF-8");
+        assertEquals(4, rows.size());
+        assertEquals("url,status,extracted-status,updated-on,size,stored-size", rows.get(0));
+        assertTrue(findRow(rows, url1).matches("http://mentira\\.org/a,200,,\\d{4}-\\d\\d-\\d\\dT[0-9:]{8}Z,4,\\d\\d+"));
+        assertTrue(findRow(rows, url2).startsWith("\"http://mentira.org/b,c\",404,,"));
+        assertTrue(findRow(rows, url2).endsWith(",,"));
+
+        InputStream status = new GZIPInputStream(new FileInputStream(new File(columns, "status.gz")));
+        List<String> statuses = IOUtils.readLines(status, "UTF-8");
+        status.close();
+        assertEquals(3, statuses.size());
+        assertEquals(2, Collections.frequency(statuses, DocumentRepository.STATUS_404));
+    }
+
+    private String findRow(List<String> rows, URL url) {
+        for (String row : rows) {
+            if (row.startsWith(url.toString()) || row.startsWith("\"" + url.toString())) {
+                return row;
+            }
+        }
+        return null;
+    }
+
 
     private String getURLContentOrNil(URL url) throws IOException {
         return Request.Get(url.toString()).execute().returnContent().asString();
@@ -0,0 +1,101 @@
+package utilities;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import repository.DocumentStore;
+import repository.KeyValueDocumentStore;
+import utilities.extractors.ContentExtractor;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExtractContentOperationTest {
+
+    private final File storeFolder = new File("unit-test-store");
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteDirectory(storeFolder);
+        DocumentStore store = new KeyValueDocumentStore(storeFolder);
+        store.startSession();
+        char[] page = new char[300 * 1024];
+        Arrays.fill(page, 'x');
+        for (int i = 0; i < 6; i++) {
+            URL url = new URL("http://mentira.org/" + i);
+            store.setOriginalStatus(url, DocumentStore.STATUS_OK);
+            store.setOriginalContent(url, new String(page) + i);
+        }
+        store.endSession();
+        store.shutdown();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(storeFolder);
+    }
+
+    /**
+     * A run that stops half way (here, interrupted) releases the temporary files of the
+     * documents read ahead for the workers, also those no worker got to
+     */
+    @Test
+    public void testStoppedRunReleasesContent() throws Exception {
+        int before = temporaryFiles();
+        final CountDownLatch started = new CountDownLatch(1);
+        ContentExtractor extractor = new ContentExtractor() {
+            @Override
+            public String getId() {
+                return "lento";
+            }
+
+            @Override
+            public void extract(URL url, InputStream original, OutputStream extracted) throws IOException {
+                started.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    throw new IOException("Stopped", e);
+                }
+            }
+        };
+        final ExtractContentOperation operation = new ExtractContentOperation(storeFolder, extractor, 0, 0, 1);
+        Thread runner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                operation.run();
+            }
+        });
+        runner.start();
+        started.await();
+        // wait until a document is spooled for a task that never starts
+        long deadline = System.currentTimeMillis() + 10000;
+        while (temporaryFiles() < before + 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(temporaryFiles() >= before + 2);
+        runner.interrupt();
+        runner.join(30000);
+        assertEquals(before, temporaryFiles());
+    }
+
+    private static int temporaryFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("body") && name.endsWith(".tmp");
+            }
+        });
+        return names != null ? names.length : 0;
+    }
+}
@@ -0,0 +1,414 @@
+package utilities;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import repository.ContentCodec;
+import repository.CrawlJournal;
+import repository.DocumentStatistics;
+import repository.DocumentStore;
+import repository.KeyValueDocumentStore;
+import repository.StorageBackend;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyValueDocumentStoreTest {
+
+    DocumentStore store;
+    private final File storeFolder;
+
+    public KeyValueDocumentStoreTest() {
+        storeFolder = new File("unit-test-store");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        if (storeFolder.exists()) {
+            FileUtils.deleteDirectory(storeFolder);
+        }
+        store = new KeyValueDocumentStore(storeFolder);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.shutdown();
+        FileUtils.deleteDirectory(storeFolder);
+    }
+
+    @Test
+    public void testStoreAndReopen() throws RepositoryException, MalformedURLException {
+        store.startSession();
+        URL url = new URL("http://mentira.org/");
+        URL other = new URL("http://mentira.org/otra");
+        assertTrue(store.setOriginalContent(url, "Un documento corto"));
+        store.setOriginalStatus(url, DocumentStore.STATUS_OK);
+        store.setValidators(url, "\"v1\"", null);
+        store.setExtractedContent(url, "[]", "jsonld");
+        store.setExtractedStatus(url, DocumentStore.STATUS_OK);
+        store.setOriginalStatus(other, DocumentStore.STATUS_404);
+        assertFalse(store.setOriginalContent(url, "Un documento corto"));
+        store.endSession();
+        store.shutdown();
+
+        store = StorageBackend.of(storeFolder).open(storeFolder);
+        assertTrue(store instanceof KeyValueDocumentStore);
+        store.startSession();
+        assertEquals("Un documento corto", store.getOriginalContent(url));
+        assertEquals(DocumentStore.STATUS_OK, store.getOriginalStatus(url));
+        assertEquals("\"v1\"", store.getETag(url));
+        assertEquals(null, store.getLastModified(url));
+        assertEquals("[]", store.getExtractedContent(url));
+        assertEquals("jsonld", store.getExtractor(url));
+        assertEquals(null, store.getOriginalContent(other));
+        assertEquals(2, store.countDocuments());
+        assertEquals(1, store.countByOriginalStatus(DocumentStore.STATUS_404));
+        assertEquals(1, store.countByExtractedStatus(DocumentStore.STATUS_MISSING));
+        assertEquals(1, store.missingDocuments(Arrays.asList(url, new URL("http://verdad.org/"))).size());
+        try {
+            store.getOriginalStatus(new URL("http://verdad.org/"));
+            fail();
+        } catch (PathNotFoundException e) {
+            // there is no such document
+        }
+        store.endSession();
+    }
+
+    @Test
+    public void testBatchesAndCodecs() throws Exception {
+        store.startSession();
+        store.setContentCodec(ContentCodec.GZIP);
+        store.beginBatch(3, 0);
+        store.setOriginalStatus(new URL("http://mentira.org/1"), DocumentStore.STATUS_404);
+        store.setOriginalContent(new URL("http://mentira.org/2"), "dos");
+        store.setOriginalStatus(new URL("http://mentira.org/2"), DocumentStore.STATUS_OK);
+        assertEquals(2, store.getPendingDocuments());
+        store.setOriginalStatus(new URL("http://mentira.org/3"), DocumentStore.STATUS_OK);
+        assertEquals(0, store.getPendingDocuments());
+        store.commitBatch();
+        store.endSession();
+        store.shutdown();
+
+        // a torn record at the end (a crash while appending) is dropped when the log is opened
+        FileOutputStream log = new FileOutputStream(new File(storeFolder, "documents.log"), true);
+        log.write(new byte[] {'D', 0, 0, 1, 0, 42});
+        log.close();
+
+        store.startSession();
+        assertEquals("dos", store.getOriginalContent(new URL("http://mentira.org/2")));
+        assertEquals(2, store.countByOriginalStatus(DocumentStore.STATUS_OK));
+        store.setOriginalContent(new URL("http://mentira.org/1"), "uno");
+        assertEquals("uno", store.getOriginalContent(new URL("http://mentira.org/1")));
+        store.endSession();
+    }
+
+    /**
+     * Sizes are those of the content as it came, whatever codec it was stored with
+     */
+    @Test
+    public void testSizesOfCompressedContent() throws Exception {
+        store.startSession();
+        store.setOriginalContent(new URL("http://mentira.org/1"), "uno");
+        store.setContentCodec(ContentCodec.GZIP);
+        store.setOriginalContent(new URL("http://mentira.org/2"), "dos");
+        store.endSession();
+        store.shutdown();
+
+        store.startSession();
+        DocumentStatistics statistics = store.computeStatistics();
+        assertEquals(2, statistics.getDocumentsWithContent());
+        assertEquals(6, statistics.getTotalSize());
+        assertTrue(statistics.getTotalStoredSize() > 6 + 10);
+        store.endSession();
+    }
+
+    @Test
+    public void testSegmentsAndCompaction() throws Exception {
+        store.shutdown();
+        KeyValueDocumentStore segmented = new KeyValueDocumentStore(storeFolder, 4096);
+        store = segmented;
+        store.startSession();
+        for (int i = 0; i < 100; i++) {
+            store.setOriginalContent(new URL("http://mentira.org/" + i), content(i, "primera"));
+            store.setOriginalStatus(new URL("http://mentira.org/" + i), DocumentStore.STATUS_OK);
+        }
+        // most of the content is replaced, so the first segments are mostly garbage
+        for (int i = 0; i < 90; i++) {
+            store.setOriginalContent(new URL("http://mentira.org/" + i), content(i, "segunda"));
+            store.setExtractedStatus(new URL("http://mentira.org/" + i), DocumentStore.STATUS_OK);
+        }
+        File segments = new File(storeFolder, "segments");
+        int before = segments.list().length;
+        long logBefore = new File(storeFolder, "documents.log").length();
+        assertTrue(before > 5);
+        assertTrue(segmented.compact(0.5) > 0);
+        assertTrue(segments.list().length < before);
+        assertTrue(new File(storeFolder, "documents.log").length() < logBefore);
+        assertEquals(0, segmented.compact(0.5));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(content(i, i < 90 ? "segunda" : "primera"), store.getOriginalContent(new URL("http://mentira.org/" + i)));
+        }
+        store.endSession();
+
+        store.startSession();
+        assertEquals(100, store.countByOriginalStatus(DocumentStore.STATUS_OK));
+        assertEquals(90, store.countByExtractedStatus(DocumentStore.STATUS_OK));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(content(i, i < 90 ? "segunda" : "primera"), store.getOriginalContent(new URL("http://mentira.org/" + i)));
+        }
+        store.endSession();
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        store.shutdown();
+        KeyValueDocumentStore segmented = new KeyValueDocumentStore(storeFolder, 4096);
+        store = segmented;
+        store.startSession();
+        URL streamed = new URL("http://mentira.org/leida");
+        URL fixed = new URL("http://mentira.org/fija");
+        store.setOriginalContent(streamed, content(0, "leida"));
+        store.setOriginalContent(fixed, content(0, "fija"));
+        for (int i = 0; i < 10; i++) {
+            store.setOriginalContent(new URL("http://mentira.org/" + i), content(i, "primera"));
+        }
+        File first = new File(storeFolder, "segments/00000001.seg");
+        assertTrue(new File(storeFolder, "segments/00000002.seg").exists());
+
+        // a stream over the first segment, half read when the segment goes away
+        InputStream reading = store.getOriginalContentStream(streamed);
+        byte[] head = new byte[100];
+        assertEquals(head.length, reading.read(head));
+        store.setOriginalContent(streamed, content(0, "nueva"));
+
+        segmented.startCompaction(1, 0.5);
+        for (int round = 0; round < 50 || first.exists(); round++) {
+            assertTrue("the first segment was not compacted", round < 5000);
+            for (int i = 0; i < 10; i++) {
+                URL url = new URL("http://mentira.org/" + i);
+                store.setOriginalContent(url, content(i, "version " + round));
+                assertEquals(content(i, "version " + round), store.getOriginalContent(url));
+            }
+            assertEquals(content(0, "fija"), store.getOriginalContent(fixed));
+        }
+        segmented.stopCompaction();
+        assertEquals(content(0, "leida"), new String(head, "UTF-8") + IOUtils.toString(reading, "UTF-8"));
+        reading.close();
+        assertEquals(content(0, "nueva"), store.getOriginalContent(streamed));
+        store.endSession();
+        store.shutdown();
+
+        store = new KeyValueDocumentStore(storeFolder);
+        store.startSession();
+        assertEquals(content(0, "fija"), store.getOriginalContent(fixed));
+        assertEquals(content(0, "nueva"), store.getOriginalContent(streamed));
+        store.endSession();
+    }
+
+    @Test
+    public void testDeduplication() throws Exception {
+        store.shutdown();
+        KeyValueDocumentStore segmented = new KeyValueDocumentStore(storeFolder, 4096);
+        store = segmented;
+        File segment = new File(storeFolder, "segments/00000001.seg");
+        store.startSession();
+        for (int i = 0; i < 10; i++) {
+            store.setOriginalContent(new URL("http://mentira.org/" + i), content(0, "repetida"));
+        }
+        store.setOriginalContent(new URL("http://mentira.org/distinta"), content(1, "distinta"));
+        store.setExtractedContent(new URL("http://mentira.org/0"), "[]", "jsonld");
+        store.setExtractedStatus(new URL("http://mentira.org/0"), DocumentStore.STATUS_OK);
+        store.endSession();
+        long size = segment.length();
+
+        store.startSession();
+        store.setOriginalContent(new URL("http://mentira.org/otra"), content(0, "repetida"));
+        String hash = store.getContentHash(new URL("http://mentira.org/otra"));
+        assertEquals(hash, store.getContentHash(new URL("http://mentira.org/3")));
+        assertTrue(store.reuseExtraction(new URL("http://mentira.org/otra"), hash));
+        assertFalse(store.reuseExtraction(new URL("http://mentira.org/distinta"),
+                store.getContentHash(new URL("http://mentira.org/distinta"))));
+        store.endSession();
+        assertEquals(size, segment.length());
+
+        // content shared by documents is kept until the last one lets go of it
+        store.startSession();
+        assertEquals("[]", store.getExtractedContent(new URL("http://mentira.org/otra")));
+        assertEquals(DocumentStore.STATUS_OK, store.getExtractedStatus(new URL("http://mentira.org/otra")));
+        for (int i = 0; i < 10; i++) {
+            store.setOriginalContent(new URL("http://mentira.org/" + i), content(i, "nueva"));
+        }
+        segmented.compact(0.5);
+        assertEquals(content(0, "repetida"), store.getOriginalContent(new URL("http://mentira.org/otra")));
+        assertEquals(content(9, "nueva"), store.getOriginalContent(new URL("http://mentira.org/9")));
+        store.endSession();
+        store.startSession();
+        assertEquals(content(0, "repetida"), store.getOriginalContent(new URL("http://mentira.org/otra")));
+        // 0 has new content, so only otra uses the extraction now
+        assertEquals(null, store.getExtractedStatus(new URL("http://mentira.org/0")));
+        assertEquals("[]", store.getExtractedContent(new URL("http://mentira.org/otra")));
+        store.endSession();
+    }
+
+    private static String content(int i, String version) {
+        StringBuilder content = new StringBuilder();
+        for (int j = 0; j < 20; j++) {
+            content.append("Documento ").append(i).append(", ").append(version).append(" version. ");
+        }
+        return content.toString();
+    }
+
+    @Test
+    public void testChangedContentDropsExtraction() throws RepositoryException, MalformedURLException {
+        store.startSession();
+        URL url = new URL("http://mentira.org/cambia");
+        URL other = new URL("http://mentira.org/otra");
+        store.setOriginalContent(url, "primera version");
+        store.setExtractedContent(url, "[1]", "jsonld");
+        store.setExtractedStatus(url, DocumentStore.STATUS_OK);
+        store.setOriginalContent(other, "segunda version");
+        store.setExtractedContent(other, "[2]", "jsonld");
+        store.setExtractedStatus(other, DocumentStore.STATUS_OK);
+        store.endSession();
+        store.shutdown();
+
+        store = new KeyValueDocumentStore(storeFolder);
+        store.startSession();
+        assertFalse(store.setOriginalContent(url, "primera version"));
+        assertEquals(DocumentStore.STATUS_OK, store.getExtractedStatus(url));
+
+        // an extraction reused before the content is stored was made from that content
+        assertTrue(store.reuseExtraction(url, store.getContentHash(other)));
+        assertTrue(store.setOriginalContent(url, "segunda version"));
+        assertEquals("[2]", store.getExtractedContent(url));
+
+        assertTrue(store.setOriginalContent(url, "tercera version"));
+        assertEquals(null, store.getExtractedStatus(url));
+        assertEquals(null, store.getExtractedContent(url));
+        assertEquals(null, store.getExtractor(url));
+        assertEquals(1, store.countByExtractedStatus(DocumentStore.STATUS_OK));
+        assertEquals("[2]", store.getExtractedContent(other));
+        store.endSession();
+    }
+
+    @Test
+    public void testReuseExtractionOfChangedContent() throws RepositoryException, MalformedURLException {
+        store.startSession();
+        URL first = new URL("http://mentira.org/1");
+        URL second = new URL("http://mentira.org/2");
+        URL third = new URL("http://mentira.org/3");
+        URL fourth = new URL("http://mentira.org/4");
+        store.setOriginalContent(first, "version vieja");
+        String oldHash = store.getContentHash(first);
+        store.setExtractedContent(first, "[\"vieja\"]", "jsonld");
+        store.setExtractedStatus(first, DocumentStore.STATUS_OK);
+        store.setOriginalContent(first, "version nueva");
+        String newHash = store.getContentHash(first);
+        assertFalse(store.reuseExtraction(second, oldHash));
+        assertFalse(store.reuseExtraction(second, newHash));
+
+        // second gets the extraction of the new content while it still has the old one
+        store.setOriginalContent(third, "version nueva");
+        store.setExtractedContent(third, "[\"nueva\"]", "jsonld");
+        store.setExtractedStatus(third, DocumentStore.STATUS_OK);
+        store.setOriginalContent(second, "version vieja");
+        assertTrue(store.reuseExtraction(second, newHash));
+        store.endSession();
+        store.shutdown();
+
+        store = new KeyValueDocumentStore(storeFolder);
+        store.startSession();
+        assertFalse(store.reuseExtraction(fourth, oldHash));
+        assertTrue(store.reuseExtraction(fourth, newHash));
+        assertEquals("[\"nueva\"]", store.getExtractedContent(fourth));
+        store.endSession();
+    }
+
+    @Test
+    public void testStreamWhileStoring() throws Exception {
+        store.startSession();
+        store.beginBatch(100000, 0);
+        for (int i = 0; i < 20000; i++) {
+            store.setOriginalStatus(new URL("http://mentira" + (i % 10) + ".org/" + i), DocumentStore.STATUS_MISSING);
+        }
+        // the workers store new documents while the cursor reads the order of the store
+        final Set<URL> seen = Collections.synchronizedSet(new HashSet<URL>());
+        store.documentsCursor(64).stream(true).forEach(new Consumer<URL>() {
+            @Override
+            public void accept(URL url) {
+                seen.add(url);
+                if (url.getPath().endsWith("-copia")) {
+                    return;
+                }
+                try {
+                    store.setOriginalStatus(new URL(url + "-copia"), DocumentStore.STATUS_OK);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        assertEquals(40000, store.countDocuments());
+        assertEquals(20000, store.countByOriginalStatus(DocumentStore.STATUS_OK));
+        assertTrue(seen.size() >= 20000);
+        store.commitBatch();
+        store.endSession();
+    }
+
+    @Test
+    public void testCrawlJournal() throws RepositoryException, MalformedURLException {
+        store.startSession();
+        Set<URL> all = new HashSet<URL>();
+        for (int i = 0; i < 1000; i++) {
+            URL url = new URL("http://mentira" + (i % 50) + ".org/" + i);
+            store.setOriginalStatus(url, DocumentStore.STATUS_MISSING);
+            all.add(url);
+        }
+        store.beginBatch(100, 0);
+        CrawlJournal journal = store.openCrawlJournal("test");
+        assertFalse(journal.isResumed());
+        Iterator<URL> iterator = store.documentsByStatusIterator(DocumentStore.STATUS_MISSING, journal);
+        Set<URL> seen = new HashSet<URL>();
+        for (int i = 0; i < 600; i++) {
+            URL url = iterator.next();
+            assertTrue(seen.add(url));
+            if (i < 500) {
+                store.setOriginalStatus(url, DocumentStore.STATUS_OK);
+                journal.removePending(url);
+            }
+        }
+        store.endSession();
+        store.shutdown();
+
+        store.startSession();
+        journal = store.openCrawlJournal("test");
+        assertTrue(journal.isResumed());
+        assertEquals(100, journal.getPending().size());
+        iterator = store.documentsByStatusIterator(DocumentStore.STATUS_MISSING, journal);
+        while (iterator.hasNext()) {
+            assertTrue(seen.add(iterator.next()));
+        }
+        assertEquals(all, seen);
+        journal.finish();
+        assertFalse(store.openCrawlJournal("test").isResumed());
+        store.endSession();
+    }
+}
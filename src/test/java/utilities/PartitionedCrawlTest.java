@@ -0,0 +1,220 @@
+package utilities;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.TransientRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import repository.DocumentCursor;
+import repository.DocumentRepository;
+import repository.DocumentStore;
+import repository.KeyValueDocumentStore;
+import repository.PartitionLayout;
+import repository.StorageBackend;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PartitionedCrawlTest {
+
+    private static final int PARTITIONS = 3;
+    private static final int HOSTS = 20;
+    private static final int PAGES = 3;
+
+    private final File root = new File("unit-test-partitions");
+    private final File merged = new File("unit-test-merged");
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteDirectory(root);
+        FileUtils.deleteDirectory(merged);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+        FileUtils.deleteDirectory(merged);
+    }
+
+    /**
+     * Each partition is registered and "downloaded" by a process of its own, then read as one
+     * store and merged into a single one
+     */
+    @Test
+    public void testCrawlInSeparateProcesses() throws Exception {
+        PartitionLayout layout = PartitionLayout.create(root, PARTITIONS);
+        File urlList = new File(root, "urls.txt");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(urlList), Charset.forName("UTF-8"));
+        for (int host = 0; host < HOSTS; host++) {
+            for (int page = 0; page < PAGES; page++) {
+                writer.write("http://host" + host + ".example.org/page" + page + "\n");
+            }
+        }
+        writer.write("http://host0.example.org/page0\n");
+        writer.close();
+
+        List<Process> workers = new ArrayList<Process>();
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            workers.add(new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-D" + StorageBackend.PROPERTY + "=KEY_VALUE",
+                    "-cp", System.getProperty("java.class.path"),
+                    Worker.class.getName(), root.getPath(), Integer.toString(partition), urlList.getPath())
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(root, "worker-" + partition + ".log"))
+                    .start());
+        }
+        for (Process worker : workers) {
+            assertEquals(0, worker.waitFor());
+        }
+
+        DocumentStore store = StorageBackend.of(root).open(root);
+        assertEquals(StorageBackend.PARTITIONED, StorageBackend.of(root));
+        store.startSession();
+        try {
+            assertEquals(HOSTS * PAGES, store.countDocuments());
+            assertEquals(HOSTS * PAGES, store.countByOriginalStatus(DocumentStore.STATUS_OK));
+            assertEquals(HOSTS * PAGES, store.computeStatistics().getDocuments());
+            URL url = new URL("http://host7.example.org/page2");
+            assertEquals("<html>" + url + "</html>", store.getOriginalContent(url));
+            URL unknown = new URL("http://host7.example.org/page9");
+            assertEquals(Arrays.asList(unknown), store.missingDocuments(Arrays.asList(url, unknown)));
+            int count = 0;
+            DocumentCursor cursor = store.documentsCursor(7);
+            while (cursor.hasNext()) {
+                cursor.next();
+                count++;
+            }
+            assertEquals(HOSTS * PAGES, count);
+            try {
+                store.openCrawlJournal("crawl");
+                fail("Partitions are crawled on their own");
+            } catch (RepositoryException e) {
+                // expected
+            }
+        } finally {
+            store.endSession();
+            store.shutdown();
+        }
+
+        int used = 0;
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            DocumentStore partitionStore = new KeyValueDocumentStore(layout.getFolder(partition));
+            partitionStore.startSession();
+            DocumentCursor cursor = partitionStore.documentsCursor(DocumentCursor.DEFAULT_BATCH_SIZE);
+            if (cursor.hasNext()) {
+                used++;
+            }
+            while (cursor.hasNext()) {
+                assertEquals(partition, layout.partitionOf(cursor.next()));
+            }
+            partitionStore.endSession();
+            partitionStore.shutdown();
+        }
+        assertTrue(used > 1);
+
+        new MergeStoresOperation(merged, StorageBackend.KEY_VALUE, Arrays.asList(root)).run();
+        DocumentStore target = StorageBackend.of(merged).open(merged);
+        target.startSession();
+        try {
+            assertEquals(HOSTS * PAGES, target.countByOriginalStatus(DocumentStore.STATUS_OK));
+            URL url = new URL("http://host11.example.org/page1");
+            assertEquals("<html>" + url + "</html>", target.getOriginalContent(url));
+        } finally {
+            target.endSession();
+            target.shutdown();
+        }
+    }
+
+    /**
+     * A partition kept in a JCR repo has a node that is not a document, next to one that is:
+     * the cursor over all partitions skips it and keeps its name
+     */
+    @Test
+    public void testCursorKeepsSkippedKeys() throws Exception {
+        PartitionLayout layout = PartitionLayout.create(root, 2);
+        File folder = layout.getFolder(0);
+        DocumentStore partition = new DocumentRepository(folder);
+        partition.startSession();
+        partition.setOriginalStatus(new URL("http://mentira.org/1"), DocumentStore.STATUS_OK);
+        partition.endSession();
+        partition.shutdown();
+        partition = new KeyValueDocumentStore(layout.getFolder(1));
+        partition.startSession();
+        partition.setOriginalStatus(new URL("http://otra.org/1"), DocumentStore.STATUS_OK);
+        partition.endSession();
+        partition.shutdown();
+
+        TransientRepository jcr = new TransientRepository(folder);
+        Session session = jcr.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        try {
+            Node node = session.getRootNode().getNode("documents_home");
+            while (node.hasNodes()) {
+                NodeIterator children = node.getNodes();
+                node = children.nextNode();
+            }
+            node.getParent().addNode("not-a-document");
+            session.save();
+        } finally {
+            session.logout();
+            jcr.shutdown();
+        }
+
+        DocumentStore store = StorageBackend.of(root).open(root);
+        store.startSession();
+        try {
+            DocumentCursor cursor = store.documentsCursor(7);
+            List<URL> urls = new ArrayList<URL>();
+            while (cursor.hasNext()) {
+                urls.add(cursor.next());
+            }
+            assertEquals(Arrays.asList(new URL("http://mentira.org/1"), new URL("http://otra.org/1")), urls);
+            assertEquals(Arrays.asList("not-a-document"), cursor.getSkipped());
+        } finally {
+            store.endSession();
+            store.shutdown();
+        }
+    }
+
+    /**
+     * A crawling process: registers the urls of its partition and stores a page for each
+     */
+    public static class Worker {
+        public static void main(String[] args) throws Exception {
+            PartitionLayout layout = PartitionLayout.open(new File(args[0]));
+            int partition = Integer.parseInt(args[1]);
+            new RegisterURLsOperation(layout, partition, new File(args[2]), false).run();
+
+            File folder = layout.getFolder(partition);
+            DocumentStore store = StorageBackend.of(folder).open(folder);
+            store.startSession();
+            List<URL> urls = new ArrayList<URL>();
+            DocumentCursor cursor = store.documentsByStatusCursor(DocumentStore.STATUS_MISSING, 100);
+            while (cursor.hasNext()) {
+                urls.add(cursor.next());
+            }
+            for (URL url : urls) {
+                store.setOriginalStatus(url, DocumentStore.STATUS_OK);
+                store.setOriginalContent(url, "<html>" + url + "</html>");
+            }
+            store.endSession();
+            store.shutdown();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package utilities.extractors;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonLdExtractorTest {
+
+    @Test
+    public void testExtract() throws Exception {
+        String page = "<html><head><script type=\"application/ld+json\">\n{\"@type\": \"Person\"}\n</script>" +
+                "<script src=\"x.js\"></script></head><body>" +
+                "<SCRIPT TYPE='application/ld+json'>{\"@type\": \"Pa\u00eds\"}</SCRIPT></body></html>";
+        assertEquals("[{\"@type\": \"Person\"},{\"@type\": \"Pa\u00eds\"}]", extract(page));
+        assertEquals("[]", extract("<html><body>nada</body></html>"));
+    }
+
+    private String extract(String page) throws Exception {
+        ByteArrayOutputStream extracted = new ByteArrayOutputStream();
+        new JsonLdExtractor().extract(new URL("http://mentira.org/"),
+                new ByteArrayInputStream(page.getBytes("UTF-8")), extracted);
+        return extracted.toString("UTF-8");
+    }
+}
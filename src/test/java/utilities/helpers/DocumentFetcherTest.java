@@ -0,0 +1,243 @@
+package utilities.helpers;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fetches from a server on the loopback interface, whose pages misbehave in the ways the
+ * fetcher has to cope with
+ */
+public class DocumentFetcherTest {
+
+    private static final byte[] CHUNK = new byte[100];
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private DocumentFetcher fetcher;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+        fetcher = new DocumentFetcher(4, 1, 5000, 30000, 60000);
+    }
+
+    @After
+    public void tearDown() {
+        fetcher.close();
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    public void testBodyCap() throws IOException {
+        String announced = page("/anunciada", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Type", "text/html");
+                exchange.sendResponseHeaders(200, 50 * CHUNK.length);
+                drip(exchange.getResponseBody(), 50, 0);
+                exchange.close();
+            }
+        });
+        String streamed = page("/chorreada", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+                exchange.sendResponseHeaders(200, 0);
+                drip(exchange.getResponseBody(), exchange.getRequestURI().getQuery().equals("corta") ? 5 : 50, 0);
+                exchange.close();
+            }
+        });
+        fetcher.setBodyLimits(1000, -1);
+        FetchResult result = fetcher.fetch(announced);
+        assertEquals(200, result.getStatus());
+        assertEquals(FetchResult.Outcome.TRUNCATED, result.getOutcome());
+        assertNull(result.getBody());
+
+        result = fetcher.fetch(streamed + "?larga");
+        assertEquals(FetchResult.Outcome.TRUNCATED, result.getOutcome());
+        assertNull(result.getBody());
+
+        result = fetcher.fetch(streamed + "?corta");
+        assertEquals(FetchResult.Outcome.COMPLETE, result.getOutcome());
+        assertEquals(5 * CHUNK.length, result.getBody().length());
+        result.getBody().delete();
+    }
+
+    @Test
+    public void testPrefilter() throws IOException {
+        final AtomicInteger gets = new AtomicInteger();
+        String url = page("/filtrada", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String query = exchange.getRequestURI().getQuery();
+                boolean head = exchange.getRequestMethod().equals("HEAD");
+                if (!head) {
+                    gets.incrementAndGet();
+                }
+                if (head && query.equals("sin-head")) {
+                    exchange.sendResponseHeaders(405, -1);
+                } else if (head && query.equals("grande")) {
+                    exchange.getResponseHeaders().set("Content-Type", "text/html");
+                    exchange.getResponseHeaders().set("Content-Length", "5000");
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    exchange.getResponseHeaders().set("Content-Type", query.equals("json") ? "application/json" : "text/html");
+                    exchange.sendResponseHeaders(200, CHUNK.length);
+                    exchange.getResponseBody().write(CHUNK);
+                }
+                exchange.close();
+            }
+        });
+        fetcher.setHeadPrefilter(true);
+        fetcher.setBodyLimits(1000, -1);
+        assertEquals(FetchResult.Outcome.UNSUPPORTED_TYPE, fetcher.fetch(url + "?json").getOutcome());
+        assertEquals(FetchResult.Outcome.TRUNCATED, fetcher.fetch(url + "?grande").getOutcome());
+        assertEquals(0, gets.get());
+
+        FetchResult result = fetcher.fetch(url + "?sin-head");
+        assertEquals(1, gets.get());
+        assertEquals(200, result.getStatus());
+        assertEquals(FetchResult.Outcome.COMPLETE, result.getOutcome());
+        assertEquals(CHUNK.length, result.getBody().length());
+        result.getBody().delete();
+    }
+
+    /**
+     * Dropped bodies abort their request, and the client then consumes the entity of the
+     * response: the connection must go back to the pool all the same (one per host here)
+     */
+    @Test
+    public void testAbortReleasesConnection() throws IOException {
+        String url = page("/descartada", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                boolean json = exchange.getRequestURI().getQuery().equals("json");
+                exchange.getResponseHeaders().set("Content-Type", json ? "application/json" : "text/html");
+                exchange.sendResponseHeaders(200, 0);
+                drip(exchange.getResponseBody(), exchange.getRequestURI().getQuery().equals("corta") ? 1 : 50, 0);
+                exchange.close();
+            }
+        });
+        fetcher.setBodyLimits(1000, -1);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(FetchResult.Outcome.TRUNCATED, fetcher.fetch(url + "?larga").getOutcome());
+            assertEquals(FetchResult.Outcome.UNSUPPORTED_TYPE, fetcher.fetch(url + "?json").getOutcome());
+        }
+        FetchResult result = fetcher.fetch(url + "?corta");
+        assertEquals(FetchResult.Outcome.COMPLETE, result.getOutcome());
+        result.getBody().delete();
+        // a leaked connection would have made a fetch wait for the pool until its time out
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testDeadlineWhileReadingBody() throws IOException {
+        String url = page("/lenta", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Type", "text/html");
+                exchange.sendResponseHeaders(200, 0);
+                drip(exchange.getResponseBody(), 100, 50);
+                exchange.close();
+            }
+        });
+        fetcher.setBodyLimits(-1, 300);
+        long start = System.currentTimeMillis();
+        FetchResult result = fetcher.fetch(url);
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        assertEquals(200, result.getStatus());
+        assertEquals(FetchResult.Outcome.ABORTED, result.getOutcome());
+        assertNull(result.getBody());
+    }
+
+    @Test
+    public void testDeadlineBeforeAnswer() throws IOException {
+        String url = page("/muda", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                pause(3000);
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        fetcher.setBodyLimits(-1, 300);
+        long start = System.currentTimeMillis();
+        FetchResult result = fetcher.fetch(url);
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        assertEquals(408, result.getStatus());
+        assertEquals(FetchResult.Outcome.COMPLETE, result.getOutcome());
+    }
+
+    @Test
+    public void testDeadlineCoversPrefilter() throws IOException {
+        final AtomicInteger gets = new AtomicInteger();
+        String url = page("/cabeza-lenta", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestMethod().equals("HEAD")) {
+                    pause(3000);
+                } else {
+                    gets.incrementAndGet();
+                }
+                exchange.getResponseHeaders().set("Content-Type", "text/html");
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        fetcher.setHeadPrefilter(true);
+        fetcher.setBodyLimits(-1, 300);
+        long start = System.currentTimeMillis();
+        FetchResult result = fetcher.fetch(url);
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        assertEquals(408, result.getStatus());
+        assertEquals(0, gets.get());
+    }
+
+    private String page(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /**
+     * Writes chunks of body, pausing between them, until the client goes away
+     */
+    private static void drip(OutputStream body, int chunks, long pause) {
+        try {
+            for (int i = 0; i < chunks; i++) {
+                body.write(CHUNK);
+                body.flush();
+                pause(pause);
+            }
+        } catch (IOException e) {
+            // the client gave up
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package utilities.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FingerprintSetTest {
+
+    @Test
+    public void testAddAndContains() {
+        FingerprintSet set = new FingerprintSet(4);
+        assertTrue(set.add("http://mentira.org/1"));
+        assertFalse(set.add("http://mentira.org/1"));
+        assertTrue(set.contains("http://mentira.org/1"));
+        assertFalse(set.contains("http://mentira.org/2"));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void testGrow() {
+        FingerprintSet set = new FingerprintSet(4);
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(set.add("http://www.google.com/" + i));
+        }
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(set.contains("http://www.google.com/" + i));
+            assertFalse(set.add("http://www.google.com/" + i));
+        }
+        assertEquals(100000, set.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExpectedSizeTooLarge() {
+        new FingerprintSet(Integer.MAX_VALUE);
+    }
+}
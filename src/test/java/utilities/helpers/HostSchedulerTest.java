@@ -0,0 +1,118 @@
+package utilities.helpers;
+
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HostSchedulerTest {
+
+    @Test
+    public void testRoundRobinAcrossHosts() throws MalformedURLException {
+        HostScheduler scheduler = new HostScheduler(10, 0);
+        for (int i = 1; i <= 3; i++) {
+            scheduler.add(new URL("http://a.org/" + i));
+        }
+        scheduler.add(new URL("http://b.org/1"));
+        scheduler.add(new URL("http://c.org/1"));
+        assertEquals(5, scheduler.size());
+
+        assertEquals("http://a.org/1", scheduler.next().toString());
+        assertEquals("http://b.org/1", scheduler.next().toString());
+        assertEquals("http://c.org/1", scheduler.next().toString());
+        assertEquals("http://a.org/2", scheduler.next().toString());
+        assertEquals("http://a.org/3", scheduler.next().toString());
+        assertNull(scheduler.next());
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void testPerHostLimit() throws MalformedURLException {
+        HostScheduler scheduler = new HostScheduler(1, 0);
+        scheduler.add(new URL("http://a.org/1"));
+        scheduler.add(new URL("http://a.org/2"));
+
+        URL first = scheduler.next();
+        assertNull(scheduler.next());
+        assertEquals(-1, scheduler.millisUntilReady());
+        scheduler.completed(first.toString(), 200);
+        assertEquals("http://a.org/2", scheduler.next().toString());
+    }
+
+    @Test
+    public void testCrawlDelay() throws MalformedURLException {
+        HostScheduler scheduler = new HostScheduler(5, 60000);
+        scheduler.add(new URL("http://a.org/1"));
+        scheduler.add(new URL("http://a.org/2"));
+
+        scheduler.next();
+        assertNull(scheduler.next());
+        assertTrue(scheduler.millisUntilReady() > 0);
+    }
+
+    @Test
+    public void testBackOffOnThrottling() throws MalformedURLException {
+        HostScheduler scheduler = new HostScheduler(8, 0);
+        for (int i = 1; i <= 20; i++) {
+            scheduler.add(new URL("http://a.org/" + i));
+        }
+        URL first = scheduler.next();
+        URL second = scheduler.next();
+        scheduler.completed(first.toString(), 429);
+        assertEquals(4, scheduler.getLimit("a.org"));
+        assertEquals(1000, scheduler.getDelay("a.org"));
+        assertNull(scheduler.next());
+
+        scheduler.completed(second.toString(), 503);
+        assertEquals(2, scheduler.getLimit("a.org"));
+        assertEquals(2000, scheduler.getDelay("a.org"));
+    }
+
+    /**
+     * A host that does not answer is backed off, as if it had answered 503
+     */
+    @Test
+    public void testBackOffOnFailedFetch() throws MalformedURLException {
+        HostScheduler scheduler = new HostScheduler(8, 0);
+        for (int i = 1; i <= 20; i++) {
+            scheduler.add(new URL("http://a.org/" + i));
+        }
+        List<URL> taken = new ArrayList<URL>();
+        for (int i = 0; i < 8; i++) {
+            taken.add(scheduler.next());
+        }
+        scheduler.completed(taken.get(0).toString(), 0, true);
+        assertEquals(4, scheduler.getLimit("a.org"));
+        assertEquals(1000, scheduler.getDelay("a.org"));
+
+        for (URL url : taken.subList(1, taken.size())) {
+            scheduler.completed(url.toString(), 0, true);
+        }
+        assertEquals(1, scheduler.getLimit("a.org"));
+        assertEquals(120000, scheduler.getDelay("a.org"));
+    }
+
+    @Test
+    public void testBackOffSurvivesEmptyQueue() throws MalformedURLException {
+        HostScheduler scheduler = new HostScheduler(8, 0);
+        URL url = new URL("http://a.org/1");
+        scheduler.add(url);
+        assertEquals(url, scheduler.next());
+        scheduler.completed(url.toString(), 429);
+        assertNull(scheduler.next());
+        assertTrue(scheduler.isEmpty());
+
+        // retried later, as the retry queue does
+        scheduler.add(url);
+        assertEquals(4, scheduler.getLimit("a.org"));
+        assertEquals(1000, scheduler.getDelay("a.org"));
+        assertNull(scheduler.next());
+        assertTrue(scheduler.millisUntilReady() > 0);
+    }
+}
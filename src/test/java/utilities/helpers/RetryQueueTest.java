@@ -0,0 +1,43 @@
+package utilities.helpers;
+
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RetryQueueTest {
+
+    @Test
+    public void testBackoff() {
+        RetryQueue queue = new RetryQueue(1000, 10000, new Random(42));
+        for (int i = 0; i < 100; i++) {
+            long first = queue.delay(1);
+            assertTrue(first >= 500 && first <= 1000);
+            long third = queue.delay(3);
+            assertTrue(third >= 2000 && third <= 4000);
+            long capped = queue.delay(30);
+            assertTrue(capped >= 5000 && capped <= 10000);
+        }
+    }
+
+    @Test
+    public void testDueOrder() throws MalformedURLException {
+        RetryQueue queue = new RetryQueue(1000, 10000);
+        long now = System.currentTimeMillis();
+        queue.add(new URL("http://a.org/later"), now + 60000);
+        queue.add(new URL("http://a.org/1"), now - 10);
+        queue.add(new URL("http://b.org/2"), now - 10);
+        assertEquals(3, queue.size());
+        assertEquals(0, queue.millisUntilDue());
+        assertEquals("http://a.org/1", queue.pollDue().toString());
+        assertEquals("http://b.org/2", queue.pollDue().toString());
+        assertNull(queue.pollDue());
+        assertTrue(queue.millisUntilDue() > 50000);
+        assertEquals(1, queue.size());
+    }
+}
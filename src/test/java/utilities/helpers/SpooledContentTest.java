@@ -0,0 +1,33 @@
+package utilities.helpers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpooledContentTest {
+
+    @Test
+    public void testReadUpToMaxLength() throws IOException {
+        byte[] bytes = new byte[20000];
+        Arrays.fill(bytes, (byte) 'a');
+
+        SpooledContent whole = new SpooledContent();
+        assertTrue(whole.readFrom(new ByteArrayInputStream(bytes), bytes.length));
+        assertEquals(bytes.length, whole.length());
+        whole.delete();
+
+        SpooledContent cut = new SpooledContent();
+        ByteArrayInputStream content = new ByteArrayInputStream(bytes);
+        assertFalse(cut.readFrom(content, 10000));
+        assertEquals(10000, cut.length());
+        // the rest was left unread
+        assertTrue(content.available() > 0);
+        cut.delete();
+    }
+}